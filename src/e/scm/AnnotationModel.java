@@ -29,21 +29,14 @@ public class AnnotationModel extends AbstractListModel<AnnotatedLine> {
      * we know the patch must be good, and because we know the lines won't
      * actually match (because of the annotations).
      */
-    public void applyPatch(List<String> patchLines, RevisionListModel revisions) {
-        int lineNumber = -1;
-        for (String line : patchLines) {
-            Patch.HunkRange hunkRange = new Patch.HunkRange(line);
-            if (hunkRange.matches()) {
-                lineNumber = hunkRange.toBegin();
-            } else if (lineNumber > 0) {
-                if (line.startsWith("-")) {
-                    removeLine(lineNumber);
-                    --lineNumber;
-                } else if (line.startsWith("+")) {
-                    AnnotatedLine annotatedLine = AnnotatedLine.fromLocalRevision(revisions, line.substring(1));
-                    insertLine(lineNumber, annotatedLine);
-                }
-                ++lineNumber;
+    public void applyPatch(List<Patch.Line> patchLines, RevisionListModel revisions) {
+        // We apply the lines in order, so each line's position in the "to" revision is where it goes in the model as it stands.
+        for (Patch.Line line : patchLines) {
+            if (line.kind == Patch.Line.Kind.FROM) {
+                removeLine(line.toLineNumber);
+            } else if (line.kind == Patch.Line.Kind.TO) {
+                AnnotatedLine annotatedLine = AnnotatedLine.fromLocalRevision(revisions, line.getSourceLine());
+                insertLine(line.toLineNumber, annotatedLine);
             }
         }
     }
@@ -0,0 +1,134 @@
+package e.scm;
+
+import e.gui.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.table.*;
+
+/**
+ * Shows BackEndStatistics' per-kind totals for this session, updated as
+ * commands finish, so you can see which back-end commands a slow repository
+ * is spending its time in.
+ */
+public class BackEndActivityWindow extends MainFrame {
+    // How often we refresh the table while the window's showing.
+    private static final int UPDATE_INTERVAL_MS = 1000;
+
+    private static BackEndActivityWindow instance;
+
+    private ActivityTableModel model = new ActivityTableModel();
+    private javax.swing.Timer timer;
+
+    /**
+     * For popup menus, so the window's a right-click away wherever back-end work happens.
+     */
+    public static class ShowAction extends AbstractAction {
+        public ShowAction() {
+            super("Show Back-End Activity");
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            showWindow();
+        }
+    }
+
+    public static void showWindow() {
+        if (instance == null) {
+            instance = new BackEndActivityWindow();
+        }
+        instance.model.update();
+        instance.timer.start();
+        instance.setVisible(true);
+        instance.toFront();
+    }
+
+    private BackEndActivityWindow() {
+        setTitle("Back-End Activity");
+
+        JTable table = new ETable();
+        table.setModel(model);
+        table.setAutoCreateRowSorter(true);
+
+        JLabel logLabel = new JLabel("Each command is also logged to " + BackEndStatistics.getLogFile());
+        logLabel.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
+
+        JPanel contentPane = new JPanel(new BorderLayout());
+        contentPane.setBorder(ScmUtilities.getFrameBorder());
+        contentPane.add(ScmUtilities.makeScrollable(table), BorderLayout.CENTER);
+        contentPane.add(logLabel, BorderLayout.SOUTH);
+        setContentPane(contentPane);
+        setSize(new Dimension(900, 300));
+
+        timer = new javax.swing.Timer(UPDATE_INTERVAL_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                model.update();
+            }
+        });
+        // Don't keep polling for a window nobody can see.
+        setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                timer.stop();
+            }
+        });
+    }
+
+    private static class ActivityTableModel extends AbstractTableModel {
+        private static final String[] COLUMN_NAMES = new String[] {
+            "Command", "Count", "Failures", "Median ms", "90th ms", "99th ms", "Total ms", "Parse ms", "Output KiB", "Errors KiB", "Lines"
+        };
+
+        private List<BackEndStatistics.Summary> summaries = new ArrayList<>();
+
+        void update() {
+            summaries = BackEndStatistics.getSummaries();
+            fireTableDataChanged();
+        }
+
+        public int getRowCount() {
+            return summaries.size();
+        }
+
+        public int getColumnCount() {
+            return COLUMN_NAMES.length;
+        }
+
+        public String getColumnName(int column) {
+            return COLUMN_NAMES[column];
+        }
+
+        public Class<?> getColumnClass(int column) {
+            switch (column) {
+                case 0: return String.class;
+                case 1: case 2: return Integer.class;
+                case 10: return Long.class;
+            }
+            return Double.class;
+        }
+
+        public Object getValueAt(int row, int column) {
+            BackEndStatistics.Summary summary = summaries.get(row);
+            switch (column) {
+                case 0: return summary.kind;
+                case 1: return summary.getCount();
+                case 2: return summary.getFailureCount();
+                case 3: return round(summary.getWallMillisecondsPercentile(50));
+                case 4: return round(summary.getWallMillisecondsPercentile(90));
+                case 5: return round(summary.getWallMillisecondsPercentile(99));
+                case 6: return round(summary.getTotalWallMilliseconds());
+                case 7: return round(summary.getTotalParseMilliseconds());
+                case 8: return round(summary.getStdoutByteCount() / 1024.0);
+                case 9: return round(summary.getStderrByteCount() / 1024.0);
+                case 10: return summary.getLineCount();
+            }
+            return "(" + row + "," + column + ")";
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10) / 10.0;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import e.util.*;
+
+/**
+ * One back-end command and everything it produced, as saved to (and loaded
+ * from) a fixture directory. Set the environment variable SCM_RECORD_TO to
+ * a directory to record every command the tool runs; ReplayRevisionControlSystem serves the
+ * recordings back without the real revision control system.
+ *
+ * Each recording is a text file, numbered in the order the commands
+ * finished, of "key=value" lines:
+ *
+ *   backEnd=Git
+ *   root=/home/user/src/project
+ *   command=git
+ *   command=log
+ *   input=
+ *   status=0
+ *   out=commit 0123abcd...
+ *   err=...
+ *
+ * Values have backslashes, newlines and carriage returns escaped C-style,
+ * so the files are easy to read, edit and diff.
+ */
+public class BackEndRecording {
+    public final String backEndName;
+    public final Path root;
+    public final String[] command;
+    public final String input;
+    public final int status;
+    public final List<String> lines;
+    public final List<String> errors;
+
+    private static final Path recordingDirectory = getRecordingDirectory();
+    private static final AtomicInteger nextRecordingNumber = new AtomicInteger(countExistingRecordings());
+
+    public BackEndRecording(String backEndName, Path root, String[] command, String input, int status, List<String> lines, List<String> errors) {
+        this.backEndName = backEndName;
+        this.root = root;
+        this.command = command;
+        this.input = input;
+        this.status = status;
+        this.lines = lines;
+        this.errors = errors;
+    }
+
+    /**
+     * Returns the key commands are matched by when replaying: the same
+     * command with the same input in the same repository.
+     */
+    public static String keyFor(Path root, String[] command, String input) {
+        return root + "\0" + StringUtilities.join(Arrays.asList(command), "\0") + "\0\0" + input;
+    }
+
+    public String getKey() {
+        return keyFor(root, command, input);
+    }
+
+    /**
+     * Tests whether we've been asked to record commands.
+     */
+    public static boolean isRecording() {
+        return recordingDirectory != null;
+    }
+
+    private static Path getRecordingDirectory() {
+        String directory = System.getenv("SCM_RECORD_TO");
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        Path result = Paths.get(directory);
+        try {
+            Files.createDirectories(result);
+        } catch (IOException ex) {
+            Log.warn("Couldn't create recording directory \"" + result + "\"; not recording back-end commands", ex);
+            return null;
+        }
+        Log.warn("Recording back-end commands in \"" + result + "\"");
+        return result;
+    }
+
+    private static int countExistingRecordings() {
+        // Recording into a directory that already has recordings adds to them.
+        return (recordingDirectory == null) ? 0 : listRecordings(recordingDirectory).size();
+    }
+
+    /**
+     * Saves this recording in the directory given by $SCM_RECORD_TO. Failure is logged rather than thrown, so that recording
+     * can't break the tool.
+     */
+    public void save() {
+        Path file = recordingDirectory.resolve(String.format("%06d.txt", nextRecordingNumber.getAndIncrement()));
+        StringBuilder content = new StringBuilder();
+        appendField(content, "backEnd", backEndName);
+        appendField(content, "root", root.toString());
+        for (String argument : command) {
+            appendField(content, "command", argument);
+        }
+        appendField(content, "input", input);
+        appendField(content, "status", Integer.toString(status));
+        for (String line : lines) {
+            appendField(content, "out", line);
+        }
+        for (String line : errors) {
+            appendField(content, "err", line);
+        }
+        try {
+            Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            Log.warn("Couldn't save recording \"" + file + "\"", ex);
+        }
+    }
+
+    /**
+     * Loads all the recordings in the given directory, in the order they
+     * were made.
+     */
+    public static List<BackEndRecording> loadAll(Path directory) throws IOException {
+        ArrayList<BackEndRecording> result = new ArrayList<>();
+        for (Path file : listRecordings(directory)) {
+            result.add(load(file));
+        }
+        return result;
+    }
+
+    private static List<Path> listRecordings(Path directory) {
+        ArrayList<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "[0-9]*.txt")) {
+            for (Path file : files) {
+                result.add(file);
+            }
+        } catch (IOException ex) {
+            Log.warn("Couldn't list recordings in \"" + directory + "\"", ex);
+        }
+        // The zero-padded names sort into recording order.
+        Collections.sort(result);
+        return result;
+    }
+
+    private static BackEndRecording load(Path file) throws IOException {
+        String backEndName = null;
+        String root = null;
+        ArrayList<String> command = new ArrayList<>();
+        String input = "";
+        int status = 0;
+        ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int equals = line.indexOf('=');
+            if (equals == -1) {
+                throw new IOException("malformed line \"" + line + "\" in recording \"" + file + "\"");
+            }
+            String key = line.substring(0, equals);
+            String value = unescape(line.substring(equals + 1));
+            if (key.equals("backEnd")) {
+                backEndName = value;
+            } else if (key.equals("root")) {
+                root = value;
+            } else if (key.equals("command")) {
+                command.add(value);
+            } else if (key.equals("input")) {
+                input = value;
+            } else if (key.equals("status")) {
+                status = Integer.parseInt(value);
+            } else if (key.equals("out")) {
+                lines.add(value);
+            } else if (key.equals("err")) {
+                errors.add(value);
+            } else {
+                throw new IOException("unknown key \"" + key + "\" in recording \"" + file + "\"");
+            }
+        }
+        if (backEndName == null || root == null || command.isEmpty()) {
+            throw new IOException("recording \"" + file + "\" is incomplete");
+        }
+        return new BackEndRecording(backEndName, Paths.get(root), command.toArray(new String[command.size()]), input, status, lines, errors);
+    }
+
+    private static void appendField(StringBuilder content, String key, String value) {
+        content.append(key).append('=');
+        for (int i = 0; i < value.length(); ++i) {
+            char ch = value.charAt(i);
+            if (ch == '\\') {
+                content.append("\\\\");
+            } else if (ch == '\n') {
+                content.append("\\n");
+            } else if (ch == '\r') {
+                content.append("\\r");
+            } else {
+                content.append(ch);
+            }
+        }
+        content.append('\n');
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') == -1) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < value.length(); ++i) {
+            char ch = value.charAt(i);
+            if (ch == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(ch);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package e.scm;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs back-end work for one repository on a bounded pool of threads, so
+ * that (for example) a change set touching thousands of files doesn't start
+ * thousands of "git log" processes at once. Interactive work -- anything the
+ * user is waiting to see -- jumps ahead of queued prefetching; work of the
+ * same priority runs in the order it was submitted.
+ *
+ * Each RevisionControlSystem decides how many commands its repository can
+ * usefully run at once; see RevisionControlSystem.getMaxConcurrentCommands.
+ */
+public class BackEndScheduler {
+    public enum Priority {
+        // Declared in order of precedence.
+        INTERACTIVE,
+        PREFETCH
+    }
+
+    // How long an idle thread hangs around waiting for more work.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    public BackEndScheduler(final String name, int maxConcurrentCommands) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger nextThreadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " back-end worker " + nextThreadNumber.getAndIncrement());
+                // Don't keep the VM alive just for prefetching.
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(maxConcurrentCommands, maxConcurrentCommands, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the given work (typically a BackEndWorker or BlockingWorker).
+     */
+    public void execute(Priority priority, Runnable runnable) {
+        executor.execute(new PrioritizedRunnable(priority, nextSequenceNumber.getAndIncrement(), runnable));
+    }
+
+    /**
+     * Queues the given computation, returning a FutureTask for its result.
+     * A worker that needs the result can call 'run' on the FutureTask before
+     * 'get': if the computation hasn't started yet, that runs it on the
+     * worker's own thread rather than waiting for a free thread that might
+     * never come, and if it has, 'run' does nothing.
+     */
+    public <T> FutureTask<T> submit(Priority priority, Callable<T> callable) {
+        FutureTask<T> result = new FutureTask<>(callable);
+        execute(priority, result);
+        return result;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+        private final Priority priority;
+        private final long sequenceNumber;
+        private final Runnable runnable;
+
+        PrioritizedRunnable(Priority priority, long sequenceNumber, Runnable runnable) {
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.runnable = runnable;
+        }
+
+        public void run() {
+            runnable.run();
+        }
+
+        public int compareTo(PrioritizedRunnable other) {
+            int result = priority.compareTo(other.priority);
+            if (result == 0) {
+                result = Long.compare(sequenceNumber, other.sequenceNumber);
+            }
+            return result;
+        }
+    }
+}
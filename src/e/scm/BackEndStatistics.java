@@ -0,0 +1,326 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import e.util.*;
+
+/**
+ * Records what every back-end command cost us, so we can see why a given
+ * repository is slow. RevisionControlSystem.backQuote times each command
+ * and counts its output; callers that parse the output afterwards can
+ * report how long that took with addParseTime.
+ *
+ * Each command is appended as a line of JSON to a log file in the temporary
+ * directory, and summarized per kind of command ("git log", "svn annotate")
+ * for the "Back-End Activity" window.
+ */
+public class BackEndStatistics {
+    /**
+     * The totals for one kind of command over this session.
+     */
+    public static class Summary {
+        // We keep the most recent wall times for percentiles; older ones only count towards the totals.
+        private static final int MAX_SAMPLES = 4096;
+
+        public final String kind;
+        private int count;
+        private int failureCount;
+        private long totalWallNanos;
+        private long totalParseNanos;
+        private long stdoutByteCount;
+        private long stderrByteCount;
+        private long lineCount;
+        private long[] wallNanosSamples = new long[MAX_SAMPLES];
+        private int nextSample;
+
+        Summary(String kind) {
+            this.kind = kind;
+        }
+
+        private Summary(Summary other) {
+            this.kind = other.kind;
+            this.count = other.count;
+            this.failureCount = other.failureCount;
+            this.totalWallNanos = other.totalWallNanos;
+            this.totalParseNanos = other.totalParseNanos;
+            this.stdoutByteCount = other.stdoutByteCount;
+            this.stderrByteCount = other.stderrByteCount;
+            this.lineCount = other.lineCount;
+            this.wallNanosSamples = other.wallNanosSamples.clone();
+            this.nextSample = other.nextSample;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getFailureCount() {
+            return failureCount;
+        }
+
+        public double getTotalWallMilliseconds() {
+            return totalWallNanos / 1e6;
+        }
+
+        public double getTotalParseMilliseconds() {
+            return totalParseNanos / 1e6;
+        }
+
+        public long getStdoutByteCount() {
+            return stdoutByteCount;
+        }
+
+        public long getStderrByteCount() {
+            return stderrByteCount;
+        }
+
+        public long getLineCount() {
+            return lineCount;
+        }
+
+        /**
+         * Returns the given percentile (0 to 100) of the recent wall times, in milliseconds.
+         */
+        public double getWallMillisecondsPercentile(double percentile) {
+            int sampleCount = Math.min(count, MAX_SAMPLES);
+            if (sampleCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(wallNanosSamples, sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sampleCount) - 1;
+            return sorted[Math.max(0, Math.min(sampleCount - 1, index))] / 1e6;
+        }
+
+        private void addCommand(Record record) {
+            ++count;
+            if (record.exitStatus != 0) {
+                ++failureCount;
+            }
+            totalWallNanos += record.wallNanos;
+            totalParseNanos += record.parseNanos;
+            stdoutByteCount += record.stdoutByteCount;
+            stderrByteCount += record.stderrByteCount;
+            lineCount += record.lineCount;
+            wallNanosSamples[nextSample] = record.wallNanos;
+            nextSample = (nextSample + 1) % MAX_SAMPLES;
+        }
+    }
+
+    /**
+     * One run of a command. RevisionControlSystem.backQuote fills this in
+     * as the command runs.
+     */
+    static class Record {
+        final Path root;
+        final String[] command;
+        final String kind;
+        private final long startNanos = System.nanoTime();
+        long wallNanos;
+        long parseNanos;
+        long stdoutByteCount;
+        long stderrByteCount;
+        long lineCount;
+        // What we record for a command that didn't get as far as exiting (because it couldn't be started, or was cancelled).
+        int exitStatus = -1;
+
+        Record(Path root, String[] command) {
+            this.root = root;
+            this.command = command;
+            this.kind = kindOf(command);
+        }
+
+        /**
+         * Wraps a listener for the command's standard output, counting what
+         * goes through it and timing how long the listener takes (which, for
+         * a listener that parses as it goes, is the parse time).
+         */
+        ProcessUtilities.LineListener wrapOutputListener(final ProcessUtilities.LineListener listener) {
+            return new ProcessUtilities.LineListener() {
+                public void processLine(String line) {
+                    ++lineCount;
+                    stdoutByteCount += byteCountOf(line);
+                    long start = System.nanoTime();
+                    listener.processLine(line);
+                    parseNanos += System.nanoTime() - start;
+                }
+            };
+        }
+
+        ProcessUtilities.LineListener wrapErrorsListener(final ProcessUtilities.LineListener listener) {
+            return new ProcessUtilities.LineListener() {
+                public void processLine(String line) {
+                    stderrByteCount += byteCountOf(line);
+                    listener.processLine(line);
+                }
+            };
+        }
+
+        void finish() {
+            wallNanos = System.nanoTime() - startNanos;
+            commandFinished(this);
+        }
+    }
+
+    private static final HashMap<String, Summary> summaries = new HashMap<>();
+
+    // The last command run on each thread, so that addParseTime knows what the caller was parsing.
+    private static final ThreadLocal<Record> lastRecord = new ThreadLocal<>();
+
+    private static final Path LOG_FILE = Paths.get(System.getProperty("java.io.tmpdir"), "e.scm.back-end-activity.log");
+    private static Writer logWriter;
+    private static boolean isLogBroken = false;
+
+    private BackEndStatistics() {
+    }
+
+    /**
+     * Starts timing the given command. The caller must call 'finish' on the
+     * result, even if the command fails.
+     */
+    static Record startCommand(Path root, String[] command) {
+        return new Record(root, command);
+    }
+
+    /**
+     * Adds parse time to the last command run on this thread. Call this
+     * after parsing output collected by backQuote; output parsed by the
+     * listeners passed to backQuote is timed automatically.
+     */
+    public static void addParseTime(long nanos) {
+        Record record = lastRecord.get();
+        if (record == null) {
+            return;
+        }
+        synchronized (summaries) {
+            record.parseNanos += nanos;
+            summaries.get(record.kind).totalParseNanos += nanos;
+        }
+        log(record, "parse", "\"parseMs\":" + formatMilliseconds(nanos));
+    }
+
+    private static void commandFinished(Record record) {
+        lastRecord.set(record);
+        synchronized (summaries) {
+            Summary summary = summaries.get(record.kind);
+            if (summary == null) {
+                summary = new Summary(record.kind);
+                summaries.put(record.kind, summary);
+            }
+            summary.addCommand(record);
+        }
+        log(record, "command",
+            "\"command\":" + jsonString(ProcessUtilities.shellQuotedFormOf(Arrays.asList(record.command))) +
+            ",\"wallMs\":" + formatMilliseconds(record.wallNanos) +
+            ",\"stdoutBytes\":" + record.stdoutByteCount +
+            ",\"stderrBytes\":" + record.stderrByteCount +
+            ",\"lines\":" + record.lineCount +
+            ",\"exitStatus\":" + record.exitStatus +
+            ",\"parseMs\":" + formatMilliseconds(record.parseNanos));
+    }
+
+    /**
+     * Returns a copy of the per-kind totals for this session, most expensive first.
+     */
+    public static List<Summary> getSummaries() {
+        ArrayList<Summary> result = new ArrayList<>();
+        synchronized (summaries) {
+            for (Summary summary : summaries.values()) {
+                result.add(new Summary(summary));
+            }
+        }
+        Collections.sort(result, new Comparator<Summary>() {
+            public int compare(Summary lhs, Summary rhs) {
+                return Long.compare(rhs.totalWallNanos, lhs.totalWallNanos);
+            }
+        });
+        return result;
+    }
+
+    public static Path getLogFile() {
+        return LOG_FILE;
+    }
+
+    /**
+     * Returns the name we summarize a command under: the tool and its
+     * subcommand, such as "git log" or "cvs update", ignoring options and
+     * filenames.
+     */
+    static String kindOf(String[] command) {
+        String tool = Paths.get(command[0]).getFileName().toString();
+        for (int i = 1; i < command.length; ++i) {
+            String argument = command[i];
+            if (argument.startsWith("-")) {
+                continue;
+            }
+            // Anything path-like is an operand, not a subcommand, so there's no subcommand.
+            if (argument.contains("/") || argument.contains(".")) {
+                break;
+            }
+            return tool + " " + argument;
+        }
+        return tool;
+    }
+
+    private static long byteCountOf(String line) {
+        // The UTF-8 length, plus the newline that was stripped, without encoding the line.
+        long result = 1;
+        for (int i = 0; i < line.length(); ++i) {
+            char ch = line.charAt(i);
+            if (ch < 0x80) {
+                result += 1;
+            } else if (ch < 0x800) {
+                result += 2;
+            } else if (Character.isHighSurrogate(ch)) {
+                result += 4;
+                ++i;
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+    private static void log(Record record, String event, String fields) {
+        String time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
+        String line = "{\"time\":\"" + time + "\",\"event\":\"" + event + "\",\"root\":" + jsonString(record.root.toString()) + ",\"kind\":" + jsonString(record.kind) + "," + fields + "}\n";
+        synchronized (BackEndStatistics.class) {
+            if (isLogBroken) {
+                return;
+            }
+            try {
+                if (logWriter == null) {
+                    logWriter = Files.newBufferedWriter(LOG_FILE, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                logWriter.write(line);
+                logWriter.flush();
+            } catch (IOException ex) {
+                // Don't keep trying (and complaining) for every command.
+                Log.warn("Couldn't write back-end activity log \"" + LOG_FILE + "\"", ex);
+                isLogBroken = true;
+            }
+        }
+    }
+
+    private static String formatMilliseconds(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); ++i) {
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                result.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                result.append(String.format("\\u%04x", (int) ch));
+            } else {
+                result.append(ch);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
@@ -3,7 +3,7 @@ package e.scm;
 public class BackEndTask {
   private String title;
   private StatusReporter statusReporter;
-  private int taskHandle;
+  private volatile int taskHandle;
   private int workers;
   
   public BackEndTask(String title, StatusReporter statusReporter) {
@@ -36,6 +36,18 @@ public class BackEndTask {
     return statusReporter.isTaskOutdated(taskHandle);
   }
   
+  /**
+   * Returns a token that's cancelled as soon as this task is outdated, so
+   * that work nobody's waiting for can stop early.
+   */
+  public CancellationToken getCancellationToken() {
+    return new CancellationToken() {
+      public boolean isCancelled() {
+        return isOutdated();
+      }
+    };
+  }
+  
   public void reportException(Exception ex) {
     statusReporter.reportException(title, ex);
   }
@@ -22,11 +22,14 @@ public abstract class BackEndWorker implements Runnable {
   }
   
   public final void run() {
+    // Let the back-end see when we're outdated, so it can give up early.
+    CancellationToken previousToken = CancellationToken.setCurrent(task.getCancellationToken());
     try {
       work();
     } catch (Exception ex) {
       caughtException = ex;
     } finally {
+      CancellationToken.setCurrent(previousToken);
       task.detachWorker();
       if (task.isOutdated()) {
         // This result is outdated. Forget it.
@@ -36,7 +39,7 @@ public abstract class BackEndWorker implements Runnable {
     EventQueue.invokeLater(new Runnable() {
       public void run() {
         if (caughtException != null) {
-          task.reportException(caughtException);
+          reportException(caughtException);
         } else {
           finish();
         }
@@ -56,4 +59,21 @@ public abstract class BackEndWorker implements Runnable {
    * thrown, 'reportException' will be invoked instead).
    */
   public abstract void finish();
+  
+  /**
+   * Invoked on the event dispatch thread instead of 'finish' if 'work'
+   * threw an exception. The default implementation reports it through the
+   * task.
+   */
+  public void reportException(Exception ex) {
+    task.reportException(ex);
+  }
+  
+  /**
+   * Tests whether a newer task has replaced ours, in which case our results
+   * should be thrown away rather than shown.
+   */
+  protected boolean isOutdated() {
+    return task.isOutdated();
+  }
 }
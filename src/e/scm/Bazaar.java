@@ -1,6 +1,7 @@
 package e.scm;
 
 import java.util.*;
+import java.util.function.*;
 import java.util.regex.*;
 import e.util.*;
 
@@ -38,6 +39,11 @@ public class Bazaar extends RevisionControlSystem {
         return result.toArray(new String[result.size()]);
     }
     
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        return new String[] { "bzr", "cat", "-r", revision.number, filename };
+    }
+    
     public String[] getLogCommand(String filename) {
         return new String[] { "bzr", "log", filename };
     }
@@ -66,64 +72,71 @@ public class Bazaar extends RevisionControlSystem {
         throw new RuntimeException("expected " + expected + ", got \"" + got + "\"");
     }
     
-    public RevisionListModel parseLog(List<String> linesList) {
-        String[] lines = linesList.toArray(new String[linesList.size()]);
-        String separator = "------------------------------------------------------------";
-        
-        int i = 0;
-        if (lines[i++].equals(separator) == false) {
-            reportLogParsingFailure("separator", lines[0]);
-        }
-        
-        RevisionListModel result = new RevisionListModel();
-        String number = null;
-        String author = null;
-        String date = null;
-        String time = null;
-        StringBuilder comment = null;
-        for (; i < lines.length; ++i) {
-            if (lines[i].startsWith("revno: ")) {
-                number = lines[i].substring(7);
-            } else if (lines[i].startsWith("committer: ")) {
-                author = lines[i].substring(11);
-            } else if (lines[i].startsWith("branch nick: ")) {
-                // Ignore.
-            } else if (lines[i].startsWith("timestamp: ")) {
-                Matcher matcher = TIMESTAMP_PATTERN.matcher(lines[i]);
-                if (matcher.matches()) {
-                    date = matcher.group(1);
-                    time = matcher.group(2);
+    private static final String LOG_SEPARATOR = "------------------------------------------------------------";
+    
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return new LogParser(listener) {
+            private boolean isFirstLine = true;
+            private String number = null;
+            private String author = null;
+            private String date = null;
+            private String time = null;
+            // Non-null while we're reading a message.
+            private StringBuilder comment = null;
+            
+            public void processLine(String line) {
+                if (isFirstLine) {
+                    isFirstLine = false;
+                    if (line.equals(LOG_SEPARATOR) == false) {
+                        reportLogParsingFailure("separator", line);
+                    }
+                } else if (comment != null) {
+                    if (line.equals(LOG_SEPARATOR)) {
+                        finish();
+                    } else {
+                        comment.append(line);
+                        comment.append("\n");
+                    }
+                } else if (line.startsWith("revno: ")) {
+                    number = line.substring(7);
+                } else if (line.startsWith("committer: ")) {
+                    author = line.substring(11);
+                } else if (line.startsWith("branch nick: ")) {
+                    // Ignore.
+                } else if (line.startsWith("timestamp: ")) {
+                    Matcher matcher = TIMESTAMP_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        date = matcher.group(1);
+                        time = matcher.group(2);
+                    } else {
+                        reportLogParsingFailure("separator", line);
+                    }
+                } else if (line.equals("message:")) {
+                    comment = new StringBuilder();
                 } else {
-                    reportLogParsingFailure("separator", lines[i]);
+                    reportLogParsingFailure("known header", line);
                 }
-            } else if (lines[i].equals("message:")) {
-                comment = new StringBuilder();
-                ++i;
-                while (i < lines.length) {
-                    if (lines[i].equals(separator)) {
-                        break;
-                    }
-                    comment.append(lines[i++]);
-                    comment.append("\n");
+            }
+            
+            public void finish() {
+                if (comment == null) {
+                    return;
                 }
-                if (number == null || author == null || date == null || time == null || comment == null) {
+                if (number == null || author == null || date == null || time == null) {
                     throw new RuntimeException("incomplete log record: number=" + number + ",author=" + author + ",date=" + date + ",time=" + time + ",comment" + comment);
                 }
-                Revision revision = new Revision(number, date, time, author, comment.toString());
-                result.add(revision);
+                addRevision(new Revision(number, date, time, author, comment.toString()));
                 number = author = date = time = null;
-            } else {
-                reportLogParsingFailure("known header", lines[i]);
+                comment = null;
             }
-        }
-        return result;
+        };
     }
     
     public boolean isLocallyModified(String filename) {
         String[] command = new String[] { "bzr", "status", filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         for (String line : lines) {
             if (line.equals("modified:")) {
                 return true;
@@ -132,6 +145,13 @@ public class Bazaar extends RevisionControlSystem {
         return false;
     }
     
+    /**
+     * Bazaar has all the meta-data locally.
+     */
+    public long getExpectedDiffMilliseconds() {
+        return 50;
+    }
+    
     public boolean supportsChangeSets() {
         return true;
     }
@@ -140,7 +160,7 @@ public class Bazaar extends RevisionControlSystem {
         String[] command = new String[] { "bzr", "log", "-v", "-r", revision.number };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuoteShared(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -173,15 +193,34 @@ public class Bazaar extends RevisionControlSystem {
     }
     
     public List<FileStatus> getStatuses(StatusReporter statusReporter) {
-        String[] command = new String[] { "bzr", "status" };
-        ArrayList<String> lines = new ArrayList<>();
-        ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
-        if (status != 0) {
-            throwError(status, command, lines, errors);
-        }
-        
-        HashMap<String, Integer> map = new HashMap<>();
+        return runStatusCommand(new String[] { "bzr", "status" });
+    }
+    
+    @Override
+    public void streamStatuses(StatusReporter statusReporter, StatusListener listener) {
+        runStatusCommand(new String[] { "bzr", "status" }, listener);
+    }
+    
+    @Override
+    public boolean canGetStatusesOfPaths() {
+        return true;
+    }
+    
+    @Override
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        ArrayList<String> command = new ArrayList<>(Arrays.asList("bzr", "status", "--"));
+        command.addAll(filenames);
+        return runStatusCommand(command.toArray(new String[command.size()]));
+    }
+    
+    private List<FileStatus> runStatusCommand(String[] command) {
+        ArrayList<FileStatus> statuses = new ArrayList<>();
+        runStatusCommand(command, new ArrayListStatusListener(statuses));
+        return statuses;
+    }
+    
+    private void runStatusCommand(String[] command, final StatusListener listener) {
+        final HashMap<String, Integer> map = new HashMap<>();
         map.put("added", FileStatus.ADDED);
         map.put("removed", FileStatus.REMOVED);
         map.put("renamed", FileStatus.NOT_RECOGNIZED_BY_BACK_END); // FIXME
@@ -189,22 +228,30 @@ public class Bazaar extends RevisionControlSystem {
         map.put("unchanged", FileStatus.NOT_RECOGNIZED_BY_BACK_END); // Shouldn't happen.
         map.put("unknown", FileStatus.NEW);
         
-        ArrayList<FileStatus> statuses = new ArrayList<>();
-        Pattern pattern = Pattern.compile("^(added|removed|renamed|modified|unchanged|unknown):$");
-        int canonicalState = FileStatus.NOT_RECOGNIZED_BY_BACK_END;
-        for (String line : lines) {
-            Matcher matcher = pattern.matcher(line);
-            if (matcher.find()) {
-                Integer state = map.get(matcher.group(1));
-                canonicalState = (state != null) ? state.intValue() : FileStatus.NOT_RECOGNIZED_BY_BACK_END;
-            } else if (line.startsWith("  ")) {
-                String name = line.substring(2);
-                statuses.add(new FileStatus(canonicalState, name));
-            } else {
-                Log.warn("Bazaar back end didn't understand '" + line + "'.");
+        final ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        final Pattern pattern = Pattern.compile("^(added|removed|renamed|modified|unchanged|unknown):$");
+        int status = backQuote(command, "", new ProcessUtilities.LineListener() {
+            // Each file's state comes from the heading of the section it's in.
+            private int canonicalState = FileStatus.NOT_RECOGNIZED_BY_BACK_END;
+            
+            public void processLine(String line) {
+                lines.add(line);
+                Matcher matcher = pattern.matcher(line);
+                if (matcher.find()) {
+                    Integer state = map.get(matcher.group(1));
+                    canonicalState = (state != null) ? state.intValue() : FileStatus.NOT_RECOGNIZED_BY_BACK_END;
+                } else if (line.startsWith("  ")) {
+                    String name = line.substring(2);
+                    listener.statusFound(new FileStatus(canonicalState, name));
+                } else {
+                    Log.warn("Bazaar back end didn't understand '" + line + "'.");
+                }
             }
+        }, new ProcessUtilities.ArrayListLineListener(errors));
+        if (status != 0) {
+            throwError(status, command, lines, errors);
         }
-        return statuses;
     }
     
     public void commit(String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded) {
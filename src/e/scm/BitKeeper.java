@@ -3,6 +3,7 @@ package e.scm;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.regex.*;
 import e.util.*;
 
@@ -36,6 +37,11 @@ public class BitKeeper extends RevisionControlSystem {
         return result.toArray(new String[result.size()]);
     }
 
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        return new String[] { "bk", "get", "-qkp", "-r" + revision.number, filename };
+    }
+
     public String[] getLogCommand(String filename) {
         return new String[] { "bk", "prs", "-n", "-d:DSUMMARY:\n:COMMENTS:" + LOG_SEPARATOR, filename };
     }
@@ -56,31 +62,47 @@ public class BitKeeper extends RevisionControlSystem {
     private static final Pattern LOG_PATTERN = Pattern.compile("^D ([0-9.]+) (\\d\\d|\\d{4})/(\\d\\d)/(\\d\\d) (\\d{2}:\\d{2}:\\d{2}(?:[-+]\\d{2}:\\d{2})?) ([^@ ]+).*");
     private static final String LOG_SEPARATOR = "a string that must never appear in a check-in comment\f";
     
-    public RevisionListModel parseLog(List<String> linesList) {
-        String[] lines = linesList.toArray(new String[linesList.size()]);
-
-        RevisionListModel result = new RevisionListModel();
-        for (int i = 0; i < lines.length; ++i) {
-            if (lines[i].equals(LOG_SEPARATOR)) {
-                continue;
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return new LogParser(listener) {
+            private String number;
+            private String author;
+            private String date;
+            private String time;
+            // Non-null while we're reading a comment.
+            private StringBuilder comment = null;
+            
+            public void processLine(String line) {
+                if (comment != null) {
+                    if (line.equals(LOG_SEPARATOR)) {
+                        finish();
+                    } else {
+                        comment.append(line.substring(2));
+                        comment.append("\n");
+                    }
+                    return;
+                }
+                if (line.equals(LOG_SEPARATOR)) {
+                    return;
+                }
+                
+                Matcher matcher = LOG_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    number = matcher.group(1);
+                    time = matcher.group(5);
+                    author = matcher.group(6);
+                    String year = matcher.group(2).length() == 2 ? "20" + matcher.group(2) : matcher.group(2);
+                    date = year + "-" + matcher.group(3) + "-" + matcher.group(4);
+                    comment = new StringBuilder();
+                }
             }
             
-            Matcher matcher = LOG_PATTERN.matcher(lines[i]);
-            if (matcher.matches()) {
-                String number = matcher.group(1);
-                String time = matcher.group(5);
-                String author = matcher.group(6);
-                String year = matcher.group(2).length() == 2 ? "20" + matcher.group(2) : matcher.group(2);
-                String date = year + "-" + matcher.group(3) + "-" + matcher.group(4);
-                StringBuilder comment = new StringBuilder();
-                while (++i < lines.length && lines[i].equals(LOG_SEPARATOR) == false) {
-                    comment.append(lines[i].substring(2));
-                    comment.append("\n");
+            public void finish() {
+                if (comment != null) {
+                    addRevision(new Revision(number, date, time, author, comment.toString()));
+                    comment = null;
                 }
-                result.add(new Revision(number, date, time, author, comment.toString()));
             }
-        }
-        return result;
+        };
     }
 
     public boolean isLocallyModified(String filename) {
@@ -89,7 +111,7 @@ public class BitKeeper extends RevisionControlSystem {
         };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         for (String line : lines) {
             if (line.startsWith("lc") || line.startsWith("slc")) {
                 return true;
@@ -99,10 +121,10 @@ public class BitKeeper extends RevisionControlSystem {
     }
     
     /**
-     * Returns true, because BitKeeper has all the meta-data locally.
+     * BitKeeper has all the meta-data locally.
      */
-    public boolean isMetaDataCheap() {
-        return true;
+    public long getExpectedDiffMilliseconds() {
+        return 50;
     }
     
     public boolean supportsChangeSets() {
@@ -122,7 +144,7 @@ public class BitKeeper extends RevisionControlSystem {
         String[] command = new String[] { "bk", "r2c", "-r" + revision.number, filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuoteShared(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -137,7 +159,7 @@ public class BitKeeper extends RevisionControlSystem {
         String[] command = new String[] { "bk", "changes", "-r" + changeSetNumber, "-v", "-n", "-d$if(:PARENT:){:GFILE:|:PARENT:..:REV:}" };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuoteShared(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -185,7 +207,7 @@ public class BitKeeper extends RevisionControlSystem {
         String[] command = new String[] { "bk", "log", "-hr+", "-d:HASHCOUNT:" };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         if (status != 0 || lines.size() != 1) {
             return -1;
         }
@@ -217,7 +239,7 @@ public class BitKeeper extends RevisionControlSystem {
         ArrayList<String> notReallyTheOutput = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
         ProcessUtilities.LineListener errorsListener = new ProcessUtilities.ArrayListLineListener(errors);
-        int status = ProcessUtilities.backQuote(getRoot(), command, "", outputListener, errorsListener);
+        int status = backQuote(command, "", outputListener, errorsListener);
         if (status != 0) {
             throwError(status, command, notReallyTheOutput, errors);
         }
@@ -270,7 +292,7 @@ public class BitKeeper extends RevisionControlSystem {
         };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
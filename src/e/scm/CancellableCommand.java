@@ -0,0 +1,159 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import e.util.*;
+
+/**
+ * Runs a command much like ProcessUtilities.backQuote, but keeps hold of the
+ * child so it can be killed if the given token is cancelled while it's
+ * running. There's no point letting an outdated "annotate" run to completion
+ * against a remote server when nobody will see its output.
+ */
+class CancellableCommand {
+    // How often we check the token while waiting for the child.
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private CancellableCommand() {
+    }
+
+    /**
+     * Returns the command's exit status, or throws CancellationException if
+     * the token was cancelled before the command finished.
+     */
+    static int run(Path directory, String[] command, final String input, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener, CancellationToken token) {
+        return run(directory, command, input, '\n', outputListener, errorsListener, token);
+    }
+
+    /**
+     * Like run, but splits the command's output at 'outputTerminator'
+     * rather than at newlines. The errors are still read a line at a time.
+     */
+    static int run(Path directory, String[] command, final String input, char outputTerminator, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener, CancellationToken token) {
+        token.throwIfCancelled();
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(directory.toFile());
+        final Process process;
+        try {
+            process = processBuilder.start();
+        } catch (IOException ex) {
+            throw new RuntimeException("couldn't run '" + ProcessUtilities.shellQuotedFormOf(Arrays.asList(command)) + "'", ex);
+        }
+
+        // Feed the input and read both outputs on threads of their own, so we're free to watch the token,
+        // and so a child that fills one pipe while we're blocked on another can't deadlock us.
+        Thread inputWriter = new Thread(new Runnable() {
+            public void run() {
+                try (OutputStream out = process.getOutputStream()) {
+                    out.write(input.getBytes(Charset.defaultCharset()));
+                } catch (IOException ex) {
+                    // The child didn't want (all of) its input. Its exit status will tell the caller whatever matters.
+                }
+            }
+        }, "input for " + command[0]);
+        OutputReader outputReader = new OutputReader(process, process.getInputStream(), outputTerminator, outputListener, "output from " + command[0]);
+        OutputReader errorsReader = new OutputReader(process, process.getErrorStream(), '\n', errorsListener, "errors from " + command[0]);
+        outputReader.start();
+        errorsReader.start();
+        inputWriter.start();
+
+        try {
+            while (process.waitFor(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS) == false) {
+                if (token.isCancelled()) {
+                    process.destroy();
+                    if (process.waitFor(1, TimeUnit.SECONDS) == false) {
+                        process.destroyForcibly();
+                    }
+                    throw new CancellationException();
+                }
+            }
+            // Make sure the listeners have seen everything before we return.
+            outputReader.join();
+            errorsReader.join();
+            inputWriter.join();
+            // A listener that gave up on the output has killed the child; tell our caller why.
+            outputReader.rethrowFailure();
+            errorsReader.rethrowFailure();
+            return process.exitValue();
+        } catch (InterruptedException ex) {
+            process.destroyForcibly();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Reads one of the child's outputs, passing it to a listener. If the
+     * listener throws, we kill the child (nobody's reading its output any
+     * more, so it would block forever) and keep the exception for run to
+     * throw on its caller's thread.
+     */
+    private static class OutputReader extends Thread {
+        private final Process process;
+        private final InputStream stream;
+        private final char terminator;
+        private final ProcessUtilities.LineListener listener;
+        private volatile RuntimeException failure;
+
+        OutputReader(Process process, InputStream stream, char terminator, ProcessUtilities.LineListener listener, String name) {
+            super(name);
+            this.process = process;
+            this.stream = stream;
+            this.terminator = terminator;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()))) {
+                if (terminator == '\n') {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        listener.processLine(line);
+                    }
+                } else {
+                    readTerminated(reader, terminator, listener);
+                }
+            } catch (IOException ex) {
+                // We get here when the child is killed under us. Anything else will show in its exit status.
+            } catch (RuntimeException ex) {
+                failure = ex;
+                process.destroyForcibly();
+            }
+        }
+
+        void rethrowFailure() {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Passes each terminated piece of the output to the listener as soon as
+     * we see its terminator, without the terminator. Like readLine, we pass
+     * on anything left unterminated at the end.
+     */
+    private static void readTerminated(Reader reader, char terminator, ProcessUtilities.LineListener listener) throws IOException {
+        StringBuilder piece = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < count; ++i) {
+                if (buffer[i] == terminator) {
+                    piece.append(buffer, start, i - start);
+                    listener.processLine(piece.toString());
+                    piece.setLength(0);
+                    start = i + 1;
+                }
+            }
+            piece.append(buffer, start, count - start);
+        }
+        if (piece.length() > 0) {
+            listener.processLine(piece.toString());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package e.scm;
+
+import java.util.concurrent.*;
+
+/**
+ * Lets long-running back-end work notice that nobody wants its result any
+ * more. BackEndWorker makes its task's token current for the duration of
+ * 'work', so back-end methods can poll CancellationToken.getCurrent()
+ * between steps without it having to be passed down to them, and
+ * RevisionControlSystem.backQuote kills any child process that's still
+ * running when the current token is cancelled.
+ */
+public abstract class CancellationToken {
+    /**
+     * A token that's never cancelled, current on threads that aren't doing
+     * work for a BackEndTask.
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ThreadLocal<CancellationToken> current = new ThreadLocal<CancellationToken>() {
+        @Override
+        protected CancellationToken initialValue() {
+            return NONE;
+        }
+    };
+
+    public abstract boolean isCancelled();
+
+    /**
+     * Throws CancellationException if this token has been cancelled. Code
+     * that polls between steps should call this rather than return a
+     * half-finished result.
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    public static CancellationToken getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Wraps the given computation so that it runs with this thread's
+     * current token, wherever it runs. Use this for work handed to another
+     * thread, such as one of a BackEndScheduler's.
+     */
+    public static <T> Callable<T> inheritCurrent(final Callable<T> callable) {
+        final CancellationToken token = getCurrent();
+        return new Callable<T>() {
+            public T call() throws Exception {
+                CancellationToken previousToken = setCurrent(token);
+                try {
+                    return callable.call();
+                } finally {
+                    setCurrent(previousToken);
+                }
+            }
+        };
+    }
+
+    /**
+     * Makes the given token current on this thread, returning the one it
+     * replaces so that the caller can restore it.
+     */
+    static CancellationToken setCurrent(CancellationToken token) {
+        CancellationToken previous = current.get();
+        current.set(token);
+        return previous;
+    }
+}
@@ -55,7 +55,7 @@ public class ChangeSetWindow extends MainFrame {
         splitPane.setDividerLocation(fileList.getPreferredScrollableViewportSize().height);
         
         // Fill the combo box without blocking the EDT; repository access may take some time.
-        new ComboBoxFiller(initialFilePath, initialFileRevision).execute();
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new ComboBoxFiller(initialFilePath, initialFileRevision));
     }
     
     private JComponent makeButtonPanel() {
@@ -88,17 +88,23 @@ public class ChangeSetWindow extends MainFrame {
             reassessShowPatchAvailability();
             return;
         }
-        new Thread(new RevisionListWorker(backEnd, revisionListTask, filePath, fileList) {
+        // There can be thousands of these, so they mustn't get in the way of anything the user asks for.
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.PREFETCH, new RevisionListWorker(backEnd, revisionListTask, filePath, fileList) {
             public void reportFileRevisions(RevisionListModel fileRevisions) {
                 filePathToRevisionsMap.put(filePath, fileRevisions);
                 reassessShowPatchAvailability();
             }
-        }).start();
+        });
     }
     
     private void showPatch() {
-        StringBuilder patch = new StringBuilder();
+        // Work out what to show on the event dispatch thread, where our models live, but leave the diffs to a worker.
+        final StringBuilder patch = new StringBuilder();
         patch.append("# " + getTitle() + "\n");
+        final ArrayList<String> comments = new ArrayList<>();
+        final ArrayList<ChangeSetItem> changeSetItems = new ArrayList<>();
+        final ArrayList<Revision> oldRevisions = new ArrayList<>();
+        final ArrayList<Revision> newRevisions = new ArrayList<>();
         ListModel<ChangeSetItem> model = fileList.getModel();
         String previousComment = "";
         for (int i = 0; i < model.getSize(); ++i) {
@@ -111,25 +117,40 @@ public class ChangeSetWindow extends MainFrame {
             
             // FIXME: we should display the comments for all of the revisions between oldRevision and newRevision.
             String comment = newRevision.comment;
+            StringBuilder commentLines = new StringBuilder();
             if (comment.equals(previousComment) == false) {
                 for (String commentLine : comment.split("\n")) {
-                    patch.append("# " + commentLine + "\n");
+                    commentLines.append("# " + commentLine + "\n");
                 }
             }
             previousComment = comment;
             
-            // FIXME: we shouldn't do this on the EDT.
-            ArrayList<String> lines = patchView.getPatchLines(backEnd, oldRevision, newRevision, changeSetItem.filename, statusReporter);
-            for (String line : lines) {
-                patch.append(line + "\n");
-            }
+            comments.add(commentLines.toString());
+            changeSetItems.add(changeSetItem);
+            oldRevisions.add(oldRevision);
+            newRevisions.add(newRevision);
         }
         
-        PTextArea textArea = JFrameUtilities.makeTextArea(patch.toString());
-        textArea.setTextStyler(new PPatchTextStyler(textArea));
-        JFrame frame = JFrameUtilities.makeScrollableContentWindow("Patch for " + getTitle(), textArea);
-        frame.setLocationRelativeTo(this);
-        frame.setVisible(true);
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new BackEndWorker(new BackEndTask("Getting patch...", statusReporter)) {
+            public void work() {
+                for (int i = 0; i < changeSetItems.size(); ++i) {
+                    CancellationToken.getCurrent().throwIfCancelled();
+                    patch.append(comments.get(i));
+                    ArrayList<String> lines = patchView.getPatchLines(backEnd, oldRevisions.get(i), newRevisions.get(i), changeSetItems.get(i).filename);
+                    for (String line : lines) {
+                        patch.append(line + "\n");
+                    }
+                }
+            }
+            
+            public void finish() {
+                PTextArea textArea = JFrameUtilities.makeTextArea(patch.toString());
+                textArea.setTextStyler(new PPatchTextStyler(textArea));
+                JFrame frame = JFrameUtilities.makeScrollableContentWindow("Patch for " + getTitle(), textArea);
+                frame.setLocationRelativeTo(ChangeSetWindow.this);
+                frame.setVisible(true);
+            }
+        });
     }
     
     private class ComboBoxFiller extends SwingWorker<List<ChangeSetItem>, Object> {
@@ -175,7 +196,7 @@ public class ChangeSetWindow extends MainFrame {
                     // For systems like BitKeeper, the newRevision of this file isn't necessarily the same as the Revision of the file we're showing the change set for.
                     Revision oldRevision = new Revision(changeSetItem.oldRevision, "pseudo revision");
                     Revision newRevision = new Revision(changeSetItem.newRevision, "pseudo revision");
-                    // FIXME: we shouldn't do this on the EDT.
+                    // This cancels the patch we were showing if it hasn't finished loading.
                     patchView.showPatch(backEnd, oldRevision, newRevision, changeSetItem.filename, statusReporter);
                     // FIXME: PatchView.showPatch produces an empty patch for a new file. (And for a deleted file?) If we got more information from the back-end we'd at least know that we were dealing with an 'A' (or 'D') file rather than an 'M' file.
                 }
@@ -7,6 +7,7 @@ import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import javax.swing.*;
 import javax.swing.event.*;
@@ -21,16 +22,150 @@ public class CheckInWindow extends MainFrame {
     private StatusesTableModel statusesTableModel;
     private PTextArea checkInCommentArea;
     private PTextArea patchView;
+    // The parsed lines of the patch in patchView, or null if it's showing something else.
+    private List<Patch.Line> patchViewLines;
+    // Where each of those lines starts in patchView's text.
+    private int[] patchViewLineStarts;
+    // The hunks (identified by their first line) whose changed words we've highlighted.
+    private HashSet<Integer> highlightedHunks = new HashSet<>();
     private boolean ignoreWhiteSpace;
     private StatusReporter statusReporter;
     private JButton commitButton;
     
+    // How often we rescan everything, in case the watcher missed something (such as a "git add" from the command line).
+    private static final int FULL_RESCAN_INTERVAL_MS = 5 * 60 * 1000;
+    
+    private WorkingCopyWatcher watcher;
+    private javax.swing.Timer fullRescanTimer;
+    // Files the watcher's seen change, that we've yet to ask the back-end about.
+    private final Object statusRefreshLock = new Object();
+    private HashSet<String> changedFilenames = new HashSet<>();
+    private boolean isFullRescanNeeded = false;
+    private boolean isStatusRefreshQueued = false;
+    
+    // While the statuses table is being filled, the commit button and comment area stay disabled.
+    private boolean isLoadingStatuses = false;
+    // What the watcher's seen change while the statuses table was being filled; null means everything.
+    private ArrayList<Set<String>> changesWhileLoadingStatuses = new ArrayList<>();
+    // How many streamed statuses we collect, or for how long, before adding them to the table.
+    private static final int STATUS_BATCH_SIZE = 256;
+    private static final long STATUS_BATCH_MS = 100;
+    
     public CheckInWindow(final RevisionControlSystem backEnd) {
         this.backEnd = backEnd;
         setTitle(FileUtilities.getUserFriendlyName(backEnd.getRoot().toString()));
         makeUserInterface();
         updateFileStatuses();
         initQuitMonitoring();
+        initStatusRefreshing();
+    }
+    
+    /**
+     * Keeps the statuses table up to date as the user works, asking the
+     * back-end about just the files that change rather than rescanning
+     * everything. We still rescan occasionally, but only as a safety net.
+     */
+    private void initStatusRefreshing() {
+        if (backEnd.canGetStatusesOfPaths() == false) {
+            // Every change would cost the status of everything, so the user will have to ask.
+            return;
+        }
+        watcher = new WorkingCopyWatcher(backEnd, new WorkingCopyWatcher.Listener() {
+            public void filesChanged(Set<String> filenames) {
+                refreshStatuses(filenames);
+            }
+        });
+        watcher.start();
+        fullRescanTimer = new javax.swing.Timer(FULL_RESCAN_INTERVAL_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refreshStatuses(null);
+            }
+        });
+        fullRescanTimer.start();
+    }
+    
+    /**
+     * Asks the back-end (in the background) for the statuses of the given
+     * files, or of everything if 'filenames' is null, and merges them into
+     * the table. Requests that arrive while we're busy are combined into
+     * one, and the results are merged in the order they were asked for.
+     */
+    private void refreshStatuses(Set<String> filenames) {
+        synchronized (statusRefreshLock) {
+            if (filenames == null) {
+                isFullRescanNeeded = true;
+            } else {
+                changedFilenames.addAll(filenames);
+            }
+            if (isStatusRefreshQueued) {
+                return;
+            }
+            isStatusRefreshQueued = true;
+        }
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new Runnable() {
+            public void run() {
+                while (true) {
+                    final Set<String> filenames;
+                    synchronized (statusRefreshLock) {
+                        if (isFullRescanNeeded == false && changedFilenames.isEmpty()) {
+                            isStatusRefreshQueued = false;
+                            return;
+                        }
+                        filenames = isFullRescanNeeded ? null : changedFilenames;
+                        changedFilenames = new HashSet<>();
+                        isFullRescanNeeded = false;
+                    }
+                    final List<FileStatus> statuses;
+                    try {
+                        statuses = removeScmDotFiles((filenames == null) ? backEnd.getStatuses(statusReporter) : backEnd.getStatuses(statusReporter, filenames));
+                    } catch (Exception ex) {
+                        // Some back-ends complain about files that no longer exist, and the back-end may be busy with something of the user's.
+                        Log.warn("Failed to refresh file statuses", ex);
+                        if (filenames != null) {
+                            synchronized (statusRefreshLock) {
+                                isFullRescanNeeded = true;
+                            }
+                        }
+                        continue;
+                    }
+                    Collections.sort(statuses);
+                    EventQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            mergeStatuses(statuses, filenames);
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    private void mergeStatuses(List<FileStatus> statuses, Set<String> filenames) {
+        if (statusesTableModel == null || statusesTable.isEnabled() == false) {
+            // We're about to get all the statuses afresh anyway.
+            return;
+        }
+        if (isLoadingStatuses) {
+            // The statuses we're being given may not be in the table yet, or may be about to be superseded.
+            changesWhileLoadingStatuses.add(filenames);
+            return;
+        }
+        String selectedFilename = getSelectedFilename();
+        List<FileStatus> newFiles = statusesTableModel.mergeStatuses(statuses, filenames);
+        restoreSelection(selectedFilename);
+        for (FileStatus fileStatus : newFiles) {
+            if (fileStatus.getState() == FileStatus.ADDED || fileStatus.getState() == FileStatus.REMOVED) {
+                statusesTableModel.includeFilenames(Arrays.asList(fileStatus.getName()));
+            }
+        }
+        // A file's patch can change without the file (after a "git add", say), so forget what we had for these.
+        synchronized (preparedPatches) {
+            for (FileStatus fileStatus : statuses) {
+                preparedPatches.remove(fileStatus.getName());
+            }
+        }
+        // The patch we're showing may be one that's changed.
+        updatePatchView();
+        prefetchPatchesAround(statusesTable.getSelectedRow());
     }
     
     private void initQuitMonitoring() {
@@ -47,6 +182,10 @@ public class CheckInWindow extends MainFrame {
     }
     
     private boolean handleQuit() {
+        if (watcher != null) {
+            watcher.stop();
+            fullRescanTimer.stop();
+        }
         // If we got as far as being fully initialized, save our state.
         if (statusesTableModel != null) {
             updateSavedState();
@@ -78,16 +217,10 @@ public class CheckInWindow extends MainFrame {
                 }
                 // Which line in the patch was double-clicked?
                 final int lineNumberInPatch = patchView.getNearestCoordinates(e.getPoint()).getLineIndex();
-                // Parse the patch hunk headers to work out what line in the file that is.
-                final String[] patchLines = patchView.getText().split("\n");
-                int lineNumber = 0;
-                for (int i = 0; i < lineNumberInPatch; ++i) {
-                    Patch.HunkRange hunkRange = new Patch.HunkRange(patchLines[i]);
-                    if (hunkRange.matches()) {
-                        lineNumber = hunkRange.toBegin() - 1;
-                    } else if (patchLines[i].startsWith("-") == false) {
-                        ++lineNumber;
-                    }
+                // Work out what line in the file that is. New files are shown as they are, rather than as a patch.
+                int lineNumber = lineNumberInPatch + 1;
+                if (patchViewLines != null && lineNumberInPatch < patchViewLines.size()) {
+                    lineNumber = Math.max(1, patchViewLines.get(lineNumberInPatch).toLineNumber);
                 }
                 // ...and go there.
                 editFileAtLine(lineNumber);
@@ -112,7 +245,15 @@ public class CheckInWindow extends MainFrame {
             }
         });
         
-        JSplitPane ui = new JSplitPane(JSplitPane.VERTICAL_SPLIT, topUi, ScmUtilities.makeScrollable(patchView));
+        JScrollPane patchScrollPane = ScmUtilities.makeScrollable(patchView);
+        // Only the hunks the user can see get their changed words highlighted, so look again whenever they scroll.
+        patchScrollPane.getViewport().addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                highlightVisibleChangedWords();
+            }
+        });
+        
+        JSplitPane ui = new JSplitPane(JSplitPane.VERTICAL_SPLIT, topUi, patchScrollPane);
         ui.setBorder(null);
         
         commitButton = new JButton("Commit");
@@ -180,6 +321,7 @@ public class CheckInWindow extends MainFrame {
             public void valueChanged(ListSelectionEvent e) {
                 if (e.getValueIsAdjusting() == false) {
                     updatePatchView();
+                    prefetchPatchesAround(statusesTable.getSelectedRow());
                 }
             }
         });
@@ -229,24 +371,281 @@ public class CheckInWindow extends MainFrame {
                     }
                 }
             } else {
-                WaitCursor waitCursor = new WaitCursor(this, "Getting patch...", statusReporter);
-                waitCursor.start();
-                try {
-                    // TODO: if we could get the content for the head/ToT version of this file, we could use PatchDialog.runDiff to get intra-line diffs.
-                    Patch patch = new Patch(backEnd, filename, null, null, false, ignoreWhiteSpace);
-                    List<String> annotatedPatchLines = PatchDialog.annotatePatchUsingTags(patch.getPatchLines());
-                    FileType.guessFileType(filename, /*TODO:current content*/"").configureTextArea(patchView);
-                    PatchDialog.showDiffInTextArea(patchView, annotatedPatchLines);
-                } finally {
-                    waitCursor.stop();
+                final FutureTask<List<String>> patch = getPreparedPatch(filename, updateTime, ignoreWhiteSpace);
+                if (patch.isDone()) {
+                    showPreparedPatch(filename, patch);
+                    return;
                 }
+                // Either it's still being prefetched, or it hasn't been started yet. Either way, the user's waiting for it now.
+                statusReporter.setMessage("Getting patch...");
+                backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new Runnable() {
+                    public void run() {
+                        // This runs the preparation here if it's still queued, and otherwise does nothing...
+                        patch.run();
+                        // ...in which case we wait here for whoever's running it, rather than on the event dispatch thread.
+                        try {
+                            patch.get();
+                        } catch (Exception ex) {
+                            // showPreparedPatch will report any failure.
+                        }
+                        EventQueue.invokeLater(new Runnable() {
+                            public void run() {
+                                // Show it unless the user's moved on, or the file's changed since we asked.
+                                if (path.equals(lastPatchViewFile) && updateTime.equals(lastPatchViewUpdateTime)) {
+                                    showPreparedPatch(filename, patch);
+                                }
+                            }
+                        });
+                    }
+                });
             }
         } catch (IOException ex) {
             Log.warn("Failed to update patch view", ex);
         }
     }
     
+    private void showPreparedPatch(String filename, FutureTask<List<String>> patch) {
+        updateStatusLine();
+        List<String> annotatedPatchLines;
+        try {
+            annotatedPatchLines = patch.get();
+        } catch (CancellationException | InterruptedException ex) {
+            // We got new statuses while it was being prepared, so there'll be another patch along shortly.
+            return;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CancellationException) {
+                return;
+            }
+            // Let the user try again by reselecting the file.
+            lastPatchViewUpdateTime = FileTime.fromMillis(0);
+            SimpleDialog.showDetails(this, "Getting patch...", ex.getCause());
+            return;
+        }
+        FileType.guessFileType(filename, /*TODO:current content*/"").configureTextArea(patchView);
+        PatchDialog.showDiffInTextArea(patchView, annotatedPatchLines);
+        patchViewLines = Patch.parseLines(annotatedPatchLines);
+        patchViewLineStarts = findLineStarts(patchView.getTextBuffer());
+        highlightVisibleChangedWords();
+    }
+    
+    /**
+     * A patch for one of the files in the statuses table, prepared (or being
+     * prepared) in the background.
+     */
+    private static class PreparedPatch {
+        final FileTime modificationTime;
+        final boolean ignoreWhiteSpace;
+        final FutureTask<List<String>> annotatedLines;
+        
+        PreparedPatch(FileTime modificationTime, boolean ignoreWhiteSpace, FutureTask<List<String>> annotatedLines) {
+            this.modificationTime = modificationTime;
+            this.ignoreWhiteSpace = ignoreWhiteSpace;
+            this.annotatedLines = annotatedLines;
+        }
+    }
+    
+    // How many rows before and after the selection we prepare patches for, and how many prepared patches we keep.
+    // A vendor drop can have tens of thousands of modified files, and we don't want a diff of each in the heap.
+    private static final int PREFETCH_ROWS_BEFORE = 8;
+    private static final int PREFETCH_ROWS_AFTER = 32;
+    private static final int MAX_PREPARED_PATCHES = 128;
+    
+    // The patches for files in the statuses table, keyed by filename, most recently used last.
+    // Each is only good for the modification time and white space setting it was made with.
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, PreparedPatch> preparedPatches = new LinkedHashMap<String, PreparedPatch>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedPatch> eldest) {
+            return size() > MAX_PREPARED_PATCHES;
+        }
+    };
+    // Incremented whenever we get new statuses, since a commit or a revert can change a patch without touching the file.
+    private volatile int patchGeneration = 0;
+    // Incremented whenever the selection moves, so that prefetches for rows the user's left behind don't hold up the new ones.
+    private volatile int prefetchGeneration = 0;
+    
+    /**
+     * Returns the preparation of the patch for the given file as it was at
+     * the given modification time. If we haven't started one, this returns
+     * a new one which it's up to the caller to run.
+     */
+    private FutureTask<List<String>> getPreparedPatch(final String filename, FileTime modificationTime, final boolean ignoreWhiteSpace) {
+        synchronized (preparedPatches) {
+            PreparedPatch preparedPatch = preparedPatches.get(filename);
+            if (preparedPatch != null && preparedPatch.modificationTime.equals(modificationTime) && preparedPatch.ignoreWhiteSpace == ignoreWhiteSpace && hasFailed(preparedPatch.annotatedLines) == false) {
+                return preparedPatch.annotatedLines;
+            }
+            final int generation = patchGeneration;
+            FutureTask<List<String>> annotatedLines = new FutureTask<>(new Callable<List<String>>() {
+                public List<String> call() {
+                    // Give up if we get new statuses before we're done: nobody will want this patch.
+                    CancellationToken previousToken = CancellationToken.setCurrent(new CancellationToken() {
+                        public boolean isCancelled() {
+                            return patchGeneration != generation;
+                        }
+                    });
+                    try {
+                        CancellationToken.getCurrent().throwIfCancelled();
+                        Patch patch = new Patch(backEnd, filename, null, null, false, ignoreWhiteSpace);
+                        List<String> contents = PatchAnnotator.canAnnotate(filename) ? backEnd.getFileContents(Revision.LOCAL_REVISION, filename) : null;
+                        return PatchAnnotator.annotate(patch, filename, contents);
+                    } finally {
+                        CancellationToken.setCurrent(previousToken);
+                    }
+                }
+            });
+            preparedPatches.put(filename, new PreparedPatch(modificationTime, ignoreWhiteSpace, annotatedLines));
+            return annotatedLines;
+        }
+    }
+    
+    private static boolean hasFailed(FutureTask<List<String>> future) {
+        if (future.isDone() == false) {
+            return false;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (Exception ex) {
+            return true;
+        }
+    }
+    
+    /**
+     * Forgets all the patches we've prepared, since we've got new statuses.
+     */
+    private void forgetPreparedPatches() {
+        synchronized (preparedPatches) {
+            ++patchGeneration;
+            preparedPatches.clear();
+        }
+        // The patch we're showing may be out of date too, even if the file isn't.
+        lastPatchViewUpdateTime = FileTime.fromMillis(0);
+    }
+    
+    /**
+     * Prepares the patches for the files in the rows around the given one in
+     * the background, so that most of the time there's no wait when the user
+     * moves to the next file. We start with the given row and work down the
+     * table, as the user most likely will, then do the few rows above it.
+     */
+    private void prefetchPatchesAround(int selectedRow) {
+        if (statusesTableModel == null || selectedRow == -1) {
+            return;
+        }
+        final boolean ignoreWhiteSpace = this.ignoreWhiteSpace;
+        final int generation = patchGeneration;
+        final int prefetch = ++prefetchGeneration;
+        int rowCount = statusesTableModel.getRowCount();
+        int endRow = Math.min(rowCount, selectedRow + PREFETCH_ROWS_AFTER);
+        for (int row = selectedRow; row < endRow; ++row) {
+            prefetchPatch(statusesTableModel.getFileStatus(row), ignoreWhiteSpace, generation, prefetch);
+        }
+        for (int row = selectedRow - 1; row >= 0 && row >= selectedRow - PREFETCH_ROWS_BEFORE; --row) {
+            prefetchPatch(statusesTableModel.getFileStatus(row), ignoreWhiteSpace, generation, prefetch);
+        }
+    }
+    
+    private void prefetchPatch(FileStatus status, final boolean ignoreWhiteSpace, final int generation, final int prefetch) {
+        if (status.getState() != FileStatus.MODIFIED && status.getState() != FileStatus.ADDED) {
+            return;
+        }
+        final String filename = status.getName();
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.PREFETCH, new Runnable() {
+            public void run() {
+                if (patchGeneration != generation || prefetchGeneration != prefetch) {
+                    return;
+                }
+                try {
+                    FileTime modificationTime = Files.getLastModifiedTime(backEnd.getRoot().resolve(filename));
+                    getPreparedPatch(filename, modificationTime, ignoreWhiteSpace).run();
+                } catch (IOException ex) {
+                    // The file's gone. If the user selects it, they'll find out.
+                }
+            }
+        });
+    }
+    
+    private static int[] findLineStarts(CharSequence text) {
+        ArrayList<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < text.length(); ++i) {
+            if (text.charAt(i) == '\n') {
+                starts.add(i + 1);
+            }
+        }
+        int[] result = new int[starts.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = starts.get(i);
+        }
+        return result;
+    }
+    
+    /**
+     * Highlights the changed words (see IntraLineDiff) in any hunk of the
+     * patch that's on the screen, if we haven't already.
+     */
+    private void highlightVisibleChangedWords() {
+        if (patchViewLines == null || patchViewLines.isEmpty()) {
+            return;
+        }
+        Rectangle visibleRect = patchView.getVisibleRect();
+        int firstLine = patchView.getNearestCoordinates(new Point(0, visibleRect.y)).getLineIndex();
+        int lastLine = Math.min(patchView.getNearestCoordinates(new Point(0, visibleRect.y + visibleRect.height)).getLineIndex(), patchViewLines.size() - 1);
+        for (int line = firstLine; line <= lastLine; ++line) {
+            Patch.Hunk hunk = patchViewLines.get(line).hunk;
+            if (hunk == null) {
+                continue;
+            }
+            int hunkFirstLine = line;
+            while (hunkFirstLine > 0 && isInHunk(patchViewLines.get(hunkFirstLine - 1), hunk)) {
+                --hunkFirstLine;
+            }
+            int hunkEndLine = line + 1;
+            while (hunkEndLine < patchViewLines.size() && isInHunk(patchViewLines.get(hunkEndLine), hunk)) {
+                ++hunkEndLine;
+            }
+            line = hunkEndLine - 1;
+            if (highlightedHunks.contains(hunkFirstLine)) {
+                continue;
+            }
+            final List<Patch.Line> currentPatchViewLines = patchViewLines;
+            int[][] spans = IntraLineDiff.getSpans(patchViewLines.subList(hunkFirstLine, hunkEndLine), new Runnable() {
+                public void run() {
+                    if (patchViewLines == currentPatchViewLines) {
+                        highlightVisibleChangedWords();
+                    }
+                }
+            });
+            if (spans == null) {
+                continue;
+            }
+            highlightedHunks.add(hunkFirstLine);
+            for (int i = 0; i < spans.length; ++i) {
+                if (spans[i] == null || hunkFirstLine + i >= patchViewLineStarts.length) {
+                    continue;
+                }
+                Color color = (patchViewLines.get(hunkFirstLine + i).kind == Patch.Line.Kind.FROM) ? IntraLineDiff.REMOVED_WORD_COLOR : IntraLineDiff.ADDED_WORD_COLOR;
+                // Span offsets don't count the patch's +/- prefix.
+                int lineStart = patchViewLineStarts[hunkFirstLine + i] + 1;
+                for (int j = 0; j < spans[i].length; j += 2) {
+                    patchView.addHighlight(new PPatchTextStyler.PatchHighlight(patchView, lineStart + spans[i][j], lineStart + spans[i][j + 1], color));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tests whether a line belongs to the given hunk. A "\ No newline at end
+     * of file" line doesn't end the hunk it's in.
+     */
+    private static boolean isInHunk(Patch.Line line, Patch.Hunk hunk) {
+        return line.hunk == hunk || line.isNoNewlineMarker();
+    }
+    
     private void resetPatchView() {
+        patchViewLines = null;
+        highlightedHunks.clear();
         patchView.setText("");
         patchView.removeHighlights(PPatchTextStyler.PatchHighlight.HIGHLIGHTER_NAME);
         patchView.setCaretPosition(0);
@@ -307,6 +706,8 @@ public class CheckInWindow extends MainFrame {
                 actions.add(new ShowHistoryAction());
                 actions.add(null);
                 actions.add(new RefreshListAction());
+                actions.add(null);
+                actions.add(new BackEndActivityWindow.ShowAction());
             }
             
             // It doesn't make sense to talk about discarding changes to an unmodified file.
@@ -349,10 +750,10 @@ public class CheckInWindow extends MainFrame {
         final List<FileStatus> excluded = statusesTableModel.getExcludedFiles();
         
         setEntireUiEnabled(false);
-        new Thread(new BlockingWorker(statusesTable, "Committing changes...", statusReporter) {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new BlockingWorker(statusesTable, "Committing changes...", statusReporter) {
             public void work() {
                 try {
-                    backEnd.commit(comment, included, excluded);
+                    backEnd.commit(statusReporter, comment, included, excluded);
                 } catch (RuntimeException ex) {
                     // If the commit partly succeeded, then a retry won't do the right thing unless we've updated our state.
                     updateFileStatuses();
@@ -375,7 +776,7 @@ public class CheckInWindow extends MainFrame {
                 discardSavedState();
                 updateFileStatuses();
             }
-        }).start();
+        });
     }
     
     private void discardSavedState() {
@@ -388,7 +789,7 @@ public class CheckInWindow extends MainFrame {
      */
     private void discardChanges() {
         setEntireUiEnabled(false);
-        new Thread(new BlockingWorker(statusesTable, "Discarding changes...", statusReporter) {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new BlockingWorker(statusesTable, "Discarding changes...", statusReporter) {
             @Override
             public void work() {
                 for (int row : statusesTable.getSelectedRows()) {
@@ -433,7 +834,7 @@ public class CheckInWindow extends MainFrame {
                 super.reportException(ex);
                 setEntireUiEnabled(true);
             }
-        }).start();
+        });
     }
     
     /**
@@ -480,11 +881,6 @@ public class CheckInWindow extends MainFrame {
         }
     }
     
-    private void readSavedFilenames() {
-        String[] filenames = readSavedStateFile(getSavedFilenamesFile()).split("\n");
-        statusesTableModel.includeFilenames(Arrays.asList(filenames));
-    }
-    
     private String readSavedStateFile(File file) {
         if (file.exists() == false) {
             return "";
@@ -532,43 +928,40 @@ public class CheckInWindow extends MainFrame {
     
     private void updateFileStatuses() {
         setEntireUiEnabled(false);
-        new Thread(new BlockingWorker(statusesTable, "Getting file statuses...", statusReporter) {
-            List<FileStatus> statuses;
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new BlockingWorker(statusesTable, "Getting file statuses...", statusReporter) {
+            final StatusesTableModel model = new StatusesTableModel(Collections.<FileStatus>emptyList());
             Exception failure;
             
             public void work() {
                 if (statusesTableModel != null) {
                     updateSavedState();
                 }
+                final HashSet<String> savedFilenames = new HashSet<>(Arrays.asList(readSavedStateFile(getSavedFilenamesFile()).split("\n")));
                 EventQueue.invokeLater(new Runnable() {
                     public void run() {
                         commitButton.setEnabled(false);
+                        showStatusesTableModel(model);
                     }
                 });
+                StatusBatcher listener = new StatusBatcher(model, savedFilenames, getWaitCursor());
                 try {
-                    statuses = backEnd.getStatuses(statusReporter);
+                    backEnd.streamStatuses(statusReporter, listener);
                 } catch (Exception ex) {
-                    statuses = new ArrayList<FileStatus>();
                     failure = ex;
                 }
-                statuses = removeScmDotFiles(statuses);
-                Collections.sort(statuses);
+                // Whatever we were told before any failure is still worth showing.
+                listener.flush();
             }
             
             public void finish() {
-                statusesTableModel = new StatusesTableModel(statuses);
-                statusesTable.setModel(statusesTableModel);
-                statusesTable.setEnabled(true);
-                statusesTableModel.initColumnWidths(statusesTable);
-                statusesTableModel.addTableModelListener(new StatusesTableModelListener());
-                statusesTableModel.fireTableDataChanged();
-                readSavedFilenames();
-                configureCheckInCommentArea(true);
-                for (FileStatus fileStatus : statuses) {
-                    if (fileStatus.getState() == FileStatus.ADDED || fileStatus.getState() == FileStatus.REMOVED) {
-                        statusesTableModel.includeFilenames(Arrays.asList(fileStatus.getName()));
-                    }
+                if (model != statusesTableModel) {
+                    // A later update has replaced us.
+                    return;
                 }
+                isLoadingStatuses = false;
+                commitButton.setEnabled(statusesTableModel.isAtLeastOneFileIncluded());
+                configureCheckInCommentArea(true);
+                updateStatusLine();
                 
                 /* Give some feedback to demonstrate we're not broken if there's nothing to show. */
                 boolean nothingModified = (statusesTableModel.getRowCount() == 0);
@@ -576,24 +969,142 @@ public class CheckInWindow extends MainFrame {
                     resetPatchView();
                     patchView.setText("(Nothing to check in.)");
                 }
-                patchView.setEnabled(true);
                 
                 if (failure != null) {
                     SimpleDialog.showDetails(CheckInWindow.this, "Back-End Problem", failure);
                 }
                 
-                /*
-                 * If a user's working from the keyboard, they probably want
-                 * to see the first patch and have the focus in the statuses
-                 * table, so they can start reviewing changes.
-                 */
-                if (statusesTable.getRowCount() != 0) {
-                    int chosenRow = statusesTableModel.chooseDefaultSelectedRow();
-                    statusesTable.getSelectionModel().setSelectionInterval(chosenRow, chosenRow);
-                    statusesTable.requestFocusInWindow();
+                forgetPreparedPatches();
+                if (statusesTable.getSelectedRow() == -1) {
+                    selectRow(statusesTableModel.chooseDefaultSelectedRow());
+                }
+                prefetchPatchesAround(statusesTable.getSelectedRow());
+                
+                // Catch up on anything the watcher saw change while we were busy.
+                for (Set<String> filenames : changesWhileLoadingStatuses) {
+                    refreshStatuses(filenames);
                 }
+                changesWhileLoadingStatuses.clear();
+            }
+        });
+    }
+    
+    /**
+     * Replaces the statuses table's model with a new (empty) one that
+     * statuses will be streamed into, and lets the user at the table.
+     */
+    private void showStatusesTableModel(StatusesTableModel model) {
+        isLoadingStatuses = true;
+        statusesTableModel = model;
+        statusesTable.setModel(statusesTableModel);
+        statusesTable.setEnabled(true);
+        statusesTableModel.initColumnWidths(statusesTable);
+        statusesTableModel.addTableModelListener(new StatusesTableModelListener());
+        statusesTableModel.fireTableDataChanged();
+        patchView.setEnabled(true);
+        updateStatusLine();
+    }
+    
+    /**
+     * Passes streamed statuses to the event dispatch thread every so often,
+     * so the user can start reviewing a big tree's changes while we look
+     * for the rest, without an event per file.
+     */
+    private class StatusBatcher implements RevisionControlSystem.StatusListener {
+        private final StatusesTableModel model;
+        private final Set<String> savedFilenames;
+        private final WaitCursor waitCursor;
+        private ArrayList<FileStatus> batch = new ArrayList<>();
+        private long lastFlushTime = System.currentTimeMillis();
+        
+        StatusBatcher(StatusesTableModel model, Set<String> savedFilenames, WaitCursor waitCursor) {
+            this.model = model;
+            this.savedFilenames = savedFilenames;
+            this.waitCursor = waitCursor;
+        }
+        
+        public void statusFound(FileStatus fileStatus) {
+            if (fileStatus.getName().startsWith(".e.scm.")) {
+                // See removeScmDotFiles.
+                return;
+            }
+            batch.add(fileStatus);
+            if (batch.size() >= STATUS_BATCH_SIZE || System.currentTimeMillis() - lastFlushTime > STATUS_BATCH_MS) {
+                flush();
+            }
+        }
+        
+        void flush() {
+            if (batch.isEmpty() == false) {
+                final ArrayList<FileStatus> statuses = batch;
+                batch = new ArrayList<>();
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        addStatuses(model, statuses, savedFilenames, waitCursor);
+                    }
+                });
             }
-        }).start();
+            lastFlushTime = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Adds a batch of streamed statuses to the table, including the files
+     * that were included last time, and those that have been added or
+     * removed (which the user almost certainly wants to commit).
+     */
+    private void addStatuses(StatusesTableModel model, List<FileStatus> statuses, Set<String> savedFilenames, WaitCursor waitCursor) {
+        if (model != statusesTableModel) {
+            // A later update has replaced us.
+            return;
+        }
+        boolean isFirstBatch = (statusesTableModel.getRowCount() == 0);
+        String selectedFilename = getSelectedFilename();
+        statusesTableModel.addStatuses(statuses);
+        restoreSelection(selectedFilename);
+        ArrayList<String> includedFilenames = new ArrayList<>();
+        for (FileStatus fileStatus : statuses) {
+            if (savedFilenames.contains(fileStatus.getName()) || fileStatus.getState() == FileStatus.ADDED || fileStatus.getState() == FileStatus.REMOVED) {
+                includedFilenames.add(fileStatus.getName());
+            }
+        }
+        statusesTableModel.includeFilenames(includedFilenames);
+        if (isFirstBatch) {
+            // Let the user start reviewing without waiting for the rest.
+            waitCursor.unblock();
+            selectRow(statusesTableModel.chooseDefaultSelectedRow());
+        }
+    }
+    
+    private String getSelectedFilename() {
+        int row = statusesTable.getSelectedRow();
+        return (row != -1) ? statusesTableModel.getFileStatus(row).getName() : null;
+    }
+    
+    /**
+     * Reselects the given file if a change to the statuses table lost the
+     * selection, as StatusesTableModel's changes to many rows at once do.
+     */
+    private void restoreSelection(String filename) {
+        if (filename == null || statusesTable.getSelectedRow() != -1) {
+            return;
+        }
+        int row = statusesTableModel.getRow(filename);
+        if (row != -1) {
+            statusesTable.getSelectionModel().setSelectionInterval(row, row);
+        }
+    }
+    
+    /**
+     * If a user's working from the keyboard, they probably want to see the
+     * first patch and have the focus in the statuses table, so they can
+     * start reviewing changes.
+     */
+    private void selectRow(int row) {
+        if (statusesTable.getRowCount() != 0) {
+            statusesTable.getSelectionModel().setSelectionInterval(row, row);
+            statusesTable.requestFocusInWindow();
+        }
     }
     
     private static final String INSTRUCTIONS = "\n 1. Check all those files in the list to the left that you wish to commit.\n\n 2. Edit the resulting comment in this area.\n\n 3. Click the \"Commit\" button when done.";
@@ -601,11 +1112,11 @@ public class CheckInWindow extends MainFrame {
     private class StatusesTableModelListener implements TableModelListener {
         public void tableChanged(TableModelEvent e) {
             boolean haveFiles = statusesTableModel.isAtLeastOneFileIncluded();
-            commitButton.setEnabled(haveFiles);
+            commitButton.setEnabled(haveFiles && isLoadingStatuses == false);
             
             updateStatusLine();
 
-            if (checkInCommentArea.isEnabled() != haveFiles) {
+            if (isLoadingStatuses == false && checkInCommentArea.isEnabled() != haveFiles) {
                 configureCheckInCommentArea(false);
             }
             
@@ -675,13 +1186,15 @@ public class CheckInWindow extends MainFrame {
     }
     
     private boolean isAnIncludedFilename(String filename) {
-        return statusesTableModel.getIncludedFilenames().contains(filename);
+        return statusesTableModel.isIncludedFilename(filename);
     }
     
     private void updateStatusLine() {
         String message = "";
         int rowCount = statusesTableModel.getRowCount();
-        if (rowCount > 1) {
+        if (isLoadingStatuses) {
+            message = "Getting file statuses... (" + StringUtilities.pluralize(rowCount, "file", "files") + " so far)";
+        } else if (rowCount > 1) {
             message = statusesTableModel.getIncludedFileCount() + " of " + StringUtilities.pluralize(rowCount, "file", "files") + " will be committed.";
         }
         statusReporter.setMessage(message);
@@ -2,6 +2,7 @@ package e.scm;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.regex.*;
 import e.util.*;
 
@@ -39,6 +40,12 @@ public class Cvs extends RevisionControlSystem {
         return result.toArray(new String[result.size()]);
     }
 
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        // -kk to match our diffs, and -Q so that cvs doesn't chatter on standard error.
+        return new String[] { "cvs", "-Q", "update", "-p", "-kk", "-r", revision.number, filename };
+    }
+
     public String[] getLogCommand(String filename) {
         return new String[] { "cvs", "log", filename };
     }
@@ -55,45 +62,66 @@ public class Cvs extends RevisionControlSystem {
     //date: 2006-07-28 07:58:56 -0700;  author: nigels;  state: Exp;  lines: +19 -2
     private static final Pattern LOG_PATTERN = Pattern.compile("^date: (\\d\\d\\d\\d)[-/](\\d\\d)[-/](\\d\\d) (\\d{2}:\\d{2}:\\d{2}(?: [-+]\\d{4}));\\s+author: ([^;]+);\\s+.*");
 
-    public RevisionListModel parseLog(List<String> linesList) {
-        String[] lines = linesList.toArray(new String[linesList.size()]);
-
-        String separator = "----------------------------";
-        String endMarker = "=============================================================================";
-        int i = 0;
-        for (; i < lines.length && lines[i].equals(separator) == false; ++i) {
-            // Skip header.
-        }
-        
-        RevisionListModel result = new RevisionListModel();
-        while (i < lines.length && lines[i].equals(endMarker) == false) {
-            if (lines[i].equals(separator)) {
-                i++;
-                continue;
+    private static final String LOG_SEPARATOR = "----------------------------";
+    private static final String LOG_END_MARKER = "=============================================================================";
+    
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return new LogParser(listener) {
+            private boolean inHeader = true;
+            private boolean isFinished = false;
+            private boolean expectingDate = false;
+            private String number;
+            private String author;
+            private String date;
+            private String time;
+            // Non-null while we're reading a comment.
+            private StringBuilder comment = null;
+            
+            public void processLine(String line) {
+                if (isFinished) {
+                    return;
+                } else if (inHeader) {
+                    // Skip header.
+                    inHeader = (line.equals(LOG_SEPARATOR) == false);
+                } else if (line.equals(LOG_END_MARKER)) {
+                    finish();
+                    isFinished = true;
+                } else if (comment != null) {
+                    if (line.equals(LOG_SEPARATOR)) {
+                        finish();
+                    } else {
+                        comment.append(line);
+                        comment.append("\n");
+                    }
+                } else if (expectingDate) {
+                    expectingDate = false;
+                    Matcher matcher = LOG_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        author = matcher.group(5);
+                        date = matcher.group(1) + "-" + matcher.group(2) + "-" + matcher.group(3);
+                        time = matcher.group(4);
+                        comment = new StringBuilder();
+                    }
+                } else if (line.equals(LOG_SEPARATOR) == false) {
+                    number = line.substring("revision ".length());
+                    expectingDate = true;
+                }
             }
-            String number = lines[i++];
-            number = number.substring("revision ".length());
-            Matcher matcher = LOG_PATTERN.matcher(lines[i++]);
-            if (matcher.matches()) {
-                String author = matcher.group(5);
-                String date = matcher.group(1) + "-" + matcher.group(2) + "-" + matcher.group(3);
-                String time = matcher.group(4);
-                StringBuilder comment = new StringBuilder();
-                while (i < lines.length && lines[i].equals(endMarker) == false && lines[i].equals(separator) == false) {
-                    comment.append(lines[i++]);
-                    comment.append("\n");
+            
+            public void finish() {
+                if (comment != null) {
+                    addRevision(new Revision(number, date, time, author, comment.toString()));
+                    comment = null;
                 }
-                result.add(new Revision(number, date, time, author, comment.toString()));
             }
-        }
-        return result;
+        };
     }
 
     public boolean isLocallyModified(String filename) {
         String[] command = new String[] { "cvs", "status", filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         for (String line : lines) {
             if (line.contains("Status: Locally Modified")) {
                 return true;
@@ -102,6 +130,18 @@ public class Cvs extends RevisionControlSystem {
         return false;
     }
 
+    /**
+     * Every command talks to the server, so don't run too many at once.
+     */
+    protected int getMaxConcurrentCommands() {
+        return 2;
+    }
+    
+    @Override
+    public boolean isHistoryLocal() {
+        return false;
+    }
+    
     /**
      * CVS has no notion of a change set. We could try to read filenames out
      * of the revision comment, which in many cases will include all the other
@@ -131,11 +171,28 @@ public class Cvs extends RevisionControlSystem {
         execAndDump(command);
     }
 
+    // "cvs update" is the only way to ask CVS for statuses, so we always pass -n: asking mustn't
+    // merge the server's changes into the user's working copy behind their back.
     public List<FileStatus> getStatuses(StatusReporter statusReporter) {
-        String[] command = new String[] { "cvs", "-q", "update", "-dP" };
+        return runStatusCommand(new String[] { "cvs", "-n", "-q", "update", "-d" });
+    }
+    
+    @Override
+    public boolean canGetStatusesOfPaths() {
+        return true;
+    }
+    
+    @Override
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        ArrayList<String> command = new ArrayList<>(Arrays.asList("cvs", "-n", "-q", "update", "--"));
+        command.addAll(filenames);
+        return runStatusCommand(command.toArray(new String[command.size()]));
+    }
+    
+    private List<FileStatus> runStatusCommand(String[] command) {
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         
         ArrayList<FileStatus> statuses = new ArrayList<>();
         Pattern pattern = Pattern.compile("^(.) (.+)$");
@@ -143,7 +200,8 @@ public class Cvs extends RevisionControlSystem {
             Matcher matcher = pattern.matcher(line);
             if (matcher.find()) {
                 char state = matcher.group(1).charAt(0);
-                if (state == 'U') {
+                // Files the server has newer revisions of, which an update would fetch.
+                if (state == 'U' || state == 'P') {
                     continue;
                 }
                 
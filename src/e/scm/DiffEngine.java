@@ -0,0 +1,474 @@
+package e.scm;
+
+import java.util.*;
+
+/**
+ * Compares two versions of a file, line by line, and writes the differences
+ * as a unified diff that Patch can parse, just as if a back-end's diff had
+ * produced it. Doing it ourselves means the algorithm, the amount of context
+ * and the treatment of white space are the same whatever the back-end, and
+ * that once we have the two versions, changing any of them costs no back-end
+ * command at all.
+ *
+ * Myers's algorithm finds a smallest set of changes. Patience and histogram
+ * diff first pair up lines that are rare in both versions, which are
+ * usually the meaningful ones rather than blank lines and braces, and only
+ * use Myers's algorithm for what's left between them; their diffs are
+ * usually easier to read.
+ */
+public class DiffEngine {
+    public enum Algorithm {
+        MYERS,
+        PATIENCE,
+        HISTOGRAM
+    }
+
+    public enum WhiteSpace {
+        EXACT,
+        // Like "diff -b": runs of white space compare equal whatever they are, and trailing white space is ignored.
+        IGNORE_CHANGES,
+        // Like "diff -w".
+        IGNORE_ALL
+    }
+
+    // Histogram diff doesn't pair up lines more common than this, as in git.
+    private static final int MAX_HISTOGRAM_OCCURRENCES = 64;
+
+    private final Algorithm algorithm;
+    private final WhiteSpace whiteSpace;
+    private final int contextLines;
+
+    public DiffEngine(Algorithm algorithm, WhiteSpace whiteSpace, int contextLines) {
+        this.algorithm = algorithm;
+        this.whiteSpace = whiteSpace;
+        this.contextLines = contextLines;
+    }
+
+    /**
+     * A run of differing lines: the "from" lines from fromBegin up to (but
+     * not including) fromEnd were replaced by the "to" lines from toBegin
+     * up to toEnd. Line indexes are zero-based; either run may be empty.
+     */
+    public static final class Edit {
+        public final int fromBegin;
+        public final int fromEnd;
+        public final int toBegin;
+        public final int toEnd;
+
+        Edit(int fromBegin, int fromEnd, int toBegin, int toEnd) {
+            this.fromBegin = fromBegin;
+            this.fromEnd = fromEnd;
+            this.toBegin = toBegin;
+            this.toEnd = toEnd;
+        }
+    }
+
+    /**
+     * Returns the unified diff from 'fromLines' to 'toLines', with
+     * 'fromLabel' and 'toLabel' on its "---" and "+++" lines. Identical
+     * versions give no lines at all, as with diff(1).
+     */
+    public List<String> diff(List<String> fromLines, List<String> toLines, String fromLabel, String toLabel) {
+        List<Edit> edits = computeEdits(fromLines, toLines);
+        ArrayList<String> result = new ArrayList<>();
+        if (edits.isEmpty()) {
+            return result;
+        }
+        result.add("--- " + fromLabel);
+        result.add("+++ " + toLabel);
+        for (int first = 0; first < edits.size(); ) {
+            // Edits closer together than twice the context share a hunk.
+            int last = first;
+            while (last + 1 < edits.size() && edits.get(last + 1).fromBegin - edits.get(last).fromEnd <= 2 * contextLines) {
+                ++last;
+            }
+            Edit firstEdit = edits.get(first);
+            Edit lastEdit = edits.get(last);
+            int fromStart = Math.max(0, firstEdit.fromBegin - contextLines);
+            int toStart = firstEdit.toBegin - (firstEdit.fromBegin - fromStart);
+            int fromEnd = Math.min(fromLines.size(), lastEdit.fromEnd + contextLines);
+            int toEnd = lastEdit.toEnd + (fromEnd - lastEdit.fromEnd);
+            result.add("@@ -" + formatRange(fromStart, fromEnd - fromStart) + " +" + formatRange(toStart, toEnd - toStart) + " @@");
+
+            int from = fromStart;
+            int to = toStart;
+            for (int i = first; i <= last; ++i) {
+                Edit edit = edits.get(i);
+                // If we're ignoring white space, the context might differ; show it as it is now.
+                for (; from < edit.fromBegin; ++from, ++to) {
+                    result.add(" " + toLines.get(to));
+                }
+                for (; from < edit.fromEnd; ++from) {
+                    result.add("-" + fromLines.get(from));
+                }
+                for (; to < edit.toEnd; ++to) {
+                    result.add("+" + toLines.get(to));
+                }
+            }
+            for (; from < fromEnd; ++from, ++to) {
+                result.add(" " + toLines.get(to));
+            }
+            first = last + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Formats a range for a hunk header the way GNU diff does: an empty range
+     * gives the line before it, and a range of one line has no length.
+     */
+    private static String formatRange(int start, int length) {
+        if (length == 0) {
+            return start + ",0";
+        } else if (length == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (start + 1) + "," + length;
+    }
+
+    /**
+     * Returns the runs of lines that differ between 'fromLines' and
+     * 'toLines', in order.
+     */
+    public List<Edit> computeEdits(List<String> fromLines, List<String> toLines) {
+        // Compare small ints rather than strings: lines that compare equal get the same number.
+        HashMap<String, Integer> lineNumbers = new HashMap<>();
+        int[] a = numberLines(fromLines, lineNumbers);
+        int[] b = numberLines(toLines, lineNumbers);
+
+        ArrayList<Edit> edits = new ArrayList<>();
+        // Regions of the two versions still to be compared. We use our own stack rather than recursion because
+        // patience and histogram diff can split a long file a line at a time.
+        ArrayDeque<int[]> regions = new ArrayDeque<>();
+        regions.push(new int[] { 0, a.length, 0, b.length });
+        while (regions.isEmpty() == false) {
+            int[] region = regions.pop();
+            int aLow = region[0];
+            int aHigh = region[1];
+            int bLow = region[2];
+            int bHigh = region[3];
+            while (aLow < aHigh && bLow < bHigh && a[aLow] == b[bLow]) {
+                ++aLow;
+                ++bLow;
+            }
+            while (aLow < aHigh && bLow < bHigh && a[aHigh - 1] == b[bHigh - 1]) {
+                --aHigh;
+                --bHigh;
+            }
+            if (aLow == aHigh || bLow == bHigh) {
+                if (aLow < aHigh || bLow < bHigh) {
+                    edits.add(new Edit(aLow, aHigh, bLow, bHigh));
+                }
+                continue;
+            }
+            if (algorithm == Algorithm.PATIENCE && splitAtUniqueLines(a, b, aLow, aHigh, bLow, bHigh, regions)) {
+                continue;
+            }
+            if (algorithm == Algorithm.HISTOGRAM && splitAtRareLines(a, b, aLow, aHigh, bLow, bHigh, regions)) {
+                continue;
+            }
+            int[] middle = findMiddle(a, b, aLow, aHigh, bLow, bHigh);
+            if (middle == null) {
+                edits.add(new Edit(aLow, aHigh, bLow, bHigh));
+                continue;
+            }
+            regions.push(new int[] { middle[0], aHigh, middle[1], bHigh });
+            regions.push(new int[] { aLow, middle[0], bLow, middle[1] });
+        }
+
+        // Regions finish in no particular order, and neighbouring regions can leave touching edits.
+        Collections.sort(edits, new Comparator<Edit>() {
+            public int compare(Edit lhs, Edit rhs) {
+                return (lhs.fromBegin != rhs.fromBegin) ? Integer.compare(lhs.fromBegin, rhs.fromBegin) : Integer.compare(lhs.toBegin, rhs.toBegin);
+            }
+        });
+        ArrayList<Edit> result = new ArrayList<>();
+        for (Edit edit : edits) {
+            Edit previous = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (previous != null && previous.fromEnd == edit.fromBegin && previous.toEnd == edit.toBegin) {
+                result.set(result.size() - 1, new Edit(previous.fromBegin, edit.fromEnd, previous.toBegin, edit.toEnd));
+            } else {
+                result.add(edit);
+            }
+        }
+        return result;
+    }
+
+    private int[] numberLines(List<String> lines, HashMap<String, Integer> lineNumbers) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; ++i) {
+            String key = normalize(lines.get(i));
+            Integer number = lineNumbers.get(key);
+            if (number == null) {
+                number = lineNumbers.size();
+                lineNumbers.put(key, number);
+            }
+            result[i] = number;
+        }
+        return result;
+    }
+
+    private String normalize(String line) {
+        if (whiteSpace == WhiteSpace.EXACT) {
+            return line;
+        }
+        StringBuilder result = new StringBuilder(line.length());
+        boolean inWhiteSpace = false;
+        for (int i = 0; i < line.length(); ++i) {
+            char ch = line.charAt(i);
+            if (isWhiteSpace(ch)) {
+                inWhiteSpace = true;
+            } else {
+                // With -b, a run of white space (leading white space too) counts as one space, but trailing white space doesn't count.
+                if (inWhiteSpace && whiteSpace == WhiteSpace.IGNORE_CHANGES) {
+                    result.append(' ');
+                }
+                inWhiteSpace = false;
+                result.append(ch);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Tests for the characters C's isspace accepts, which are what diff
+     * means by white space.
+     */
+    private static boolean isWhiteSpace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000b' || ch == '\f' || ch == '\r';
+    }
+
+    /**
+     * Patience diff: pairs up the lines that occur exactly once in each
+     * region, keeps the longest run of pairs that are in the same order in
+     * both, and queues the regions between them. Returns false if there are
+     * no such lines.
+     */
+    private static boolean splitAtUniqueLines(int[] a, int[] b, int aLow, int aHigh, int bLow, int bHigh, ArrayDeque<int[]> regions) {
+        // For each line, where it is in each region, or -2 if it's there more than once.
+        HashMap<Integer, int[]> positions = new HashMap<>();
+        for (int i = aLow; i < aHigh; ++i) {
+            int[] position = positions.get(a[i]);
+            if (position == null) {
+                positions.put(a[i], new int[] { i, -1 });
+            } else {
+                position[0] = -2;
+            }
+        }
+        for (int j = bLow; j < bHigh; ++j) {
+            int[] position = positions.get(b[j]);
+            if (position != null) {
+                position[1] = (position[1] == -1) ? j : -2;
+            }
+        }
+        // The unique pairs, in "from" order.
+        ArrayList<int[]> pairs = new ArrayList<>();
+        for (int i = aLow; i < aHigh; ++i) {
+            int[] position = positions.get(a[i]);
+            if (position[0] >= 0 && position[1] >= 0) {
+                pairs.add(position);
+            }
+        }
+        if (pairs.isEmpty()) {
+            return false;
+        }
+
+        // Patience sorting finds the longest increasing run of "to" positions.
+        int[] pileTops = new int[pairs.size()];
+        int[] predecessors = new int[pairs.size()];
+        int pileCount = 0;
+        for (int i = 0; i < pairs.size(); ++i) {
+            int to = pairs.get(i)[1];
+            int low = 0;
+            int high = pileCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (pairs.get(pileTops[mid])[1] < to) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            predecessors[i] = (low > 0) ? pileTops[low - 1] : -1;
+            pileTops[low] = i;
+            if (low == pileCount) {
+                ++pileCount;
+            }
+        }
+
+        // Queue the regions between the pairs, last first so that they're compared in order.
+        int aEnd = aHigh;
+        int bEnd = bHigh;
+        for (int i = pileTops[pileCount - 1]; i != -1; i = predecessors[i]) {
+            int[] pair = pairs.get(i);
+            regions.push(new int[] { pair[0] + 1, aEnd, pair[1] + 1, bEnd });
+            aEnd = pair[0];
+            bEnd = pair[1];
+        }
+        regions.push(new int[] { aLow, aEnd, bLow, bEnd });
+        return true;
+    }
+
+    /**
+     * Histogram diff: finds the longest run of matching lines built around
+     * the rarest line the regions have in common, and queues the regions
+     * either side of it. Returns false if the regions have nothing in
+     * common that's rare enough.
+     */
+    private static boolean splitAtRareLines(int[] a, int[] b, int aLow, int aHigh, int bLow, int bHigh, ArrayDeque<int[]> regions) {
+        HashMap<Integer, ArrayList<Integer>> occurrences = new HashMap<>();
+        for (int i = aLow; i < aHigh; ++i) {
+            ArrayList<Integer> positions = occurrences.get(a[i]);
+            if (positions == null) {
+                positions = new ArrayList<>();
+                occurrences.put(a[i], positions);
+            }
+            positions.add(i);
+        }
+
+        int bestCount = MAX_HISTOGRAM_OCCURRENCES + 1;
+        int bestALow = 0;
+        int bestAHigh = 0;
+        int bestBLow = 0;
+        int bestBHigh = 0;
+        for (int j = bLow; j < bHigh; ) {
+            int nextJ = j + 1;
+            ArrayList<Integer> positions = occurrences.get(b[j]);
+            if (positions != null && positions.size() <= MAX_HISTOGRAM_OCCURRENCES) {
+                for (int i : positions) {
+                    int s = i;
+                    int t = j;
+                    while (s > aLow && t > bLow && a[s - 1] == b[t - 1]) {
+                        --s;
+                        --t;
+                    }
+                    int e = i + 1;
+                    int f = j + 1;
+                    while (e < aHigh && f < bHigh && a[e] == b[f]) {
+                        ++e;
+                        ++f;
+                    }
+                    // A run is as rare as its rarest line.
+                    int count = Integer.MAX_VALUE;
+                    for (int k = s; k < e; ++k) {
+                        count = Math.min(count, occurrences.get(a[k]).size());
+                    }
+                    if (count < bestCount || (count == bestCount && e - s > bestAHigh - bestALow)) {
+                        bestCount = count;
+                        bestALow = s;
+                        bestAHigh = e;
+                        bestBLow = t;
+                        bestBHigh = f;
+                    }
+                    // There's no point starting again from inside a run we've already followed.
+                    nextJ = Math.max(nextJ, f);
+                }
+            }
+            j = nextJ;
+        }
+        if (bestAHigh == bestALow) {
+            return false;
+        }
+        regions.push(new int[] { bestAHigh, aHigh, bestBHigh, bHigh });
+        regions.push(new int[] { aLow, bestALow, bLow, bestBLow });
+        return true;
+    }
+
+    /**
+     * Myers's algorithm: follows the best paths forward from the start of
+     * the regions and backward from the end until they meet, in linear
+     * space, and returns where they meet, to split the regions at. Returns
+     * null if the regions have nothing in common. This is the "bisect" of
+     * Neil Fraser's diff-match-patch.
+     */
+    private static int[] findMiddle(int[] a, int[] b, int aLow, int aHigh, int bLow, int bHigh) {
+        int n = aHigh - aLow;
+        int m = bHigh - bLow;
+        int maxD = (n + m + 1) / 2;
+        int vOffset = maxD;
+        int vLength = 2 * maxD + 2;
+        int[] v1 = new int[vLength];
+        int[] v2 = new int[vLength];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[vOffset + 1] = 0;
+        v2[vOffset + 1] = 0;
+        int delta = n - m;
+        // If the difference in length is odd, the forward path is the one that will hit the reverse one.
+        boolean front = (delta % 2 != 0);
+        int k1Start = 0;
+        int k1End = 0;
+        int k2Start = 0;
+        int k2End = 0;
+        for (int d = 0; d < maxD; ++d) {
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = vOffset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLow + x1] == b[bLow + y1]) {
+                    ++x1;
+                    ++y1;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > n) {
+                    // Off the right of the graph.
+                    k1End += 2;
+                } else if (y1 > m) {
+                    // Off the bottom.
+                    k1Start += 2;
+                } else if (front) {
+                    int k2Offset = vOffset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1) {
+                        int x2 = n - v2[k2Offset];
+                        if (x1 >= x2) {
+                            return split(aLow, aHigh, bLow, bHigh, x1, y1);
+                        }
+                    }
+                }
+            }
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = vOffset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHigh - x2 - 1] == b[bHigh - y2 - 1]) {
+                    ++x2;
+                    ++y2;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (front == false) {
+                    int k1Offset = vOffset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = vOffset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return split(aLow, aHigh, bLow, bHigh, x1, y1);
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int[] split(int aLow, int aHigh, int bLow, int bHigh, int x, int y) {
+        if ((x == 0 && y == 0) || (aLow + x == aHigh && bLow + y == bHigh)) {
+            // Splitting here wouldn't get us anywhere.
+            return null;
+        }
+        return new int[] { aLow + x, bLow + y };
+    }
+}
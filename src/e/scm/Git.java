@@ -1,10 +1,53 @@
 package e.scm;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.regex.*;
 import e.util.*;
 
 public class Git extends RevisionControlSystem {
+    /**
+     * Maps each revision in a file's history to the name the file had in that
+     * revision. Building one means walking the file's whole history with
+     * "git log --follow", so we keep one per repository and file for the
+     * files used most recently, and throw it away when HEAD moves.
+     */
+    private static class RenameHistory {
+        private final String head;
+        private final HashMap<String, String> revisionToPath = new HashMap<>();
+        private boolean isComplete = false;
+        
+        RenameHistory(String head) {
+            this.head = head;
+        }
+    }
+    
+    // Enough for the files someone's got open, without keeping every file they've ever looked at.
+    private static final int MAX_RENAME_HISTORIES = 64;
+    
+    @SuppressWarnings("serial")
+    private static final LinkedHashMap<String, RenameHistory> renameHistories = new LinkedHashMap<String, RenameHistory>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RenameHistory> eldest) {
+            return size() > MAX_RENAME_HISTORIES;
+        }
+    };
+    
+    private RenameHistory getRenameHistory(String filename) {
+        String head = getHeadCommit();
+        String key = getRoot().toString() + "\0" + filename;
+        synchronized (renameHistories) {
+            RenameHistory history = renameHistories.get(key);
+            if (history == null || history.head.equals(head) == false) {
+                history = new RenameHistory(head);
+                renameHistories.put(key, history);
+            }
+            return history;
+        }
+    }
+    
     public String followRenames(Revision revision, String filename) {
         if (revision == null) {
             return filename;
@@ -12,13 +55,25 @@ public class Git extends RevisionControlSystem {
         if (revision == Revision.LOCAL_REVISION) {
             return filename;
         }
+        RenameHistory history = getRenameHistory(filename);
+        synchronized (history) {
+            String path = history.revisionToPath.get(revision.number);
+            if (path == null && history.isComplete == false) {
+                readRenameHistory(history, filename);
+                path = history.revisionToPath.get(revision.number);
+            }
+            return (path != null) ? path : filename;
+        }
+    }
+    
+    private void readRenameHistory(RenameHistory history, String filename) {
         // revision^ doesn't exist for the first revision.
         // revision.. excludes the revision itself.
         // The last commit displayed isn't always the one immediately after the requested revision.
         String[] command = new String[] { "git", "log", "-z", "-m", "--follow", "--name-status", "--", filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -26,14 +81,104 @@ public class Git extends RevisionControlSystem {
         String[] commits = output.split("\0\0");
         for (String commit: commits) {
             String[] fields = commit.split("\0");
-            if (fields[0].startsWith("commit " + revision.number.toString() + "\n")) {
-                // R100\0old name\0new name
-                // M\0name
-                String newName = fields[fields.length - 1];
-                return newName;
+            if (fields[0].startsWith("commit ") == false) {
+                continue;
+            }
+            int newline = fields[0].indexOf('\n');
+            if (newline == -1) {
+                continue;
+            }
+            // With -m, merges are shown once per parent as "commit <hash> (from <parent>)".
+            // Only the plain form names the revision itself.
+            String number = fields[0].substring(7, newline);
+            // R100\0old name\0new name
+            // M\0name
+            String newName = fields[fields.length - 1];
+            history.revisionToPath.putIfAbsent(number, newName);
+        }
+        history.isComplete = true;
+    }
+    
+    /**
+     * Returns the commit HEAD refers to. This is checked on every rename
+     * lookup, so we read the files under .git ourselves in the common case
+     * rather than pay for running "git rev-parse". (Unless we're recording
+     * or replaying, when there may be no .git to read.)
+     */
+    private String getHeadCommit() {
+        Path gitDirectory = Paths.get(getRoot().toString(), ".git");
+        // Worktrees and submodules have a .git file pointing elsewhere; leave those to git.
+        if (Files.isDirectory(gitDirectory) && isRecordingOrReplaying() == false) {
+            try {
+                String head = readFirstLine(gitDirectory.resolve("HEAD"));
+                if (head.startsWith("ref: ") == false) {
+                    // A detached HEAD.
+                    return head;
+                }
+                String ref = head.substring(5);
+                Path looseRef = gitDirectory.resolve(ref);
+                if (Files.exists(looseRef)) {
+                    return readFirstLine(looseRef);
+                }
+                Path packedRefs = gitDirectory.resolve("packed-refs");
+                if (Files.exists(packedRefs)) {
+                    for (String line : Files.readAllLines(packedRefs)) {
+                        if (line.endsWith(" " + ref)) {
+                            return line.substring(0, line.indexOf(' '));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Log.warn("Couldn't read HEAD from \"" + gitDirectory + "\"", ex);
+            }
+        }
+        String[] command = new String[] { "git", "rev-parse", "-q", "--verify", "HEAD" };
+        ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        int status = backQuote(command, lines, errors);
+        // A repository with no commits yet has no HEAD.
+        return (status == 0 && lines.size() > 0) ? lines.get(0) : "";
+    }
+    
+    private static String readFirstLine(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path);
+        return lines.isEmpty() ? "" : lines.get(0).trim();
+    }
+    
+    private static final HashMap<Path, GitCatFile> catFiles = new HashMap<>();
+    
+    /**
+     * Returns the cat-file session for this repository, shared by all the Git
+     * instances working on it.
+     */
+    public GitCatFile getCatFile() {
+        synchronized (catFiles) {
+            GitCatFile catFile = catFiles.get(getRoot());
+            if (catFile == null) {
+                catFile = new GitCatFile(getRoot());
+                catFiles.put(getRoot(), catFile);
             }
+            return catFile;
+        }
+    }
+    
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        return new String[] { "git", "cat-file", "blob", revision.number + ":" + followRenames(revision, filename) };
+    }
+    
+    /**
+     * Reads the lines of the given file as of the given committed revision
+     * from our cat-file session, or returns null if it didn't exist then.
+     * Renames are followed, so the filename is the file's current name.
+     * A recording can't capture the session, so then we run a command each.
+     */
+    @Override
+    protected List<String> readFileContents(Revision revision, String filename) {
+        if (isRecordingOrReplaying()) {
+            return super.readFileContents(revision, filename);
         }
-        return filename;
+        return getCatFile().readBlobLines(revision.number, followRenames(revision, filename));
     }
     
     public String[] getAnnotateCommand(Revision revision, String filename) {
@@ -101,58 +246,70 @@ public class Git extends RevisionControlSystem {
     
     private static final Pattern ISO_TIMESTAMP_PATTERN = Pattern.compile("date=(\\S+) (\\S+) (\\S+)");
 
-    public RevisionListModel parseLog(List<String> linesList) {
-        String[] lines = linesList.toArray(new String[linesList.size()]);
-        
-        RevisionListModel result = new RevisionListModel();
-        String number = null;
-        String author = null;
-        String date = null;
-        String time = null;
-        StringBuilder comment = null;
-        for (int i = 0; i < lines.length; ++i) {
-            if (lines[i].startsWith("commit=")) {
-                number = lines[i].substring(7);
-            } else if (lines[i].startsWith("committer=")) {
-                author = lines[i].substring(10);
-            } else if (lines[i].startsWith("date=")) {
-                Matcher matcher = ISO_TIMESTAMP_PATTERN.matcher(lines[i]);
-                if (matcher.matches()) {
-                    date = matcher.group(1);
-                    String timeWithoutOffset = matcher.group(2);
-                    String offset = matcher.group(3);
-                    time = timeWithoutOffset + " " + offset;
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return new LogParser(listener) {
+            private String number = null;
+            private String author = null;
+            private String date = null;
+            private String time = null;
+            // Non-null while we're reading a comment.
+            private StringBuilder comment = null;
+            
+            public void processLine(String line) {
+                if (comment != null) {
+                    if (line.equals(LOG_SEPARATOR)) {
+                        finishRevision();
+                    } else {
+                        comment.append(line);
+                        comment.append("\n");
+                    }
+                } else if (line.startsWith("commit=")) {
+                    number = line.substring(7);
+                } else if (line.startsWith("committer=")) {
+                    author = line.substring(10);
+                } else if (line.startsWith("date=")) {
+                    Matcher matcher = ISO_TIMESTAMP_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        date = matcher.group(1);
+                        String timeWithoutOffset = matcher.group(2);
+                        String offset = matcher.group(3);
+                        time = timeWithoutOffset + " " + offset;
+                    } else {
+                        reportLogParsingFailure("date", line);
+                    }
+                } else if (line.equals("comment=")) {
+                    comment = new StringBuilder();
                 } else {
-                    reportLogParsingFailure("date", lines[i]);
-                }
-            } else if (lines[i].equals("comment=")) {
-                comment = new StringBuilder();
-                while (++i < lines.length && lines[i].equals(LOG_SEPARATOR) == false) {
-                    comment.append(lines[i]);
-                    comment.append("\n");
+                    reportLogParsingFailure("known header", line);
                 }
+            }
+            
+            private void finishRevision() {
                 // Remove the newline we added before LOG_SEPARATOR in case the %body didn't end in a newline.
                 if (comment.length() > 0) {
                     comment.setLength(comment.length() - 1);
                 }
-                if (number == null || author == null || date == null || time == null || comment == null) {
+                if (number == null || author == null || date == null || time == null) {
                     throw new RuntimeException("incomplete log record: number=" + number + ",author=" + author + ",date=" + date + ",time=" + time + ",comment" + comment);
                 }
-                Revision revision = new Revision(number, date, time, author, comment.toString());
-                result.add(revision);
+                addRevision(new Revision(number, date, time, author, comment.toString()));
                 number = author = date = time = null;
-            } else {
-                reportLogParsingFailure("known header", lines[i]);
+                comment = null;
             }
-        }
-        return result;
+            
+            public void finish() {
+                if (comment != null) {
+                    finishRevision();
+                }
+            }
+        };
     }
     
     public boolean isLocallyModified(String filename) {
         String[] command = new String[] { "git", "diff", "--name-status", filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         for (String line : lines) {
             if (line.startsWith("M")) {
                 return true;
@@ -161,22 +318,48 @@ public class Git extends RevisionControlSystem {
         return false;
     }
     
+    /**
+     * Git has all the meta-data locally.
+     */
+    public long getExpectedDiffMilliseconds() {
+        return 50;
+    }
+    
     public boolean supportsChangeSets() {
         return true;
     }
     
     public List<ChangeSetItem> listTouchedFilesInRevision(String filename, Revision revision) {
-        String[] command = new String[] { "git", "diff-tree", "--no-commit-id", "--name-only", "-r", revision.number };
+        String[] command = new String[] { "git", "diff-tree", "-z", "--no-commit-id", "--name-status", "-M", "-r", revision.number };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuoteShared(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
         
         ArrayList<ChangeSetItem> result = new ArrayList<>();
-        for (String line : lines) {
-            String path = line;
+        String output = StringUtilities.join(lines, "\n");
+        if (output.isEmpty()) {
+            return result;
+        }
+        // M\0name\0
+        // R100\0old name\0new name\0
+        String[] fields = output.split("\0");
+        for (int i = 0; i + 1 < fields.length; ) {
+            String state = fields[i++];
+            String path = fields[i++];
+            if (state.startsWith("R") && i < fields.length) {
+                String oldPath = path;
+                path = fields[i++];
+                // We've just learned what the file was called in the parent, so save
+                // getDifferencesCommand from walking the history to find out.
+                RenameHistory history = getRenameHistory(path);
+                synchronized (history) {
+                    history.revisionToPath.put(revision.number + "^", oldPath);
+                    history.revisionToPath.put(revision.number, path);
+                }
+            }
             result.add(new ChangeSetItem(path, revision.number + "^", revision.number));
         }
         return result;
@@ -190,42 +373,99 @@ public class Git extends RevisionControlSystem {
         execAndDump(command);
     }
     
+    // We run "git status" in the background whenever the working copy changes, and left to itself it takes
+    // index.lock to refresh the index, which would make the user's own "git add" or "git commit" fail.
     public List<FileStatus> getStatuses(StatusReporter statusReporter) {
-        String[] statusCommand = new String[] { "git", "status", "-z" };
+        return runStatusCommand(new String[] { "git", "--no-optional-locks", "status", "-z" });
+    }
+    
+    @Override
+    public Set<String> getIgnoredDirectories(String directory) {
+        // With --directory, a wholly ignored directory is listed as "name/" rather than file by file.
+        String[] command = new String[] { "git", "--literal-pathspecs", "ls-files", "-z", "--others", "--ignored", "--exclude-standard", "--directory", "--", directory.isEmpty() ? "." : directory };
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        int status = backQuote(command, "", '\0', new ProcessUtilities.ArrayListLineListener(names), new ProcessUtilities.ArrayListLineListener(errors));
+        HashSet<String> result = new HashSet<>();
+        if (status != 0) {
+            Log.warn("Couldn't list ignored directories: " + errors);
+            return result;
+        }
+        for (String name : names) {
+            if (name.endsWith("/")) {
+                result.add(name.substring(0, name.length() - 1));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public boolean canGetStatusesOfPaths() {
+        return true;
+    }
+    
+    @Override
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        ArrayList<String> command = new ArrayList<>(Arrays.asList("git", "--no-optional-locks", "--literal-pathspecs", "status", "-z", "--"));
+        command.addAll(filenames);
+        return runStatusCommand(command.toArray(new String[command.size()]));
+    }
+    
+    @Override
+    public void streamStatuses(StatusReporter statusReporter, StatusListener listener) {
+        runStatusCommand(new String[] { "git", "--no-optional-locks", "status", "-z" }, listener);
+    }
+    
+    private List<FileStatus> runStatusCommand(String[] statusCommand) {
         ArrayList<FileStatus> statuses = new ArrayList<>();
-
+        runStatusCommand(statusCommand, new ArrayListStatusListener(statuses));
+        return statuses;
+    }
+    
+    private void runStatusCommand(String[] statusCommand, StatusListener listener) {
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), statusCommand, lines, errors);
+        StatusParser parser = new StatusParser(statusCommand, lines, listener);
+        int status = backQuote(statusCommand, "", '\0', parser, new ProcessUtilities.ArrayListLineListener(errors));
         if (status != 0) {
             throwError(status, statusCommand, lines, errors);
         }
+        parser.finish();
+    }
+    
+    /**
+     * Parses the output of "git status -z" as it arrives. Its entries end in
+     * NULs rather than newlines, so runStatusCommand has backQuote split the
+     * output at NULs, and each "line" we get is one NUL-terminated field:
+     * "XY name", followed for a rename by a field with the old name.
+     */
+    private static class StatusParser implements ProcessUtilities.LineListener {
+        private final String[] statusCommand;
+        private final ArrayList<String> lines;
+        private final StatusListener listener;
+        // Whether the next field is the old name of a rename, rather than a new entry.
+        private boolean isExpectingFromName = false;
         
-        String output = StringUtilities.join(lines, "\n");
-        int size = output.length();
-        int ii = 0;
-        while (ii != size) {
-            char x = output.charAt(ii);
-            ++ ii;
-            char y = output.charAt(ii);
-            ++ ii;
-            if (output.charAt(ii) != ' ') {
-                throw new RuntimeException("lost synchronization with output of " + statusCommand + ": " + output);
-            }
-            ++ ii;
-            StringBuilder name = new StringBuilder();
-            while (output.charAt(ii) != 0) {
-                name.append(output.charAt(ii));
-                ++ ii;
+        StatusParser(String[] statusCommand, ArrayList<String> lines, StatusListener listener) {
+            this.statusCommand = statusCommand;
+            this.lines = lines;
+            this.listener = listener;
+        }
+        
+        public void processLine(String field) {
+            lines.add(field);
+            if (isExpectingFromName) {
+                isExpectingFromName = false;
+                return;
             }
-            ++ ii;
-            if (x == 'R') {
-                // The "to" name precedes the "from" name for renames.
-                while (output.charAt(ii) != 0) {
-                    ++ ii;
-                }
-                ++ ii;
+            if (field.length() < 4 || field.charAt(2) != ' ') {
+                throw new RuntimeException("lost synchronization with output of " + Arrays.toString(statusCommand) + ": " + field);
             }
+            char x = field.charAt(0);
+            char y = field.charAt(1);
+            String name = field.substring(3);
+            // The "to" name precedes the "from" name for renames.
+            isExpectingFromName = (x == 'R');
             int canonicalState = FileStatus.NOT_RECOGNIZED_BY_BACK_END;
             if (x == ' ' && y == 'M') {
                 canonicalState = FileStatus.MODIFIED;
@@ -243,39 +483,77 @@ public class Git extends RevisionControlSystem {
             }
             // FIXME: All the other combinations.
             if (canonicalState != FileStatus.IGNORED) {
-                statuses.add(new FileStatus(canonicalState, name.toString()));
+                listener.statusFound(new FileStatus(canonicalState, name));
+            }
+        }
+        
+        public void finish() {
+            if (isExpectingFromName) {
+                throw new RuntimeException("lost synchronization with output of " + Arrays.toString(statusCommand) + ": rename with no old name");
             }
         }
-
-        return statuses;
     }
     
     public void commit(String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded) {
+        commit(null, comment, fileStatuses, excluded);
+    }
+    
+    @Override
+    public void commit(StatusReporter statusReporter, String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded) {
+        ArrayList<String> filesToAdd = new ArrayList<>();
         for (FileStatus file : fileStatuses) {
-            if (file.getState() == FileStatus.REMOVED) {
-                continue;
+            // "git rm" has already been done for these.
+            if (file.getState() != FileStatus.REMOVED) {
+                filesToAdd.add(file.getName());
             }
-            ArrayList<String> command = new ArrayList<>();
-            command.add("git");
-            command.add("add");
-            command.add(file.getName());
-            execAndDump(command);
         }
+        ArrayList<String> filesToReset = new ArrayList<>();
         for (FileStatus file : excluded) {
-            if (file.getState() != FileStatus.ADDED) {
-                continue;
+            // Files that have been "git add"ed (including renames) have to be taken out of the index again.
+            if (file.getState() == FileStatus.ADDED) {
+                filesToReset.add(file.getName());
             }
-            ArrayList<String> command = new ArrayList<>();
-            command.add("git");
-            command.add("reset");
-            command.add(file.getName());
-            execAndDump(command);
         }
-
+        
+        // Staging files one at a time means a process and an index lock for each, which is slow when there are thousands.
+        // The pathspecs are literal, because these are file names we got from "git status".
+        int stepCount = filesToAdd.size() + filesToReset.size() + 1;
+        int stepsDone = 0;
+        for (int i = 0; i < filesToAdd.size(); i += PATHSPEC_BATCH_SIZE) {
+            List<String> batch = filesToAdd.subList(i, Math.min(filesToAdd.size(), i + PATHSPEC_BATCH_SIZE));
+            execAndDumpWithInput(Arrays.asList("git", "--literal-pathspecs", "add", "--pathspec-from-file=-", "--pathspec-file-nul"), joinWithNuls(batch));
+            stepsDone += batch.size();
+            reportProgress(statusReporter, stepsDone, stepCount);
+        }
+        for (int i = 0; i < filesToReset.size(); i += PATHSPEC_BATCH_SIZE) {
+            List<String> batch = filesToReset.subList(i, Math.min(filesToReset.size(), i + PATHSPEC_BATCH_SIZE));
+            execAndDumpWithInput(Arrays.asList("git", "--literal-pathspecs", "reset", "--pathspec-from-file=-", "--pathspec-file-nul"), joinWithNuls(batch));
+            stepsDone += batch.size();
+            reportProgress(statusReporter, stepsDone, stepCount);
+        }
+        
         ArrayList<String> command = new ArrayList<>();
         command.add("git");
         command.add("commit");
         command.add("--file=" + createCommentFile(comment));
         execAndDump(command);
+        reportProgress(statusReporter, stepCount, stepCount);
+    }
+    
+    // How many files we stage or unstage with each git command, so that a big commit still shows some progress.
+    private static final int PATHSPEC_BATCH_SIZE = 1000;
+    
+    private static String joinWithNuls(List<String> filenames) {
+        StringBuilder result = new StringBuilder();
+        for (String filename : filenames) {
+            result.append(filename).append('\0');
+        }
+        return result.toString();
+    }
+    
+    private static void reportProgress(StatusReporter statusReporter, int value, int maximum) {
+        if (statusReporter != null) {
+            statusReporter.setProgressValue(value, maximum);
+        }
     }
 }
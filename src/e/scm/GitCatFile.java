@@ -0,0 +1,194 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import e.util.*;
+
+/**
+ * A long-lived "git cat-file --batch" session for one repository. Starting
+ * git costs far more than reading a blob, so anything that needs lots of
+ * objects -- file contents for each revision, say -- should come here rather
+ * than run a command each.
+ *
+ * Requests are answered one at a time; callers on different threads simply
+ * queue up behind each other.
+ */
+public class GitCatFile {
+    public static class GitObject {
+        public final String name;
+        public final String type;
+        public final byte[] content;
+
+        GitObject(String name, String type, byte[] content) {
+            this.name = name;
+            this.type = type;
+            this.content = content;
+        }
+    }
+
+    /**
+     * One "git cat-file" child process, restarted if it dies.
+     */
+    private static class Session {
+        private final Path root;
+        private final String option;
+        private Process process;
+        private OutputStream requests;
+        private InputStream responses;
+
+        Session(Path root, String option) {
+            this.root = root;
+            this.option = option;
+        }
+
+        /**
+         * Sends a request and returns the response header, leaving any content
+         * for the caller to read from 'responses'.
+         */
+        String request(String objectName) throws IOException {
+            if (objectName.indexOf('\n') != -1) {
+                throw new IllegalArgumentException("object name \"" + objectName + "\" contains a newline");
+            }
+            try {
+                return sendRequest(objectName);
+            } catch (IOException ex) {
+                // The child may have died since we last used it. Try once more with a fresh one.
+                Log.warn("git cat-file " + option + " failed; restarting it", ex);
+                close();
+                return sendRequest(objectName);
+            }
+        }
+
+        private String sendRequest(String objectName) throws IOException {
+            if (process == null) {
+                start();
+            }
+            requests.write((objectName + "\n").getBytes(StandardCharsets.UTF_8));
+            requests.flush();
+            String header = readLine();
+            if (header == null) {
+                throw new EOFException("git cat-file " + option + " exited");
+            }
+            return header;
+        }
+
+        private void start() throws IOException {
+            ProcessBuilder processBuilder = new ProcessBuilder("git", "cat-file", option);
+            processBuilder.directory(root.toFile());
+            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = processBuilder.start();
+            requests = new BufferedOutputStream(process.getOutputStream());
+            responses = new BufferedInputStream(process.getInputStream());
+        }
+
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int ch;
+            while ((ch = responses.read()) != '\n') {
+                if (ch == -1) {
+                    return null;
+                }
+                line.write(ch);
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        byte[] readContent(int size) throws IOException {
+            byte[] content = new byte[size];
+            int offset = 0;
+            while (offset < size) {
+                int byteCount = responses.read(content, offset, size - offset);
+                if (byteCount == -1) {
+                    throw new EOFException("git cat-file " + option + " exited mid-object");
+                }
+                offset += byteCount;
+            }
+            // Each object is followed by a newline.
+            if (responses.read() != '\n') {
+                throw new IOException("lost synchronization with git cat-file " + option);
+            }
+            return content;
+        }
+
+        void close() {
+            if (process == null) {
+                return;
+            }
+            try {
+                // cat-file exits when its input is closed.
+                requests.close();
+            } catch (IOException ex) {
+                // We're throwing it away anyway.
+            }
+            process.destroy();
+            process = null;
+        }
+    }
+
+    private final Session batch;
+
+    public GitCatFile(Path root) {
+        this.batch = new Session(root, "--batch");
+    }
+
+    /**
+     * Returns the named object, or null if there's no such object. The name
+     * can be anything git understands, such as "HEAD^{tree}" or "abc123:src/Main.java".
+     */
+    public GitObject readObject(String objectName) {
+        synchronized (batch) {
+            try {
+                // "<object> <type> <size>", or "<name> missing" or "<name> ambiguous", where the name is what we asked for and may contain spaces.
+                String header = batch.request(objectName);
+                if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+                    return null;
+                }
+                int sizeStart = header.lastIndexOf(' ');
+                int typeStart = header.lastIndexOf(' ', sizeStart - 1);
+                if (typeStart == -1) {
+                    throw new IOException("didn't understand git cat-file's header \"" + header + "\"");
+                }
+                byte[] content = batch.readContent(Integer.parseInt(header.substring(sizeStart + 1)));
+                return new GitObject(header.substring(0, typeStart), header.substring(typeStart + 1, sizeStart), content);
+            } catch (IOException ex) {
+                batch.close();
+                throw new RuntimeException("couldn't read \"" + objectName + "\" from git cat-file", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the lines of the given file as of the given revision, or null if
+     * the file didn't exist in that revision.
+     */
+    public List<String> readBlobLines(String revision, String path) {
+        GitObject object = readObject(revision + ":" + path);
+        if (object == null || object.type.equals("blob") == false) {
+            return null;
+        }
+        return splitLines(object.content);
+    }
+
+    private static List<String> splitLines(byte[] content) {
+        ArrayList<String> lines = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException ex) {
+            // Can't happen reading from memory.
+            throw new RuntimeException(ex);
+        }
+        return lines;
+    }
+
+    public void close() {
+        synchronized (batch) {
+            batch.close();
+        }
+    }
+}
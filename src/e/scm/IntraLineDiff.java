@@ -0,0 +1,234 @@
+package e.scm;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * Finds which words changed within the lines a patch replaced, so the patch
+ * views can pick them out rather than leave the user to spot a one-character
+ * change in a pair of long lines.
+ *
+ * Within each hunk, a run of removed lines followed by a run of added lines
+ * is a replacement; we pair the lines up in order, split each into words,
+ * white space and punctuation, and diff the pieces. That's cheap for one
+ * hunk but not for every hunk of a big generated file, so the views only ask
+ * for the hunks they're showing, the work is done off the event dispatch
+ * thread, and the results are cached by the hunk's text.
+ */
+public class IntraLineDiff {
+    // Lines longer than this (minified or generated code, say) aren't worth refining.
+    private static final int MAX_LINE_LENGTH = 1000;
+    private static final int MAX_CACHED_HUNKS = 1000;
+
+    // The colors the patch views lay over changed words: stronger versions of the whole-line colors.
+    public static final Color REMOVED_WORD_COLOR = new Color(255, 0, 0, 48);
+    public static final Color ADDED_WORD_COLOR = new Color(0, 160, 0, 48);
+
+    private static final BackEndScheduler scheduler = new BackEndScheduler("IntraLineDiff", 1);
+    private static final DiffEngine tokenDiffEngine = new DiffEngine(DiffEngine.Algorithm.MYERS, DiffEngine.WhiteSpace.EXACT, 0);
+
+    @SuppressWarnings("serial")
+    private static final Map<String, int[][]> cache = Collections.synchronizedMap(new LinkedHashMap<String, int[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[][]> eldest) {
+            return size() > MAX_CACHED_HUNKS;
+        }
+    });
+
+    // Keys of hunks we're working on, so that repainting doesn't queue them
+    // again, each with everyone waiting to hear when it's done.
+    private static final HashMap<String, List<Runnable>> pending = new HashMap<>();
+
+    private IntraLineDiff() {
+    }
+
+    /**
+     * Returns the changed spans for each of the given lines of one hunk if
+     * we've already worked them out. Otherwise returns null and works them
+     * out in the background, running 'whenReady' on the event dispatch
+     * thread when they're available.
+     *
+     * Each line's spans are pairs of offsets (start inclusive, end
+     * exclusive) into its source line, without the patch's prefix; lines
+     * with nothing to show get null.
+     */
+    public static int[][] getSpans(final List<Patch.Line> hunkLines, final Runnable whenReady) {
+        final String key = keyFor(hunkLines);
+        int[][] spans = cache.get(key);
+        if (spans != null) {
+            return spans;
+        }
+        synchronized (pending) {
+            List<Runnable> waiters = pending.get(key);
+            if (waiters != null) {
+                waiters.add(whenReady);
+                return null;
+            }
+            waiters = new ArrayList<>();
+            waiters.add(whenReady);
+            pending.put(key, waiters);
+        }
+        // Copy the lines: the caller's list may be a view of something that'll change.
+        final ArrayList<Patch.Line> lines = new ArrayList<>(hunkLines);
+        scheduler.execute(BackEndScheduler.Priority.INTERACTIVE, new Runnable() {
+            public void run() {
+                List<Runnable> waiters;
+                try {
+                    cache.put(key, computeSpans(lines));
+                } finally {
+                    synchronized (pending) {
+                        waiters = pending.remove(key);
+                    }
+                }
+                for (Runnable waiter : waiters) {
+                    SwingUtilities.invokeLater(waiter);
+                }
+            }
+        });
+        return null;
+    }
+
+    private static String keyFor(List<Patch.Line> hunkLines) {
+        StringBuilder result = new StringBuilder();
+        for (Patch.Line line : hunkLines) {
+            result.append(line.text).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Works out the changed spans for the given lines of one hunk right
+     * away. See getSpans.
+     */
+    public static int[][] computeSpans(List<Patch.Line> hunkLines) {
+        int[][] result = new int[hunkLines.size()][];
+        int i = 0;
+        while (i < hunkLines.size()) {
+            if (hunkLines.get(i).kind != Patch.Line.Kind.FROM) {
+                ++i;
+                continue;
+            }
+            // A "\ No newline at end of file" line can come between the
+            // removed and added lines (when the last line changed), or within
+            // either run, so we step over it rather than let it end the run.
+            ArrayList<Integer> fromRows = new ArrayList<>();
+            i = collectRun(hunkLines, i, Patch.Line.Kind.FROM, fromRows);
+            ArrayList<Integer> toRows = new ArrayList<>();
+            i = collectRun(hunkLines, i, Patch.Line.Kind.TO, toRows);
+            int pairCount = Math.min(fromRows.size(), toRows.size());
+            for (int pair = 0; pair < pairCount; ++pair) {
+                int fromRow = fromRows.get(pair);
+                int toRow = toRows.get(pair);
+                int[][] spans = compareLines(hunkLines.get(fromRow).getSourceLine(), hunkLines.get(toRow).getSourceLine());
+                if (spans != null) {
+                    result[fromRow] = spans[0];
+                    result[toRow] = spans[1];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the indexes of the run of lines of the given kind starting at
+     * 'i' to 'rows', skipping "\ No newline at end of file" lines, and
+     * returns the index of the first line after the run.
+     */
+    private static int collectRun(List<Patch.Line> hunkLines, int i, Patch.Line.Kind kind, List<Integer> rows) {
+        while (i < hunkLines.size()) {
+            Patch.Line line = hunkLines.get(i);
+            if (line.kind == kind) {
+                rows.add(i);
+            } else if (line.isNoNewlineMarker() == false) {
+                break;
+            }
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the changed spans in each of the two lines, or null if there's
+     * nothing useful to show: when the lines are too long, or when they have
+     * so little in common that the whole line is the change.
+     */
+    private static int[][] compareLines(String fromLine, String toLine) {
+        if (fromLine.length() > MAX_LINE_LENGTH || toLine.length() > MAX_LINE_LENGTH) {
+            return null;
+        }
+        ArrayList<String> fromTokens = tokenize(fromLine);
+        ArrayList<String> toTokens = tokenize(toLine);
+        List<DiffEngine.Edit> edits = tokenDiffEngine.computeEdits(fromTokens, toTokens);
+        int[] fromOffsets = offsetsOf(fromTokens);
+        int[] toOffsets = offsetsOf(toTokens);
+        ArrayList<Integer> fromSpans = new ArrayList<>();
+        ArrayList<Integer> toSpans = new ArrayList<>();
+        int changedCharacters = 0;
+        for (DiffEngine.Edit edit : edits) {
+            changedCharacters += addSpan(fromSpans, fromOffsets[edit.fromBegin], fromOffsets[edit.fromEnd]);
+            changedCharacters += addSpan(toSpans, toOffsets[edit.toBegin], toOffsets[edit.toEnd]);
+        }
+        if (edits.isEmpty() || changedCharacters == fromLine.length() + toLine.length()) {
+            return null;
+        }
+        return new int[][] { toIntArray(fromSpans), toIntArray(toSpans) };
+    }
+
+    /**
+     * Adds a span unless it's empty (as the other line's side of an
+     * insertion is), returning its length.
+     */
+    private static int addSpan(ArrayList<Integer> spans, int start, int end) {
+        if (start < end) {
+            spans.add(start);
+            spans.add(end);
+        }
+        return end - start;
+    }
+
+    private static int[] toIntArray(ArrayList<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Splits a line into words (runs of letters, digits and underscores),
+     * runs of white space, and single characters of anything else.
+     */
+    private static ArrayList<String> tokenize(String line) {
+        ArrayList<String> result = new ArrayList<>();
+        int i = 0;
+        while (i < line.length()) {
+            int start = i;
+            char ch = line.charAt(i++);
+            if (Character.isLetterOrDigit(ch) || ch == '_') {
+                while (i < line.length() && (Character.isLetterOrDigit(line.charAt(i)) || line.charAt(i) == '_')) {
+                    ++i;
+                }
+            } else if (Character.isWhitespace(ch)) {
+                while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+                    ++i;
+                }
+            }
+            result.add(line.substring(start, i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset at which each token starts, and then the length of
+     * the line.
+     */
+    private static int[] offsetsOf(List<String> tokens) {
+        int[] result = new int[tokens.size() + 1];
+        for (int i = 0; i < tokens.size(); ++i) {
+            result[i + 1] = result[i] + tokens.get(i).length();
+        }
+        return result;
+    }
+}
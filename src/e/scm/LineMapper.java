@@ -3,59 +3,186 @@ package e.scm;
 import e.util.*;
 import java.util.*;
 
+/**
+ * Maps line numbers in one revision of a file to line numbers in another.
+ * It's built from the context lines of a patch, which we know the position
+ * of in both revisions; lines in between get the offset of the context on
+ * either side, or the average if the two disagree.
+ *
+ * Once built, the mapping is a sorted array of intervals, each with the
+ * offset to add to any line number in it, so a translation is one binary
+ * search. Two mappers compose into a single mapper of the same form, so a
+ * chain of revision-to-revision mappers can be collapsed and kept.
+ */
 public class LineMapper {
-  private TreeMap<Integer, Integer> treeMap = new TreeMap<>();
-  
-  public void addMapping(int fromLine, int toLine) {
-    treeMap.put(fromLine, toLine);
+  // The context lines, in the order Patch adds them (which is usually ascending).
+  private int[] contextFromLines = new int[16];
+  private int[] contextToLines = new int[16];
+  private int contextLineCount = 0;
+
+  // Interval i covers the lines from starts[i] up to (but not including) starts[i + 1], or forever for the last.
+  // The first starts at Integer.MIN_VALUE, so every line is in exactly one interval.
+  private int[] starts;
+  private int[] offsets;
+  // Whether the context either side of the interval disagreed, so that we had to guess.
+  private boolean[] ambiguous;
+
+  public LineMapper() {
   }
-  
+
+  private LineMapper(int[] starts, int[] offsets, boolean[] ambiguous) {
+    this.starts = starts;
+    this.offsets = offsets;
+    this.ambiguous = ambiguous;
+  }
+
+  public synchronized void addMapping(int fromLine, int toLine) {
+    if (starts != null) {
+      throw new IllegalStateException("can't add mappings to a LineMapper that's been used");
+    }
+    if (contextLineCount == contextFromLines.length) {
+      contextFromLines = Arrays.copyOf(contextFromLines, contextLineCount * 2);
+      contextToLines = Arrays.copyOf(contextToLines, contextLineCount * 2);
+    }
+    contextFromLines[contextLineCount] = fromLine;
+    contextToLines[contextLineCount] = toLine;
+    ++contextLineCount;
+  }
+
   private void printVerboseDiagnostics(String line) {
     //Log.warn("LineMapper: " + line);
   }
-  
+
   public int translate(int fromLine) {
     int toLine = translateInteger(fromLine);
     printVerboseDiagnostics("(" + fromLine + " => " + toLine + ")");
     return toLine;
   }
-  
-  private int getOffsetAtFromLine(int fromLine) {
-    int toLine = treeMap.get(fromLine);
-    int offset = toLine - fromLine;
-    printVerboseDiagnostics("(" + fromLine + " => " + toLine + ") gives an offset of " + offset);
-    return offset;
-  }
-  
+
   public Integer translateInteger(Integer fromLine) {
-    if (treeMap.containsKey(fromLine)) {
-      printVerboseDiagnostics("Found fromLine directly in map");
-      return treeMap.get(fromLine);
-    }
-    
-    SortedMap<Integer, Integer> previousContextLines = treeMap.headMap(fromLine);
-    if (previousContextLines.isEmpty()) {
-      printVerboseDiagnostics("Nothing before fromLine in map");
-      return fromLine;
-    }
-    int offsetAtPreviousContextLine = getOffsetAtFromLine(previousContextLines.lastKey());
-    int toLineAccordingToPreviousContext = fromLine.intValue() + offsetAtPreviousContextLine;
-    
-    SortedMap<Integer, Integer> followingContextLines = treeMap.tailMap(fromLine);
-    if (followingContextLines.isEmpty()) {
-      printVerboseDiagnostics("Nothing after fromLine in map");
-      return Integer.valueOf(toLineAccordingToPreviousContext);
-    }
-    int offsetAtNextContextLine = getOffsetAtFromLine(followingContextLines.firstKey());
-    int toLineAccordingToNextContext = fromLine.intValue() + offsetAtNextContextLine;
-    
-    int averageToLine = (toLineAccordingToPreviousContext + toLineAccordingToNextContext) / 2;
-    if (toLineAccordingToPreviousContext != toLineAccordingToNextContext) {
+    buildIntervals();
+    int index = indexOfIntervalContaining(fromLine);
+    int toLine = fromLine + offsets[index];
+    if (ambiguous[index]) {
       // Step-by-step patching will *hopefully* avoid this but, if it happens, I want to know.
       Log.warn("Patch is ambiguous!");
-      Log.warn("To line is somewhere between " + toLineAccordingToPreviousContext + " and " + toLineAccordingToNextContext);
-      Log.warn("Splitting the difference to give an answer of " + averageToLine);
+      Log.warn("Splitting the difference to give an answer of " + toLine + " for line " + fromLine);
+    }
+    return Integer.valueOf(toLine);
+  }
+
+  private int indexOfIntervalContaining(int line) {
+    int index = Arrays.binarySearch(starts, line);
+    return (index >= 0) ? index : -index - 2;
+  }
+
+  /**
+   * Returns a mapper equivalent to translating with this mapper and then
+   * with 'next'. The result has at most as many intervals as the two put
+   * together, and neither of them is changed.
+   */
+  public LineMapper compose(LineMapper next) {
+    buildIntervals();
+    next.buildIntervals();
+    IntervalBuilder result = new IntervalBuilder();
+    for (int i = 0; i < starts.length; ++i) {
+      long start = starts[i];
+      long end = (i + 1 < starts.length) ? starts[i + 1] : Integer.MAX_VALUE + 1L;
+      int offset = offsets[i];
+      // Split our interval where its image crosses from one of next's intervals to another.
+      int j = next.indexOfIntervalContaining(clamp(start + offset));
+      while (start < end) {
+        long nextEnd = (j + 1 < next.starts.length) ? next.starts[j + 1] - (long) offset : Long.MAX_VALUE;
+        result.add(clamp(start), offset + next.offsets[j], ambiguous[i] || next.ambiguous[j]);
+        start = Math.min(end, nextEnd);
+        ++j;
+      }
+    }
+    return result.toLineMapper();
+  }
+
+  private static int clamp(long line) {
+    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, line));
+  }
+
+  /**
+   * Turns the context lines into intervals, the first time we need them.
+   */
+  private synchronized void buildIntervals() {
+    if (starts != null) {
+      return;
+    }
+
+    // Sort the context lines by their "from" line, with the last mapping added for any line winning.
+    TreeMap<Integer, Integer> sorted = null;
+    for (int i = 1; i < contextLineCount; ++i) {
+      if (contextFromLines[i] <= contextFromLines[i - 1]) {
+        sorted = new TreeMap<>();
+        break;
+      }
+    }
+    if (sorted != null) {
+      for (int i = 0; i < contextLineCount; ++i) {
+        sorted.put(contextFromLines[i], contextToLines[i]);
+      }
+      contextLineCount = 0;
+      for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+        contextFromLines[contextLineCount] = entry.getKey();
+        contextToLines[contextLineCount] = entry.getValue();
+        ++contextLineCount;
+      }
+    }
+
+    IntervalBuilder result = new IntervalBuilder();
+    // Nothing before the first context line moves.
+    result.add(Integer.MIN_VALUE, 0, false);
+    for (int i = 0; i < contextLineCount; ++i) {
+      int fromLine = contextFromLines[i];
+      int offset = contextToLines[i] - fromLine;
+      result.add(fromLine, offset, false);
+      if (i + 1 < contextLineCount && fromLine + 1 < contextFromLines[i + 1]) {
+        int nextOffset = contextToLines[i + 1] - contextFromLines[i + 1];
+        if (nextOffset != offset) {
+          printVerboseDiagnostics("Lines " + (fromLine + 1) + " to " + (contextFromLines[i + 1] - 1) + " are somewhere between offsets " + offset + " and " + nextOffset);
+          result.add(fromLine + 1, Math.floorDiv(offset + nextOffset, 2), true);
+        }
+      }
+    }
+    LineMapper built = result.toLineMapper();
+    starts = built.starts;
+    offsets = built.offsets;
+    ambiguous = built.ambiguous;
+    contextFromLines = null;
+    contextToLines = null;
+  }
+
+  /**
+   * Accumulates intervals in ascending order of start, merging neighbours
+   * that would translate the same way.
+   */
+  private static class IntervalBuilder {
+    private int[] starts = new int[16];
+    private int[] offsets = new int[16];
+    private boolean[] ambiguous = new boolean[16];
+    private int count = 0;
+
+    void add(int start, int offset, boolean isAmbiguous) {
+      if (count > 0 && offsets[count - 1] == offset && ambiguous[count - 1] == isAmbiguous) {
+        return;
+      }
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        offsets = Arrays.copyOf(offsets, count * 2);
+        ambiguous = Arrays.copyOf(ambiguous, count * 2);
+      }
+      starts[count] = start;
+      offsets[count] = offset;
+      ambiguous[count] = isAmbiguous;
+      ++count;
+    }
+
+    LineMapper toLineMapper() {
+      return new LineMapper(Arrays.copyOf(starts, count), Arrays.copyOf(offsets, count), Arrays.copyOf(ambiguous, count));
     }
-    return Integer.valueOf(averageToLine);
   }
 }
@@ -0,0 +1,221 @@
+package e.scm;
+
+import e.util.*;
+import java.util.*;
+
+/**
+ * Times building LineMappers, translating through them, and composing a
+ * chain of them, at roughly the scale of tracing a line back through a
+ * long history of a big file, against a copy of the TreeMap-based mapper
+ * LineMapper used to be. Run it with "java e.scm.LineMapperBenchmark".
+ *
+ * The hunks only ever insert lines or replace lines one for one, so no
+ * line falls between context lines that disagree. An ambiguous line makes
+ * either mapper log a warning, and we want to time translating, not
+ * logging.
+ */
+public class LineMapperBenchmark {
+    // A file of this many lines, changed this many times, with this many hunks each time.
+    private static final int LINE_COUNT = 20000;
+    private static final int REVISION_COUNT = 1000;
+    private static final int HUNK_COUNT = 100;
+    private static final int CONTEXT_LINES = 3;
+    private static final int TRANSLATION_COUNT = 1000000;
+
+    private LineMapperBenchmark() {
+    }
+
+    public static void main(String[] arguments) {
+        // Run twice, so the second run's times don't include warming up the JIT.
+        for (int run = 1; run <= 2; ++run) {
+            System.out.println("Run " + run + ":");
+            benchmark(new Random(0));
+        }
+    }
+
+    private static void benchmark(Random random) {
+        ArrayList<int[]> contexts = new ArrayList<>();
+        for (int revision = 0; revision < REVISION_COUNT; ++revision) {
+            contexts.add(makeContext(random));
+        }
+        int[] fromLines = new int[TRANSLATION_COUNT];
+        for (int i = 0; i < fromLines.length; ++i) {
+            fromLines[i] = 1 + random.nextInt(LINE_COUNT);
+        }
+
+        System.out.println(" TreeMap (the old LineMapper):");
+        long startNanos = System.nanoTime();
+        ArrayList<TreeMapLineMapper> oldMappers = new ArrayList<>();
+        for (int[] context : contexts) {
+            TreeMapLineMapper mapper = new TreeMapLineMapper();
+            for (int i = 0; i < context.length; i += 2) {
+                mapper.addMapping(context[i], context[i + 1]);
+            }
+            oldMappers.add(mapper);
+        }
+        report("build " + REVISION_COUNT + " mappers of " + HUNK_COUNT + " hunks", startNanos);
+
+        startNanos = System.nanoTime();
+        long oldChecksum = 0;
+        for (int i = 0; i < TRANSLATION_COUNT; ++i) {
+            oldChecksum += oldMappers.get(i % REVISION_COUNT).translate(fromLines[i]);
+        }
+        report(TRANSLATION_COUNT + " translations", startNanos);
+
+        startNanos = System.nanoTime();
+        int oldLineNumber = LINE_COUNT / 2;
+        for (TreeMapLineMapper mapper : oldMappers) {
+            oldLineNumber = mapper.translate(oldLineNumber);
+        }
+        report("trace one line through " + REVISION_COUNT + " mappers", startNanos);
+
+        System.out.println(" LineMapper:");
+        startNanos = System.nanoTime();
+        ArrayList<LineMapper> mappers = new ArrayList<>();
+        for (int[] context : contexts) {
+            LineMapper mapper = new LineMapper();
+            for (int i = 0; i < context.length; i += 2) {
+                mapper.addMapping(context[i], context[i + 1]);
+            }
+            mappers.add(mapper);
+        }
+        // LineMapper doesn't do the work until the first translation, so make sure that's timed here.
+        for (LineMapper mapper : mappers) {
+            mapper.translate(1);
+        }
+        report("build " + REVISION_COUNT + " mappers of " + HUNK_COUNT + " hunks", startNanos);
+
+        startNanos = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < TRANSLATION_COUNT; ++i) {
+            checksum += mappers.get(i % REVISION_COUNT).translate(fromLines[i]);
+        }
+        report(TRANSLATION_COUNT + " translations", startNanos);
+        check(checksum == oldChecksum, "translations gave checksum " + checksum + " rather than " + oldChecksum);
+
+        startNanos = System.nanoTime();
+        int lineNumber = LINE_COUNT / 2;
+        for (LineMapper mapper : mappers) {
+            lineNumber = mapper.translate(lineNumber);
+        }
+        report("trace one line through " + REVISION_COUNT + " mappers", startNanos);
+        check(lineNumber == oldLineNumber, "traced line " + (LINE_COUNT / 2) + " to " + lineNumber + " rather than " + oldLineNumber);
+
+        startNanos = System.nanoTime();
+        LineMapper composed = mappers.get(0);
+        for (int i = 1; i < mappers.size(); ++i) {
+            composed = composed.compose(mappers.get(i));
+        }
+        report("compose " + REVISION_COUNT + " mappers", startNanos);
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < TRANSLATION_COUNT; ++i) {
+            checksum += composed.translate(fromLines[i]);
+        }
+        report(TRANSLATION_COUNT + " translations through the composed mapper", startNanos);
+        check(composed.translate(LINE_COUNT / 2) == lineNumber, "composed mapper gave " + composed.translate(LINE_COUNT / 2) + " rather than " + lineNumber);
+
+        // Print the checksum so the translations can't be optimized away.
+        System.out.println("  (checksum " + checksum + ")");
+    }
+
+    /**
+     * Makes the context lines Patch would give a mapper, as (from, to)
+     * pairs, for hunks that each insert a few lines or replace a couple.
+     */
+    private static int[] makeContext(Random random) {
+        int[] result = new int[HUNK_COUNT * CONTEXT_LINES * 2 * 2];
+        int count = 0;
+        int gap = LINE_COUNT / HUNK_COUNT;
+        int offset = 0;
+        for (int hunk = 0; hunk < HUNK_COUNT; ++hunk) {
+            int hunkStart = hunk * gap + 1;
+            for (int i = 0; i < CONTEXT_LINES; ++i) {
+                result[count++] = hunkStart + i;
+                result[count++] = hunkStart + i + offset;
+            }
+            // Either insert up to three lines, leaving no gap on the "from" side, or replace two lines with two others.
+            int replacedLines = random.nextBoolean() ? 0 : 2;
+            if (replacedLines == 0) {
+                offset += 1 + random.nextInt(3);
+            }
+            int contextAfter = hunkStart + CONTEXT_LINES + replacedLines;
+            for (int i = 0; i < CONTEXT_LINES; ++i) {
+                result[count++] = contextAfter + i;
+                result[count++] = contextAfter + i + offset;
+            }
+        }
+        return result;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (condition == false) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    private static void report(String what, long startNanos) {
+        System.out.println(String.format("  %-60s %8.1f ms", what, (System.nanoTime() - startNanos) / 1e6));
+    }
+
+    /**
+     * LineMapper as it was before it was backed by sorted arrays, for
+     * comparison.
+     */
+    private static class TreeMapLineMapper {
+        private TreeMap<Integer, Integer> treeMap = new TreeMap<>();
+
+        public void addMapping(int fromLine, int toLine) {
+            treeMap.put(fromLine, toLine);
+        }
+
+        private void printVerboseDiagnostics(String line) {
+            //Log.warn("LineMapper: " + line);
+        }
+
+        public int translate(int fromLine) {
+            int toLine = translateInteger(fromLine);
+            printVerboseDiagnostics("(" + fromLine + " => " + toLine + ")");
+            return toLine;
+        }
+
+        private int getOffsetAtFromLine(int fromLine) {
+            int toLine = treeMap.get(fromLine);
+            int offset = toLine - fromLine;
+            printVerboseDiagnostics("(" + fromLine + " => " + toLine + ") gives an offset of " + offset);
+            return offset;
+        }
+
+        public Integer translateInteger(Integer fromLine) {
+            if (treeMap.containsKey(fromLine)) {
+                printVerboseDiagnostics("Found fromLine directly in map");
+                return treeMap.get(fromLine);
+            }
+
+            SortedMap<Integer, Integer> previousContextLines = treeMap.headMap(fromLine);
+            if (previousContextLines.isEmpty()) {
+                printVerboseDiagnostics("Nothing before fromLine in map");
+                return fromLine;
+            }
+            int offsetAtPreviousContextLine = getOffsetAtFromLine(previousContextLines.lastKey());
+            int toLineAccordingToPreviousContext = fromLine.intValue() + offsetAtPreviousContextLine;
+
+            SortedMap<Integer, Integer> followingContextLines = treeMap.tailMap(fromLine);
+            if (followingContextLines.isEmpty()) {
+                printVerboseDiagnostics("Nothing after fromLine in map");
+                return Integer.valueOf(toLineAccordingToPreviousContext);
+            }
+            int offsetAtNextContextLine = getOffsetAtFromLine(followingContextLines.firstKey());
+            int toLineAccordingToNextContext = fromLine.intValue() + offsetAtNextContextLine;
+
+            int averageToLine = (toLineAccordingToPreviousContext + toLineAccordingToNextContext) / 2;
+            if (toLineAccordingToPreviousContext != toLineAccordingToNextContext) {
+                // Step-by-step patching will *hopefully* avoid this but, if it happens, I want to know.
+                Log.warn("Patch is ambiguous!");
+                Log.warn("To line is somewhere between " + toLineAccordingToPreviousContext + " and " + toLineAccordingToNextContext);
+                Log.warn("Splitting the difference to give an answer of " + averageToLine);
+            }
+            return Integer.valueOf(averageToLine);
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import e.util.*;
+
+/**
+ * Knows, for every committed revision of a file, where each of its lines is
+ * in the neighbouring revisions. It's built from the runs of changed lines
+ * in the diff between each adjacent pair of revisions, which are all it
+ * stores (a few ints per change), and it's saved in the temporary directory
+ * so that we only ever run each of those diffs once.
+ *
+ * Once it has every pair, following a line from one revision to another is
+ * a binary search per step rather than a chain of Patches, and we can say
+ * which revision removed a line with a single binary search. (Which
+ * revision introduced it is what annotating the revision already tells
+ * us.)
+ *
+ * Pairs arrive from two places: the diffs LineTracer runs anyway, and the
+ * ones we run in the background when the user opens the file's history, if
+ * the LineTracingCostModel says we can afford them.
+ */
+public class LineProvenanceIndex {
+    private static final int MAGIC = 0x4c505831; // "LPX1"
+
+    // Filling in the index in the background can take longer than the user would wait for any one trace, but not without limit.
+    private static final long BACKGROUND_BUDGET_IN_TRACES = 10;
+
+    // How many files' indexes we keep in memory, and how long we keep a saved index nobody's looked at.
+    private static final int MAX_CACHED_INDEXES = 32;
+    private static final long MAX_INDEX_FILE_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final Path INDEX_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "e.scm.line-provenance");
+
+    // An evicted index is saved, so little is lost if its file's opened again.
+    @SuppressWarnings("serial")
+    private static final LinkedHashMap<String, LineProvenanceIndex> indexes = new LinkedHashMap<String, LineProvenanceIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LineProvenanceIndex> eldest) {
+            if (size() <= MAX_CACHED_INDEXES) {
+                return false;
+            }
+            eldest.getValue().saveInBackground();
+            return true;
+        }
+    };
+    private static boolean hasPrunedIndexFiles = false;
+
+    private final RevisionControlSystem backEnd;
+    private final String filePath;
+    private final Path indexFile;
+
+    // Change blocks (see Patch.getChangeBlocks) keyed by the numbers of the two revisions the diff was between, in that order.
+    private final HashMap<String, int[]> pairs = new HashMap<>();
+    private boolean isLoaded = false;
+    private boolean isDirty = false;
+
+    // The file's committed revisions, oldest first.
+    private Revision[] history = new Revision[0];
+    private final HashMap<String, Integer> historyIndexes = new HashMap<>();
+
+    // For each revision in 'history', which revision removed each line (-1 if none has).
+    // Computed on demand, and only once we've got all the pairs.
+    private Runs[] removedIn;
+
+    private LineProvenanceIndex(RevisionControlSystem backEnd, String filePath) {
+        this.backEnd = backEnd;
+        this.filePath = filePath;
+        String name = Integer.toHexString((backEnd.getRoot() + "\0" + filePath).hashCode()) + ".idx";
+        this.indexFile = INDEX_DIRECTORY.resolve(name);
+    }
+
+    public static LineProvenanceIndex forFile(RevisionControlSystem backEnd, String filePath) {
+        String key = backEnd.getRoot() + "\0" + filePath;
+        synchronized (indexes) {
+            LineProvenanceIndex index = indexes.get(key);
+            if (index == null) {
+                index = new LineProvenanceIndex(backEnd, filePath);
+                indexes.put(key, index);
+            }
+            if (hasPrunedIndexFiles == false) {
+                hasPrunedIndexFiles = true;
+                backEnd.getScheduler().execute(BackEndScheduler.Priority.PREFETCH, new Runnable() {
+                    public void run() {
+                        pruneIndexFiles();
+                    }
+                });
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Deletes saved indexes that haven't been loaded or saved for a while,
+     * and any temporary files a crash left behind. Loading an index touches
+     * its file, so only indexes of files nobody's looking at go.
+     */
+    private static void pruneIndexFiles() {
+        if (Files.isDirectory(INDEX_DIRECTORY) == false) {
+            return;
+        }
+        long oldestAllowed = System.currentTimeMillis() - MAX_INDEX_FILE_AGE_MS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(INDEX_DIRECTORY)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < oldestAllowed) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException ex) {
+                    Log.warn("Couldn't prune line provenance index \"" + file + "\"", ex);
+                }
+            }
+        } catch (IOException ex) {
+            Log.warn("Couldn't prune line provenance indexes in \"" + INDEX_DIRECTORY + "\"", ex);
+        }
+    }
+
+    /**
+     * Tells the index the file's history, as shown in a RevisionView. Only
+     * touches memory, so it's safe to call on the event dispatch thread.
+     */
+    public synchronized void setRevisions(RevisionListModel revisions) {
+        ArrayList<Revision> committed = new ArrayList<>();
+        for (int i = revisions.getSize() - 1; i >= 0; --i) {
+            Revision revision = revisions.getElementAt(i);
+            if (revision != Revision.LOCAL_REVISION) {
+                committed.add(revision);
+            }
+        }
+        history = committed.toArray(new Revision[committed.size()]);
+        historyIndexes.clear();
+        for (int i = 0; i < history.length; ++i) {
+            historyIndexes.put(history[i].number, i);
+        }
+        forgetRuns();
+    }
+
+    /**
+     * Loads any saved index and then, if it's affordable, runs the diffs
+     * for any adjacent pairs of revisions we don't have yet, as prefetches.
+     */
+    public void buildInBackground() {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.PREFETCH, new Runnable() {
+            public void run() {
+                scheduleMissingPairs();
+            }
+        });
+    }
+
+    private void scheduleMissingPairs() {
+        final ArrayList<Revision[]> missingPairs = new ArrayList<>();
+        synchronized (this) {
+            ensureLoaded();
+            for (int i = 0; i + 1 < history.length; ++i) {
+                if (getBlocks(history[i], history[i + 1]) == null) {
+                    missingPairs.add(new Revision[] { history[i], history[i + 1] });
+                }
+            }
+        }
+        if (missingPairs.isEmpty()) {
+            return;
+        }
+
+        int parallelism = Math.max(1, backEnd.getMaxConcurrentCommands());
+        double expectedMilliseconds = Math.ceil((double) missingPairs.size() / parallelism) * LineTracingCostModel.forBackEnd(backEnd).getExpectedDiffMilliseconds();
+        if (expectedMilliseconds > BACKGROUND_BUDGET_IN_TRACES * LineTracingCostModel.getBudgetMilliseconds()) {
+            // Too slow to do all at once. LineTracer will fill in the pairs the user actually traces through.
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(missingPairs.size());
+        for (final Revision[] pair : missingPairs) {
+            backEnd.getScheduler().execute(BackEndScheduler.Priority.PREFETCH, new Runnable() {
+                public void run() {
+                    try {
+                        Patch patch = new Patch(backEnd, filePath, pair[0], pair[1], false, false);
+                        addPair(pair[0], pair[1], patch.getChangeBlocks());
+                    } catch (Exception ex) {
+                        Log.warn("Couldn't index changes between revisions " + pair[0].number + " and " + pair[1].number + " of \"" + filePath + "\"", ex);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            save();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Records the change blocks of a diff from 'first' to 'second', which
+     * must be committed revisions. They needn't be adjacent or in order;
+     * we only use pairs that turn out to be neighbours.
+     */
+    public synchronized void addPair(Revision first, Revision second, int[] blocks) {
+        pairs.put(first.number + "\0" + second.number, blocks);
+        isDirty = true;
+        forgetRuns();
+    }
+
+    /**
+     * Tests whether we can translate line numbers between the two
+     * revisions without running any diffs, in either direction.
+     */
+    private boolean canTranslate(Revision fromRevision, Revision toRevision) {
+        Integer from = historyIndexes.get(fromRevision.number);
+        Integer to = historyIndexes.get(toRevision.number);
+        if (from == null || to == null) {
+            return false;
+        }
+        for (int i = Math.min(from, to); i < Math.max(from, to); ++i) {
+            if (getBlocks(history[i], history[i + 1]) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Translates a line number in 'fromRevision' into the corresponding one
+     * in 'toRevision', a step at a time. A line that doesn't survive a step
+     * goes to where it would have been. Returns -1 if we'd need to run diffs
+     * we haven't got, in which case you'll have to use a LineTracer.
+     */
+    public synchronized int translate(Revision fromRevision, Revision toRevision, int lineNumber) {
+        ensureLoaded();
+        if (canTranslate(fromRevision, toRevision) == false) {
+            return -1;
+        }
+        int from = historyIndexes.get(fromRevision.number);
+        int to = historyIndexes.get(toRevision.number);
+        int step = (to > from) ? 1 : -1;
+        for (int i = from; i != to; i += step) {
+            lineNumber = translateStep(history[i], history[i + step], lineNumber);
+        }
+        return lineNumber;
+    }
+
+    private int translateStep(Revision fromRevision, Revision toRevision, int lineNumber) {
+        int[] blocks = pairs.get(fromRevision.number + "\0" + toRevision.number);
+        boolean reversed = false;
+        if (blocks == null) {
+            blocks = pairs.get(toRevision.number + "\0" + fromRevision.number);
+            reversed = true;
+        }
+        int source = reversed ? 2 : 0;
+        int target = reversed ? 0 : 2;
+        // Find the last block starting at or before our line.
+        int low = 0;
+        int high = blocks.length / 4 - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid * 4 + source] <= lineNumber) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found == -1) {
+            return lineNumber;
+        }
+        int sourceStart = blocks[found * 4 + source];
+        int sourceLength = blocks[found * 4 + source + 1];
+        int targetStart = blocks[found * 4 + target];
+        int targetLength = blocks[found * 4 + target + 1];
+        if (lineNumber < sourceStart + sourceLength) {
+            // The line was changed. Go to the corresponding line of the replacement, or the last one if there are fewer.
+            return targetStart + Math.min(lineNumber - sourceStart, Math.max(targetLength - 1, 0));
+        }
+        return lineNumber - (sourceStart + sourceLength) + (targetStart + targetLength);
+    }
+
+    /**
+     * Returns the first revision without the given line of the given
+     * revision, or null if the line's still there in the newest revision or
+     * we don't have the whole history indexed yet. Only touches memory, so
+     * it's safe to call on the event dispatch thread.
+     */
+    public synchronized Revision getRevisionRemoving(Revision revision, int lineNumber) {
+        Integer index = historyIndexes.get(revision.number);
+        if (index == null || ensureRuns() == false) {
+            return null;
+        }
+        int removingIndex = removedIn[index].valueAt(lineNumber);
+        return (removingIndex == -1) ? null : history[removingIndex];
+    }
+
+    private int[] getBlocks(Revision first, Revision second) {
+        int[] blocks = pairs.get(first.number + "\0" + second.number);
+        if (blocks == null) {
+            blocks = pairs.get(second.number + "\0" + first.number);
+        }
+        return blocks;
+    }
+
+    private void forgetRuns() {
+        removedIn = null;
+    }
+
+    /**
+     * Works out where every line of every revision went, unless we already
+     * have. Returns false if we're missing pairs, or haven't loaded them yet.
+     */
+    private boolean ensureRuns() {
+        if (removedIn != null) {
+            return true;
+        }
+        int count = history.length;
+        if (isLoaded == false || count == 0 || canTranslate(history[0], history[count - 1]) == false) {
+            return false;
+        }
+        Runs[] removed = new Runs[count];
+        removed[count - 1] = Runs.constant(-1);
+        for (int i = count - 2; i >= 0; --i) {
+            removed[i] = carry(removed[i + 1], history[i + 1], history[i], i + 1);
+        }
+        removedIn = removed;
+        return true;
+    }
+
+    /**
+     * Carries per-line values from one revision to a neighbour: lines that
+     * are in both keep their value, and lines only in the target get
+     * 'changedValue'.
+     */
+    private Runs carry(Runs sourceRuns, Revision sourceRevision, Revision targetRevision, int changedValue) {
+        int[] blocks = pairs.get(sourceRevision.number + "\0" + targetRevision.number);
+        boolean reversed = false;
+        if (blocks == null) {
+            blocks = pairs.get(targetRevision.number + "\0" + sourceRevision.number);
+            reversed = true;
+        }
+        int source = reversed ? 2 : 0;
+        int target = reversed ? 0 : 2;
+        Runs.Builder result = new Runs.Builder();
+        int sourceLine = 1;
+        int targetLine = 1;
+        for (int i = 0; i < blocks.length; i += 4) {
+            sourceRuns.copyTo(result, sourceLine, blocks[i + source], targetLine - sourceLine);
+            if (blocks[i + target + 1] > 0) {
+                result.add(blocks[i + target], changedValue);
+            }
+            sourceLine = blocks[i + source] + blocks[i + source + 1];
+            targetLine = blocks[i + target] + blocks[i + target + 1];
+        }
+        sourceRuns.copyTo(result, sourceLine, Integer.MAX_VALUE, targetLine - sourceLine);
+        return result.toRuns();
+    }
+
+    private void ensureLoaded() {
+        if (isLoaded) {
+            return;
+        }
+        isLoaded = true;
+        if (Files.exists(indexFile) == false) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readUTF().equals(backEnd.getRoot().toString()) == false || in.readUTF().equals(filePath) == false) {
+                // Some other file's index, or an old format. We'll overwrite it.
+                return;
+            }
+            int pairCount = in.readInt();
+            for (int i = 0; i < pairCount; ++i) {
+                String key = in.readUTF();
+                int[] blocks = new int[in.readInt()];
+                for (int j = 0; j < blocks.length; ++j) {
+                    blocks[j] = in.readInt();
+                }
+                if (pairs.containsKey(key) == false) {
+                    pairs.put(key, blocks);
+                }
+            }
+        } catch (IOException ex) {
+            Log.warn("Couldn't load line provenance index \"" + indexFile + "\"", ex);
+        }
+        try {
+            // We're using it, so don't let pruneIndexFiles delete it.
+            Files.setLastModifiedTime(indexFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            Log.warn("Couldn't touch line provenance index \"" + indexFile + "\"", ex);
+        }
+    }
+
+    /**
+     * Saves the index as a prefetch, so that whoever's just added pairs
+     * doesn't have to wait for the disk.
+     */
+    public void saveInBackground() {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.PREFETCH, new Runnable() {
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Saves the index, if it's changed since it was loaded or last saved.
+     * Failure is logged rather than thrown; we can always run the diffs
+     * again.
+     */
+    public void save() {
+        HashMap<String, int[]> snapshot;
+        synchronized (this) {
+            if (isDirty == false) {
+                return;
+            }
+            ensureLoaded();
+            snapshot = new HashMap<>(pairs);
+            isDirty = false;
+        }
+        try {
+            Files.createDirectories(indexFile.getParent());
+            // Write a new file and move it into place, so that a concurrent reader never sees half an index.
+            Path temporaryFile = Files.createTempFile(indexFile.getParent(), "index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(backEnd.getRoot().toString());
+                out.writeUTF(filePath);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, int[]> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (int value : entry.getValue()) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+            Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Log.warn("Couldn't save line provenance index \"" + indexFile + "\"", ex);
+        }
+    }
+
+    /**
+     * A value for every line of a revision, run-length encoded: each run
+     * starts at a line number and lasts until the next starts. The last
+     * run goes on forever, so we never need to know how long a file is.
+     */
+    private static final class Runs {
+        private final int[] starts;
+        private final int[] values;
+
+        private Runs(int[] starts, int[] values) {
+            this.starts = starts;
+            this.values = values;
+        }
+
+        static Runs constant(int value) {
+            return new Runs(new int[] { 1 }, new int[] { value });
+        }
+
+        int valueAt(int lineNumber) {
+            return values[indexOfRunContaining(lineNumber)];
+        }
+
+        private int indexOfRunContaining(int lineNumber) {
+            int index = Arrays.binarySearch(starts, lineNumber);
+            return (index >= 0) ? index : Math.max(-index - 2, 0);
+        }
+
+        /**
+         * Adds the runs covering lines 'from' up to (but not including)
+         * 'to' to 'builder', moved by 'offset' lines.
+         */
+        void copyTo(Builder builder, int from, int to, int offset) {
+            if (from >= to) {
+                return;
+            }
+            int index = indexOfRunContaining(from);
+            builder.add(from + offset, values[index]);
+            for (++index; index < starts.length && starts[index] < to; ++index) {
+                builder.add(starts[index] + offset, values[index]);
+            }
+        }
+
+        static final class Builder {
+            private int[] starts = new int[8];
+            private int[] values = new int[8];
+            private int count = 0;
+
+            void add(int start, int value) {
+                if (count > 0 && values[count - 1] == value) {
+                    return;
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                starts[count] = start;
+                values[count] = value;
+                ++count;
+            }
+
+            Runs toRuns() {
+                return new Runs(Arrays.copyOf(starts, count), Arrays.copyOf(values, count));
+            }
+        }
+    }
+}
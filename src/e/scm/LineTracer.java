@@ -0,0 +1,174 @@
+package e.scm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Follows a line of a file back through its history. Tracing step-by-step
+ * needs a diff for every adjacent pair of revisions; we fetch those in
+ * parallel on the repository's BackEndScheduler, apply them in order as
+ * they arrive, and keep the resulting LineMappers so that later traces
+ * through the same revisions don't need any diffs at all.
+ */
+public class LineTracer {
+    // Each mapper is small (a few entries per hunk), so we can afford plenty.
+    private static final int MAX_CACHED_MAPPERS = 20000;
+
+    @SuppressWarnings("serial")
+    private static final Map<String, LineMapper> mapperCache = Collections.synchronizedMap(new LinkedHashMap<String, LineMapper>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LineMapper> eldest) {
+            return size() > MAX_CACHED_MAPPERS;
+        }
+    });
+
+    // Whole traces, collapsed into a single mapper, keyed like mapperCache by the ends of the trace.
+    // A composed mapper is no bigger than the mappers it came from put together, so these are cheap to keep too.
+    @SuppressWarnings("serial")
+    private static final Map<String, LineMapper> traceCache = Collections.synchronizedMap(new LinkedHashMap<String, LineMapper>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LineMapper> eldest) {
+            return size() > MAX_CACHED_MAPPERS;
+        }
+    });
+
+    private final RevisionControlSystem backEnd;
+    private final String filePath;
+    private final StatusReporter statusReporter;
+
+    public LineTracer(RevisionControlSystem backEnd, String filePath, StatusReporter statusReporter) {
+        this.backEnd = backEnd;
+        this.filePath = filePath;
+        this.statusReporter = statusReporter;
+    }
+
+    /**
+     * Translates a line number in 'fromRevision' into one in the last
+     * revision of 'revisionRange', stepping through the revisions in
+     * between as far as the cost model allows. As in RevisionView, the
+     * range starts after 'fromRevision' and its first revision is skipped.
+     */
+    public int translate(Revision fromRevision, List<Revision> revisionRange, int lineNumber) {
+        Revision toRevision = revisionRange.get(revisionRange.size() - 1);
+        ArrayList<Revision> steps = new ArrayList<>();
+        steps.add(fromRevision);
+        steps.addAll(revisionRange.subList(1 /* sic */, revisionRange.size()));
+        int stepCount = steps.size() - 1;
+
+        LineMapper tracedMapper = traceCache.get(keyFor(fromRevision, toRevision));
+        if (tracedMapper != null) {
+            return tracedMapper.translate(lineNumber);
+        }
+
+        int cachedStepCount = 0;
+        for (int i = 0; i < stepCount; ++i) {
+            if (mapperCache.containsKey(keyFor(steps.get(i), steps.get(i + 1)))) {
+                ++cachedStepCount;
+            }
+        }
+
+        LineTracingCostModel.Strategy strategy = LineTracingCostModel.forBackEnd(backEnd).chooseStrategy(stepCount, cachedStepCount, backEnd.getMaxConcurrentCommands());
+        if (strategy == LineTracingCostModel.Strategy.NONE) {
+            return lineNumber;
+        } else if (strategy == LineTracingCostModel.Strategy.ONE_STEP) {
+            return getLineMapper(fromRevision, toRevision).translate(lineNumber);
+        }
+        try {
+            return translateStepByStep(steps, lineNumber);
+        } finally {
+            // Keep whatever pairs we fetched for next time, even if the user gave up waiting.
+            LineProvenanceIndex.forFile(backEnd, filePath).saveInBackground();
+        }
+    }
+
+    private int translateStepByStep(List<Revision> steps, int lineNumber) {
+        CancellationToken token = CancellationToken.getCurrent();
+        long deadline = System.nanoTime() + LineTracingCostModel.getBudgetMilliseconds() * 1000000L;
+        Revision toRevision = steps.get(steps.size() - 1);
+
+        // Queue all the diffs we don't already have. They're prefetches: we'll run any that haven't started
+        // by the time we need them ourselves, so they needn't push ahead of anything the user's waiting for.
+        ArrayList<LineMapper> cachedMappers = new ArrayList<>();
+        ArrayList<FutureTask<LineMapper>> fetches = new ArrayList<>();
+        for (int i = 0; i < steps.size() - 1; ++i) {
+            final Revision from = steps.get(i);
+            final Revision to = steps.get(i + 1);
+            LineMapper cachedMapper = mapperCache.get(keyFor(from, to));
+            FutureTask<LineMapper> fetch = null;
+            if (cachedMapper == null) {
+                fetch = backEnd.getScheduler().submit(BackEndScheduler.Priority.PREFETCH, CancellationToken.inheritCurrent(new Callable<LineMapper>() {
+                    public LineMapper call() {
+                        return getLineMapper(from, to);
+                    }
+                }));
+            }
+            cachedMappers.add(cachedMapper);
+            fetches.add(fetch);
+        }
+
+        try {
+            // Apply the mappers strictly in order; they don't commute.
+            LineMapper composedMapper = null;
+            for (int i = 0; i < fetches.size(); ++i) {
+                token.throwIfCancelled();
+                Revision from = steps.get(i);
+                if (System.nanoTime() > deadline) {
+                    // The diffs are slower than we thought. Rather than keep the user waiting, finish in one step.
+                    return getLineMapper(from, toRevision).translate(lineNumber);
+                }
+                // Don't use startTask here: that would make our caller's task look outdated.
+                statusReporter.setMessage("Tracing line back to revision " + toRevision.number + " (currently at " + from.number + ")...");
+                LineMapper mapper = cachedMappers.get(i);
+                if (mapper == null) {
+                    FutureTask<LineMapper> fetch = fetches.get(i);
+                    // Does nothing if the scheduler's already started (or finished) this one.
+                    fetch.run();
+                    mapper = fetch.get();
+                }
+                lineNumber = mapper.translate(lineNumber);
+                composedMapper = (composedMapper == null) ? mapper : composedMapper.compose(mapper);
+            }
+            if (composedMapper != null && steps.contains(Revision.LOCAL_REVISION) == false) {
+                traceCache.put(keyFor(steps.get(0), toRevision), composedMapper);
+            }
+            return lineNumber;
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            // If we're leaving early, don't waste the scheduler's time on diffs we won't use.
+            for (FutureTask<LineMapper> fetch : fetches) {
+                if (fetch != null) {
+                    fetch.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the mapping of line numbers from one revision to another,
+     * running a diff unless we've already got it.
+     */
+    private LineMapper getLineMapper(Revision fromRevision, Revision toRevision) {
+        String key = keyFor(fromRevision, toRevision);
+        LineMapper result = mapperCache.get(key);
+        if (result == null) {
+            Patch patch = new Patch(backEnd, filePath, fromRevision, toRevision, true, false);
+            result = patch.getLineMapper();
+            // The working copy can change under us, so only remember mappings between committed revisions.
+            if (fromRevision != Revision.LOCAL_REVISION && toRevision != Revision.LOCAL_REVISION) {
+                mapperCache.put(key, result);
+                LineProvenanceIndex.forFile(backEnd, filePath).addPair(fromRevision, toRevision, patch.getChangeBlocks());
+            }
+        }
+        return result;
+    }
+
+    private String keyFor(Revision fromRevision, Revision toRevision) {
+        return backEnd.getRoot() + "\0" + filePath + "\0" + fromRevision.number + "\0" + toRevision.number;
+    }
+}
@@ -0,0 +1,103 @@
+package e.scm;
+
+import java.nio.file.*;
+import java.util.*;
+import e.util.*;
+
+/**
+ * Decides how hard we can afford to try when following a line from one
+ * revision to another. Tracing step-by-step (one diff per adjacent pair of
+ * revisions) gives the best answer; a single diff across the whole range is
+ * cheaper but can lose track of lines in heavily edited regions; and not
+ * translating at all is free but only right for unchanged files.
+ *
+ * We keep a running estimate of how long a diff takes in each repository,
+ * starting from the back-end's guess and learning from the diffs we
+ * actually run, and choose the best strategy that fits the user's budget.
+ * The budget is SCM_LINE_TRACING_BUDGET milliseconds per trace, if set.
+ */
+public class LineTracingCostModel {
+    public enum Strategy {
+        STEP_BY_STEP,
+        ONE_STEP,
+        NONE
+    }
+
+    private static final long DEFAULT_BUDGET_MILLISECONDS = 2000;
+
+    // The back-end's guess counts for this many observations.
+    private static final double PRIOR_WEIGHT = 3;
+    // Older observations fade out once we've this many, so we follow a server that slows down or speeds up.
+    private static final double MAX_WEIGHT = 20;
+
+    // A diff across many revisions is usually slower than one between neighbours; this is a rough allowance.
+    private static final double ONE_STEP_COST_IN_DIFFS = 2;
+
+    private static final HashMap<Path, LineTracingCostModel> models = new HashMap<>();
+
+    private double expectedDiffMilliseconds;
+    private double weight;
+
+    private LineTracingCostModel(long priorDiffMilliseconds) {
+        this.expectedDiffMilliseconds = priorDiffMilliseconds;
+        this.weight = PRIOR_WEIGHT;
+    }
+
+    public static LineTracingCostModel forBackEnd(RevisionControlSystem backEnd) {
+        synchronized (models) {
+            LineTracingCostModel model = models.get(backEnd.getRoot());
+            if (model == null) {
+                model = new LineTracingCostModel(backEnd.getExpectedDiffMilliseconds());
+                models.put(backEnd.getRoot(), model);
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Records how long a diff between two committed revisions took to run.
+     */
+    public synchronized void addDiffTime(long nanos) {
+        weight = Math.min(weight + 1, MAX_WEIGHT);
+        expectedDiffMilliseconds += (nanos / 1e6 - expectedDiffMilliseconds) / weight;
+    }
+
+    public synchronized double getExpectedDiffMilliseconds() {
+        return expectedDiffMilliseconds;
+    }
+
+    /**
+     * Chooses how to trace a line across 'stepCount' adjacent pairs of
+     * revisions, given that 'cachedStepCount' of them won't need a diff and
+     * up to 'parallelism' diffs can run at once.
+     */
+    public Strategy chooseStrategy(int stepCount, int cachedStepCount, int parallelism) {
+        double diffMilliseconds = getExpectedDiffMilliseconds();
+        long budget = getBudgetMilliseconds();
+        int diffCount = stepCount - cachedStepCount;
+        double stepByStepMilliseconds = Math.ceil((double) diffCount / Math.max(1, parallelism)) * diffMilliseconds;
+        if (stepByStepMilliseconds <= budget) {
+            return Strategy.STEP_BY_STEP;
+        }
+        if (stepCount > 1 && ONE_STEP_COST_IN_DIFFS * diffMilliseconds <= budget) {
+            return Strategy.ONE_STEP;
+        }
+        return Strategy.NONE;
+    }
+
+    /**
+     * Returns how long the user's prepared to wait for a line to be traced,
+     * in milliseconds.
+     */
+    public static long getBudgetMilliseconds() {
+        String budget = System.getenv("SCM_LINE_TRACING_BUDGET");
+        if (budget != null) {
+            try {
+                return Long.parseLong(budget.trim());
+            } catch (NumberFormatException ex) {
+                Log.warn("Ignoring non-numeric SCM_LINE_TRACING_BUDGET \"" + budget + "\"");
+            }
+        }
+        return DEFAULT_BUDGET_MILLISECONDS;
+    }
+}
@@ -0,0 +1,32 @@
+package e.scm;
+
+import java.util.function.*;
+import e.util.*;
+
+/**
+ * Parses the output of a back-end's log command a line at a time, as the
+ * command produces it, passing on each Revision as soon as it's complete.
+ * This lets us show the start of a long history while the rest is still
+ * being read, without holding the whole log in memory.
+ */
+public abstract class LogParser implements ProcessUtilities.LineListener {
+    private final Consumer<Revision> listener;
+
+    public LogParser(Consumer<Revision> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Hands a complete revision to our listener.
+     */
+    protected void addRevision(Revision revision) {
+        listener.accept(revision);
+    }
+
+    /**
+     * Invoked after the last line of output, in case the last revision is
+     * only known to be complete when the output ends.
+     */
+    public void finish() {
+    }
+}
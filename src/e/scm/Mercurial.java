@@ -1,12 +1,75 @@
 package e.scm;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.regex.*;
 import e.util.*;
 
 // FIXME: sometimes we see 123:deadbeef, sometimes just 123, sometimes just deadbeef. "123" is the "revision number", "deadbeef" the "changeset number". We should learn about these and decide what to do. For the moment, we just use the revision number.
 // FIXME: Mercurial seems to include empty merges as changesets. Perhaps we want to elide these, or somehow make them less in your face.
 public class Mercurial extends RevisionControlSystem {
+    private static final HashMap<Path, MercurialCommandServer> commandServers = new HashMap<>();
+    private static final HashSet<Path> rootsWithoutCommandServers = new HashSet<>();
+    
+    /**
+     * Returns the command server for this repository, starting it if need be,
+     * or null if this Mercurial can't run one.
+     */
+    private MercurialCommandServer getCommandServer() {
+        synchronized (commandServers) {
+            MercurialCommandServer server = commandServers.get(getRoot());
+            if (server == null && rootsWithoutCommandServers.contains(getRoot()) == false) {
+                try {
+                    server = new MercurialCommandServer(getRoot());
+                    commandServers.put(getRoot(), server);
+                } catch (IOException ex) {
+                    Log.warn("Couldn't start hg command server; running hg for each command instead", ex);
+                    rootsWithoutCommandServers.add(getRoot());
+                }
+            }
+            return server;
+        }
+    }
+    
+    /**
+     * Sends hg commands to the command server where possible, to save paying
+     * for Python's start-up on every one.
+     */
+    @Override
+    protected int runCommand(String[] command, String input, final ProcessUtilities.LineListener outputListener, final ProcessUtilities.LineListener errorsListener) {
+        if (command[0].equals("hg") == false || input.isEmpty() == false) {
+            return super.runCommand(command, input, outputListener, errorsListener);
+        }
+        // The command server can't kill a command part-way through, but at least we can avoid starting one nobody wants.
+        CancellationToken.getCurrent().throwIfCancelled();
+        MercurialCommandServer server = getCommandServer();
+        if (server == null) {
+            return super.runCommand(command, input, outputListener, errorsListener);
+        }
+        final int[] lineCount = new int[1];
+        ProcessUtilities.LineListener countingListener = new ProcessUtilities.LineListener() {
+            public void processLine(String line) {
+                ++lineCount[0];
+                outputListener.processLine(line);
+            }
+        };
+        try {
+            return server.runCommand(Arrays.asList(command).subList(1, command.length), countingListener, errorsListener);
+        } catch (IOException ex) {
+            synchronized (commandServers) {
+                commandServers.remove(getRoot());
+            }
+            if (lineCount[0] > 0) {
+                // The caller has already seen some of the output, so we can't quietly start again.
+                throw new RuntimeException("hg command server died running '" + ProcessUtilities.shellQuotedFormOf(Arrays.asList(command)) + "'", ex);
+            }
+            Log.warn("hg command server died; running command directly", ex);
+            return super.runCommand(command, input, outputListener, errorsListener);
+        }
+    }
+    
     public String followRenames(Revision revision, String filename) {
         if (revision == null) {
             return filename;
@@ -17,7 +80,7 @@ public class Mercurial extends RevisionControlSystem {
         String[] command = new String[] { "hg", "diff", "--git", "-r", revision.number };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -73,6 +136,11 @@ public class Mercurial extends RevisionControlSystem {
         return result.toArray(new String[result.size()]);
     }
     
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        return new String[] { "hg", "cat", "-r", revision.number, followRenames(revision, filename) };
+    }
+    
     public String[] getLogCommand(String filename) {
         return new String[] { "hg", "log", "-v", "--follow", filename };
     }
@@ -121,74 +189,103 @@ public class Mercurial extends RevisionControlSystem {
         throw new RuntimeException("expected " + expected + ", got \"" + got + "\"");
     }
     
-    public RevisionListModel parseLog(List<String> linesList) {
-        String[] lines = linesList.toArray(new String[linesList.size()]);
-        
-        RevisionListModel result = new RevisionListModel();
-        String number = null;
-        String author = null;
-        String date = null;
-        String time = null;
-        StringBuilder comment = null;
-        for (int i = 0; i < lines.length; ++i) {
-            if (lines[i].startsWith("changeset:   ")) {
-                number = lines[i].substring(13);
-                // FIXME: I'm sure this isn't right, but "hg" doesn't seem to accept the long form as a revision argument.
-                number = number.replaceAll("^(\\d+):.*$", "$1");
-            } else if (lines[i].startsWith("user:        ")) {
-                author = lines[i].substring(13);
-            } else if (lines[i].startsWith("files:       ")) {
-                // Ignore.
-            } else if (lines[i].startsWith("parent:      ")) {
-                // Ignore.
-                // FIXME: this is potentially useful for the "bzrk"-style view.
-            } else if (lines[i].startsWith("tag:         ")) {
-                // Ignore.
-            } else if (lines[i].startsWith("branch:      ")) {
-                // Ignore.
-            } else if (lines[i].startsWith("date:        ")) {
-                Matcher matcher = TIMESTAMP_PATTERN.matcher(lines[i]);
-                if (matcher.matches()) {
-                    String englishMonth = matcher.group(1);
-                    int dayOfMonth = Integer.parseInt(matcher.group(2));
-                    String timeWithoutOffset = matcher.group(3);
-                    String year = matcher.group(4);
-                    String offset = matcher.group(5);
-                    date = String.format("%s-%02d-%02d", year, monthMap.get(englishMonth), dayOfMonth);
-                    time = timeWithoutOffset + " " + offset;
-                } else {
-                    reportLogParsingFailure("date", lines[i]);
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return new LogParser(listener) {
+            private String number = null;
+            private String author = null;
+            private String date = null;
+            private String time = null;
+            // Non-null while we're reading a description.
+            private StringBuilder comment = null;
+            // Blank lines we've seen in a description but not yet added to it,
+            // because two of them followed by another changeset mark its end.
+            private int pendingBlankLineCount = 0;
+            
+            public void processLine(String line) {
+                if (comment != null) {
+                    // FIXME: how do they represent a "description" that contains two blank lines? Experiment suggests "they don't".
+                    if (line.length() == 0) {
+                        ++pendingBlankLineCount;
+                        return;
+                    }
+                    if (pendingBlankLineCount >= 2 && line.startsWith("changeset:   ")) {
+                        pendingBlankLineCount -= 2;
+                        finishRevision();
+                        // Fall through to parse the new changeset's header.
+                    } else {
+                        appendPendingBlankLines();
+                        comment.append(line);
+                        comment.append("\n");
+                        return;
+                    }
                 }
-            } else if (lines[i].equals("description:")) {
-                // FIXME: how do they represent a "description" that contains two blank lines? Experiment suggests "they don't".
-                comment = new StringBuilder();
-                ++i;
-                while (i < lines.length) {
-                    if (lines[i].length() + lines[i+1].length() == 0 && (i+2 == lines.length || lines[i+2].startsWith("changeset:   "))) {
-                        ++i;
-                        break;
+                if (line.startsWith("changeset:   ")) {
+                    number = line.substring(13);
+                    // FIXME: I'm sure this isn't right, but "hg" doesn't seem to accept the long form as a revision argument.
+                    number = number.replaceAll("^(\\d+):.*$", "$1");
+                } else if (line.startsWith("user:        ")) {
+                    author = line.substring(13);
+                } else if (line.startsWith("files:       ")) {
+                    // Ignore.
+                } else if (line.startsWith("parent:      ")) {
+                    // Ignore.
+                    // FIXME: this is potentially useful for the "bzrk"-style view.
+                } else if (line.startsWith("tag:         ")) {
+                    // Ignore.
+                } else if (line.startsWith("branch:      ")) {
+                    // Ignore.
+                } else if (line.startsWith("date:        ")) {
+                    Matcher matcher = TIMESTAMP_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        String englishMonth = matcher.group(1);
+                        int dayOfMonth = Integer.parseInt(matcher.group(2));
+                        String timeWithoutOffset = matcher.group(3);
+                        String year = matcher.group(4);
+                        String offset = matcher.group(5);
+                        date = String.format("%s-%02d-%02d", year, monthMap.get(englishMonth), dayOfMonth);
+                        time = timeWithoutOffset + " " + offset;
+                    } else {
+                        reportLogParsingFailure("date", line);
                     }
-                    comment.append(lines[i++]);
+                } else if (line.equals("description:")) {
+                    comment = new StringBuilder();
+                    pendingBlankLineCount = 0;
+                } else {
+                    reportLogParsingFailure("known header", line);
+                }
+            }
+            
+            private void appendPendingBlankLines() {
+                for (; pendingBlankLineCount > 0; --pendingBlankLineCount) {
                     comment.append("\n");
                 }
-                if (number == null || author == null || date == null || time == null || comment == null) {
+            }
+            
+            private void finishRevision() {
+                appendPendingBlankLines();
+                if (number == null || author == null || date == null || time == null) {
                     throw new RuntimeException("incomplete log record: number=" + number + ",author=" + author + ",date=" + date + ",time=" + time + ",comment" + comment);
                 }
-                Revision revision = new Revision(number, date, time, author, comment.toString());
-                result.add(revision);
+                addRevision(new Revision(number, date, time, author, comment.toString()));
                 number = author = date = time = null;
-            } else {
-                reportLogParsingFailure("known header", lines[i]);
+                comment = null;
             }
-        }
-        return result;
+            
+            public void finish() {
+                if (comment != null) {
+                    // The log ends with the same two blank lines that separate changesets.
+                    pendingBlankLineCount = Math.max(0, pendingBlankLineCount - 2);
+                    finishRevision();
+                }
+            }
+        };
     }
     
     public boolean isLocallyModified(String filename) {
         String[] command = new String[] { "hg", "status", filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         for (String line : lines) {
             if (line.startsWith("M ")) {
                 return true;
@@ -197,6 +294,13 @@ public class Mercurial extends RevisionControlSystem {
         return false;
     }
     
+    /**
+     * Mercurial has all the meta-data locally.
+     */
+    public long getExpectedDiffMilliseconds() {
+        return 50;
+    }
+    
     public boolean supportsChangeSets() {
         return true;
     }
@@ -205,7 +309,7 @@ public class Mercurial extends RevisionControlSystem {
         String[] command = new String[] { "hg", "log", "-v", "-r", revision.number };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuoteShared(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -237,42 +341,69 @@ public class Mercurial extends RevisionControlSystem {
     }
     
     public List<FileStatus> getStatuses(StatusReporter statusReporter) {
-        String[] command = new String[] { "hg", "status" };
-        ArrayList<String> lines = new ArrayList<>();
-        ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
-        if (status != 0) {
-            throwError(status, command, lines, errors);
+        return runStatusCommand(new String[] { "hg", "status" });
+    }
+    
+    @Override
+    public void streamStatuses(StatusReporter statusReporter, StatusListener listener) {
+        runStatusCommand(new String[] { "hg", "status" }, listener);
+    }
+    
+    @Override
+    public boolean canGetStatusesOfPaths() {
+        return true;
+    }
+    
+    @Override
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        ArrayList<String> command = new ArrayList<>(Arrays.asList("hg", "status", "--"));
+        for (String filename : filenames) {
+            // Say they're paths, so that Mercurial doesn't take any of them for a pattern.
+            command.add("path:" + filename);
         }
-        
-        HashMap<String, Integer> map = new HashMap<>();
+        return runStatusCommand(command.toArray(new String[command.size()]));
+    }
+    
+    private List<FileStatus> runStatusCommand(String[] command) {
+        ArrayList<FileStatus> statuses = new ArrayList<>();
+        runStatusCommand(command, new ArrayListStatusListener(statuses));
+        return statuses;
+    }
+    
+    private void runStatusCommand(String[] command, final StatusListener listener) {
+        final HashMap<String, Integer> map = new HashMap<>();
         map.put("A", FileStatus.ADDED);
         map.put("R", FileStatus.REMOVED);
         map.put("M", FileStatus.MODIFIED);
         map.put("?", FileStatus.NEW);
         
-        ArrayList<FileStatus> statuses = new ArrayList<>();
-        Pattern pattern = Pattern.compile("^([MAR?]) (.*)$");
-        int canonicalState = FileStatus.NOT_RECOGNIZED_BY_BACK_END;
-        for (String line : lines) {
-            Matcher matcher = pattern.matcher(line);
-            if (matcher.find()) {
-                String path = matcher.group(2);
-                Integer state = map.get(matcher.group(1));
-                canonicalState = (state != null) ? state.intValue() : FileStatus.NOT_RECOGNIZED_BY_BACK_END;
-                statuses.add(new FileStatus(canonicalState, path));
-            } else {
-                Log.warn("Mercurial back end didn't understand '" + line + "'.");
+        final ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        final Pattern pattern = Pattern.compile("^([MAR?]) (.*)$");
+        int status = backQuote(command, "", new ProcessUtilities.LineListener() {
+            public void processLine(String line) {
+                lines.add(line);
+                Matcher matcher = pattern.matcher(line);
+                if (matcher.find()) {
+                    String path = matcher.group(2);
+                    Integer state = map.get(matcher.group(1));
+                    int canonicalState = (state != null) ? state.intValue() : FileStatus.NOT_RECOGNIZED_BY_BACK_END;
+                    listener.statusFound(new FileStatus(canonicalState, path));
+                } else {
+                    Log.warn("Mercurial back end didn't understand '" + line + "'.");
+                }
             }
+        }, new ProcessUtilities.ArrayListLineListener(errors));
+        if (status != 0) {
+            throwError(status, command, lines, errors);
         }
-        return statuses;
     }
     
     public boolean isMerge() {
         String[] command = new String[] { "hg", "heads", "." };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         // "Returns 0 if matching heads are found, 1 if not."
         // With "no open branch heads found on branches default" on stderr.
         // There are no heads in a repository that's just been through "hg init".
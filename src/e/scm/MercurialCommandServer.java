@@ -0,0 +1,174 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import e.util.*;
+
+/**
+ * A client for "hg serve --cmdserver pipe", which runs any number of hg
+ * commands in one long-lived Mercurial process. Starting the Python
+ * interpreter costs far more than most of the commands we run, so the
+ * Mercurial back-end sends its commands here where it can.
+ *
+ * The protocol is described at https://www.mercurial-scm.org/wiki/CommandServer.
+ * Messages from the server are a one-byte channel identifier, a four-byte
+ * big-endian length, and (for output channels) that many bytes of data.
+ * The server only runs one command at a time, so requests from different
+ * threads queue up behind each other.
+ */
+public class MercurialCommandServer {
+    private final Path root;
+    private Process process;
+    private DataOutputStream requests;
+    private DataInputStream responses;
+    private Charset encoding;
+
+    /**
+     * Starts a command server in the given repository, or throws an
+     * IOException if this Mercurial doesn't have one.
+     */
+    public MercurialCommandServer(Path root) throws IOException {
+        this.root = root;
+        start();
+    }
+
+    private void start() throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder("hg", "serve", "--cmdserver", "pipe");
+        processBuilder.directory(root.toFile());
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        process = processBuilder.start();
+        requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        readHello();
+    }
+
+    // capabilities: getencoding runcommand
+    // encoding: UTF-8
+    private void readHello() throws IOException {
+        int channel = responses.readUnsignedByte();
+        byte[] data = new byte[responses.readInt()];
+        responses.readFully(data);
+        if (channel != 'o') {
+            throw new IOException("expected hello message from hg command server, got channel '" + (char) channel + "'");
+        }
+        boolean canRunCommands = false;
+        encoding = Charset.defaultCharset();
+        for (String line : new String(data, StandardCharsets.US_ASCII).split("\n")) {
+            if (line.startsWith("capabilities: ")) {
+                canRunCommands = Arrays.asList(line.substring(14).split(" ")).contains("runcommand");
+            } else if (line.startsWith("encoding: ")) {
+                encoding = Charset.forName(line.substring(10));
+            }
+        }
+        if (canRunCommands == false) {
+            throw new IOException("hg command server doesn't support runcommand");
+        }
+    }
+
+    /**
+     * Splits one output channel's chunks back into lines, since the server
+     * doesn't send them a line at a time.
+     */
+    private class ChannelLineSplitter {
+        private final ProcessUtilities.LineListener listener;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+        ChannelLineSplitter(ProcessUtilities.LineListener listener) {
+            this.listener = listener;
+        }
+
+        void write(byte[] data) {
+            int lineStart = 0;
+            for (int i = 0; i < data.length; ++i) {
+                if (data[i] == '\n') {
+                    partialLine.write(data, lineStart, i - lineStart);
+                    flush();
+                    lineStart = i + 1;
+                }
+            }
+            partialLine.write(data, lineStart, data.length - lineStart);
+        }
+
+        void flush() {
+            String line = new String(partialLine.toByteArray(), encoding);
+            partialLine.reset();
+            // Match ProcessUtilities, which strips carriage returns with the newlines.
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            listener.processLine(line);
+        }
+
+        void finish() {
+            if (partialLine.size() > 0) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Runs the given hg command (without the leading "hg"), passing each line
+     * of its output to the appropriate listener, and returns its exit status.
+     * Throws IOException if the server has gone away, in which case it can't
+     * be used again.
+     */
+    public synchronized int runCommand(List<String> arguments, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) throws IOException {
+        if (process == null) {
+            throw new IOException("hg command server has already exited");
+        }
+        try {
+            byte[] request = StringUtilities.join(arguments, "\0").getBytes(encoding);
+            requests.write("runcommand\n".getBytes(StandardCharsets.US_ASCII));
+            requests.writeInt(request.length);
+            requests.write(request);
+            requests.flush();
+
+            ChannelLineSplitter output = new ChannelLineSplitter(outputListener);
+            ChannelLineSplitter errors = new ChannelLineSplitter(errorsListener);
+            while (true) {
+                int channel = responses.readUnsignedByte();
+                int length = responses.readInt();
+                if (channel == 'I' || channel == 'L') {
+                    // The command wants input. We never have any, so send EOF.
+                    requests.writeInt(0);
+                    requests.flush();
+                    continue;
+                }
+                byte[] data = new byte[length];
+                responses.readFully(data);
+                if (channel == 'o') {
+                    output.write(data);
+                } else if (channel == 'e') {
+                    errors.write(data);
+                } else if (channel == 'r') {
+                    output.finish();
+                    errors.finish();
+                    return new DataInputStream(new ByteArrayInputStream(data)).readInt();
+                } else if (Character.isUpperCase(channel)) {
+                    // Upper-case channels are mandatory, so we can't carry on.
+                    throw new IOException("unsupported hg command server channel '" + (char) channel + "'");
+                }
+                // Other lower-case channels (such as 'd' for debug output) are optional, and can be ignored.
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    public synchronized void close() {
+        if (process == null) {
+            return;
+        }
+        try {
+            // The server exits when its input is closed.
+            requests.close();
+        } catch (IOException ex) {
+            // We're throwing it away anyway.
+        }
+        process.destroy();
+        process = null;
+    }
+}
@@ -3,150 +3,311 @@ package e.scm;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
-import java.util.regex.*;
 import e.util.*;
 
 public class Patch {
     private ArrayList<String> lines;
     private ArrayList<String> errors;
+    private List<Line> parsedLines;
     private LineMapper lineMapper;
     
-    public static final class HunkRange {
-        /**
-         * Matches the "@@ -111,41 +113,41 @@" lines at the start of a hunk.
-         * We allow anything after the trailing "@@" because that gap is used for annotations, both by our annotate-patch.rb script and by "diff -p".
-         * GNU Diff's "print_unidiff_number_range" has a special case when outputting a,b where if a and b are equal, only a is output.
-         */
-        private static final Pattern AT_AT_PATTERN = Pattern.compile("^@@ -(\\d+)(,\\d+)? \\+(\\d+)(,\\d+)? @@(.*)$");
-        
-        private boolean matches;
-        
+    /**
+     * One hunk of a unified diff, from its "@@ -111,41 +113,41 @@" header.
+     * We allow anything after the trailing "@@" because that gap is used for annotations, both by our annotate-patch.rb script and by "diff -p".
+     * GNU Diff's "print_unidiff_number_range" has a special case when outputting a,b where if a and b are equal, only a is output.
+     * A hunk with no lines on one side gives the line before them as that side's "begin".
+     */
+    public static final class Hunk {
         // "from" is the first comma-separated pair. "to" is the second comma-separated pair.
-        // "begin" is the first number in each pair. "end" is the second number in each pair.
-        private int fromBegin;
-        private int fromEnd;
-        private int toBegin;
-        private int toEnd;
+        public final int fromBegin;
+        public final int fromLength;
+        public final int toBegin;
+        public final int toLength;
         
-        public HunkRange(String atAtLine) {
-            Matcher matcher = AT_AT_PATTERN.matcher(atAtLine);
-            matches = matcher.matches();
-            if (matches) {
-                fromBegin = parseInt(matcher.group(1), 0);
-                fromEnd = parseInt(matcher.group(2), fromBegin);
-                toBegin = parseInt(matcher.group(3), 0);
-                toEnd = parseInt(matcher.group(4), toBegin);
-            }
+        private Hunk(int fromBegin, int fromLength, int toBegin, int toLength) {
+            this.fromBegin = fromBegin;
+            this.fromLength = fromLength;
+            this.toBegin = toBegin;
+            this.toLength = toLength;
         }
         
-        private int parseInt(String value, int fallback) {
-            if (value == null) {
-                return fallback;
+        /**
+         * Parses a hunk header, returning null if the line isn't one. This
+         * is called on every line of every patch, so it doesn't use regular
+         * expressions.
+         */
+        public static Hunk parseHeader(String line) {
+            if (line.startsWith("@@ -") == false) {
+                return null;
             }
-            if (value.startsWith(",")) {
-                value = value.substring(1);
+            int[] position = new int[] { 4 };
+            int fromBegin = parseNumber(line, position);
+            int fromLength = skip(line, position, ",") ? parseNumber(line, position) : 1;
+            if (fromBegin == -1 || fromLength == -1 || skip(line, position, " +") == false) {
+                return null;
             }
-            int result = Integer.parseInt(value);
-            return result;
-        }
-        
-        public boolean matches() {
-            return matches;
+            int toBegin = parseNumber(line, position);
+            int toLength = skip(line, position, ",") ? parseNumber(line, position) : 1;
+            if (toBegin == -1 || toLength == -1 || skip(line, position, " @@") == false) {
+                return null;
+            }
+            return new Hunk(fromBegin, fromLength, toBegin, toLength);
         }
         
-        public int fromBegin() {
-            return fromBegin;
+        private static boolean skip(String line, int[] position, String expected) {
+            if (line.startsWith(expected, position[0]) == false) {
+                return false;
+            }
+            position[0] += expected.length();
+            return true;
         }
         
-        public int toBegin() {
-            return toBegin;
+        private static int parseNumber(String line, int[] position) {
+            int start = position[0];
+            int result = 0;
+            while (position[0] < line.length() && Character.isDigit(line.charAt(position[0])) && position[0] - start < 9) {
+                result = result * 10 + (line.charAt(position[0]) - '0');
+                ++position[0];
+            }
+            return (position[0] == start) ? -1 : result;
         }
     }
     
-    private interface PatchLineParser {
-        public void parseHunkHeader(int fromBegin, int toBegin);
-        public void parseFromLine(String sourceLine);
-        public void parseToLine(String sourceLine);
-        public void parseContextLine(String sourceLine);
+    /**
+     * One line of a patch, with its position in the two revisions. A line
+     * only in one revision gets the line number the next line of the other
+     * revision has, which is where it would go. Lines outside hunks (the
+     * "---" and "+++" lines, say) are OTHER, with both line numbers 0.
+     */
+    public static final class Line {
+        public enum Kind {
+            HUNK_HEADER,
+            CONTEXT,
+            FROM,
+            TO,
+            OTHER
+        }
+        
+        public final String text;
+        public final Kind kind;
+        public final Hunk hunk;
+        public final int fromLineNumber;
+        public final int toLineNumber;
+        
+        private Line(String text, Kind kind, Hunk hunk, int fromLineNumber, int toLineNumber) {
+            this.text = text;
+            this.kind = kind;
+            this.hunk = hunk;
+            this.fromLineNumber = fromLineNumber;
+            this.toLineNumber = toLineNumber;
+        }
+        
+        /**
+         * Returns the line of the file, without the patch's prefix.
+         */
+        public String getSourceLine() {
+            return text.isEmpty() ? text : text.substring(1);
+        }
+
+        /**
+         * Tests whether this is a "\ No newline at end of file" line. These
+         * are OTHER lines, but they come inside a hunk rather than ending it.
+         */
+        public boolean isNoNewlineMarker() {
+            return kind == Kind.OTHER && text.startsWith("\\");
+        }
     }
     
-    private void parsePatch(boolean isPatchReversed, PatchLineParser patchLineParser) {
-        String fromPrefix = isPatchReversed ? "+" : "-";
-        String toPrefix = isPatchReversed ? "-" : "+";
-        for (int lineNumberWithinPatch = 0; lineNumberWithinPatch < lines.size(); ++lineNumberWithinPatch) {
-            String patchLine = lines.get(lineNumberWithinPatch);
-            if (patchLine.startsWith("@@")) {
-                HunkRange hunkRange = new HunkRange(patchLine);
-                if (isPatchReversed) {
-                    patchLineParser.parseHunkHeader(hunkRange.toBegin(), hunkRange.fromBegin());
-                } else {
-                    patchLineParser.parseHunkHeader(hunkRange.fromBegin(), hunkRange.toBegin());
-                }
-            } else if (patchLine.length() > 0) {
-                String sourceLine = patchLine.substring(1);
-                if (patchLine.startsWith(fromPrefix)) {
-                    patchLineParser.parseFromLine(sourceLine);
-                } else if (patchLine.startsWith(toPrefix)) {
-                    patchLineParser.parseToLine(sourceLine);
-                } else if (patchLine.startsWith(" ")) {
-                    patchLineParser.parseContextLine(sourceLine);
-                } else if (patchLine.startsWith("=====") || patchLine.startsWith("Index: ") || patchLine.startsWith("RCS file: ") || patchLine.startsWith("retrieving revision ") || patchLine.startsWith("diff ") || patchLine.startsWith("new mode ") || patchLine.startsWith("old mode ") || patchLine.startsWith("index ") || patchLine.startsWith("\\ No newline at end of file")) {
-                    // Ignore lines like this for the minute:
-                    // bk:
-                    // ===== makerules/vars-not-previously-included.make 1.33 vs 1.104 =====
-                    // Index: src/e/scm/RevisionWindow.java
-                    // svn:
-                    // ===================================================================
-                    // cvs:
-                    // RCS file: /home/repositories/cvsroot/edit/src/e/edit/InsertNewlineAction.java,v
-                    // retrieving revision 1.7
-                    // diff -u -r1.7 -r1.9
-                } else {
-              //      throw new RuntimeException("Malformed patch line \"" + patchLine + "\"");
-                }
+    /**
+     * Parses the lines of a patch (possibly annotated) into Lines, one for
+     * each. Do this once per patch and index into the result, rather than
+     * scanning the text whenever you need to know where you are.
+     */
+    public static List<Line> parseLines(List<String> patchLines) {
+        ArrayList<Line> result = new ArrayList<>(patchLines.size());
+        Hunk hunk = null;
+        int fromLine = 0;
+        int toLine = 0;
+        int fromRemaining = 0;
+        int toRemaining = 0;
+        for (String text : patchLines) {
+            Hunk header = Hunk.parseHeader(text);
+            if (header != null) {
+                hunk = header;
+                fromLine = (hunk.fromLength == 0) ? hunk.fromBegin + 1 : hunk.fromBegin;
+                toLine = (hunk.toLength == 0) ? hunk.toBegin + 1 : hunk.toBegin;
+                fromRemaining = hunk.fromLength;
+                toRemaining = hunk.toLength;
+                result.add(new Line(text, Line.Kind.HUNK_HEADER, hunk, fromLine, toLine));
+                continue;
+            }
+            // The hunk header says how many lines it has, so anything after those is outside it, however it starts.
+            char prefix = text.isEmpty() ? ' ' : text.charAt(0);
+            if (fromRemaining + toRemaining > 0 && prefix == '-') {
+                result.add(new Line(text, Line.Kind.FROM, hunk, fromLine, toLine));
+                ++fromLine;
+                --fromRemaining;
+            } else if (fromRemaining + toRemaining > 0 && prefix == '+') {
+                result.add(new Line(text, Line.Kind.TO, hunk, fromLine, toLine));
+                ++toLine;
+                --toRemaining;
+            } else if (fromRemaining + toRemaining > 0 && prefix == ' ') {
+                // Context lines count for both revisions. Some diffs leave the space off empty ones.
+                result.add(new Line(text, Line.Kind.CONTEXT, hunk, fromLine, toLine));
+                ++fromLine;
+                ++toLine;
+                --fromRemaining;
+                --toRemaining;
+            } else {
+                // Lines like these:
+                // \ No newline at end of file
+                // bk:
+                // ===== makerules/vars-not-previously-included.make 1.33 vs 1.104 =====
+                // Index: src/e/scm/RevisionWindow.java
+                // svn:
+                // ===================================================================
+                // cvs:
+                // RCS file: /home/repositories/cvsroot/edit/src/e/edit/InsertNewlineAction.java,v
+                // retrieving revision 1.7
+                // diff -u -r1.7 -r1.9
+                result.add(new Line(text, Line.Kind.OTHER, null, 0, 0));
             }
         }
+        return result;
     }
     
     public Patch(RevisionControlSystem backEnd, String filePath, Revision olderRevision, Revision newerRevision, boolean isPatchReversed, boolean ignoreWhiteSpace) {
-        Path directory = backEnd.getRoot();
+        this(backEnd, filePath, olderRevision, newerRevision, isPatchReversed, ignoreWhiteSpace, null);
+    }
+    
+    /**
+     * Runs the back-end's diff, passing each line of its output to
+     * 'partialOutputListener' (if it's not null) as it arrives, so that a
+     * slow diff can be shown before it's finished. A diff between committed
+     * revisions may be shared with another caller that's already running
+     * it, in which case the listener sees the whole patch when that's done.
+     */
+    public Patch(RevisionControlSystem backEnd, String filePath, Revision olderRevision, Revision newerRevision, boolean isPatchReversed, boolean ignoreWhiteSpace, final ProcessUtilities.LineListener partialOutputListener) {
         String[] command = backEnd.getDifferencesCommand(olderRevision, newerRevision, filePath, ignoreWhiteSpace);
         this.lines = new ArrayList<String>();
         this.errors = new ArrayList<String>();
-        ProcessUtilities.backQuote(directory, command, lines, errors);
+        // A patch between committed revisions can't change, so whoever else wants it (another window, or a line being
+        // traced) can share our diff. Anything involving the working copy has to be run afresh.
+        if (isBetweenCommittedRevisions(olderRevision, newerRevision)) {
+            long startNanos = System.nanoTime();
+            backEnd.backQuoteShared(command, lines, errors, partialOutputListener);
+            // Line tracing needs to know what these diffs cost in this repository.
+            LineTracingCostModel.forBackEnd(backEnd).addDiffTime(System.nanoTime() - startNanos);
+        } else if (partialOutputListener != null) {
+            backEnd.backQuote(command, "", new ProcessUtilities.LineListener() {
+                public void processLine(String line) {
+                    lines.add(line);
+                    partialOutputListener.processLine(line);
+                }
+            }, new ProcessUtilities.ArrayListLineListener(errors));
+        } else {
+            backEnd.backQuote(command, lines, errors);
+        }
         // CVS returns the number of differences as the status or some such idiocy.
         if (errors.size() > 0) {
             lines.addAll(errors);
         }
+        long startNanos = System.nanoTime();
+        parsedLines = parseLines(lines);
         initLineMapper(isPatchReversed);
+        BackEndStatistics.addParseTime(System.nanoTime() - startNanos);
+    }
+    
+    private Patch(ArrayList<String> lines, boolean isPatchReversed) {
+        this.lines = lines;
+        this.errors = new ArrayList<String>();
+        parsedLines = parseLines(lines);
+        initLineMapper(isPatchReversed);
+    }
+    
+    /**
+     * Makes the patch between two revisions ourselves, with the given
+     * DiffEngine, rather than running the back-end's diff. The revisions'
+     * contents are cached, so trying another DiffEngine costs no back-end
+     * command. Returns null if we can't get both revisions' contents, in
+     * which case you'll need the back-end's diff after all. Neither revision
+     * may be null, because only the back-end knows what that means.
+     */
+    public static Patch fromContents(RevisionControlSystem backEnd, String filePath, Revision olderRevision, Revision newerRevision, boolean isPatchReversed, DiffEngine diffEngine) {
+        List<String> olderLines = backEnd.getFileContents(olderRevision, filePath);
+        List<String> newerLines = (olderLines != null) ? backEnd.getFileContents(newerRevision, filePath) : null;
+        if (newerLines == null) {
+            return null;
+        }
+        List<String> lines = diffEngine.diff(olderLines, newerLines, labelFor(filePath, olderRevision), labelFor(filePath, newerRevision));
+        return new Patch(new ArrayList<String>(lines), isPatchReversed);
+    }
+    
+    private static String labelFor(String filePath, Revision revision) {
+        return filePath + "\t" + ((revision == Revision.LOCAL_REVISION) ? "(working copy)" : "(revision " + revision.number + ")");
+    }
+    
+    private static boolean isBetweenCommittedRevisions(Revision olderRevision, Revision newerRevision) {
+        // Back-ends treat a missing revision as the working copy (or something relative to it), so insist on both.
+        return olderRevision != null && newerRevision != null && olderRevision != Revision.LOCAL_REVISION && newerRevision != Revision.LOCAL_REVISION;
     }
     
     private void initLineMapper(boolean isPatchReversed) {
         lineMapper = new LineMapper();
-        parsePatch(isPatchReversed, new PatchLineParser() {
-            private int fromLine = 0;
-            private int toLine = 0;
-            
-            public void parseHunkHeader(int fromBegin, int toBegin) {
-                fromLine = fromBegin;
-                toLine = toBegin;
-            }
-            
-            public void parseFromLine(String sourceLine) {
-                ++fromLine;
-            }
-            
-            public void parseToLine(String sourceLine) {
-                ++toLine;
+        for (Line line : parsedLines) {
+            // Context lines are the ones we know the position of in both revisions.
+            if (line.kind == Line.Kind.CONTEXT) {
+                if (isPatchReversed) {
+                    lineMapper.addMapping(line.toLineNumber, line.fromLineNumber);
+                } else {
+                    lineMapper.addMapping(line.fromLineNumber, line.toLineNumber);
+                }
             }
-            
-            public void parseContextLine(String sourceLine) {
-                lineMapper.addMapping(fromLine, toLine);
-                // Context lines count for both revisions.
-                ++fromLine;
-                ++toLine;
+        }
+    }
+    
+    public LineMapper getLineMapper() {
+        return lineMapper;
+    }
+
+    /**
+     * Returns the runs of changed lines in this patch, as it was generated
+     * (so ignoring isPatchReversed), four ints per run: the first line and
+     * the number of lines in the first revision the patch was made from,
+     * then the same for the second. A side with no lines gives the line
+     * number the other side's lines would be at. Unlike the hunks, runs
+     * don't include context.
+     */
+    public int[] getChangeBlocks() {
+        ArrayList<int[]> blocks = new ArrayList<>();
+        int[] block = null;
+        for (Line line : parsedLines) {
+            if (line.kind == Line.Kind.FROM || line.kind == Line.Kind.TO) {
+                if (block == null) {
+                    block = new int[] { line.fromLineNumber, 0, line.toLineNumber, 0 };
+                    blocks.add(block);
+                }
+                if (line.kind == Line.Kind.FROM) {
+                    block[1]++;
+                } else {
+                    block[3]++;
+                }
+            } else {
+                block = null;
             }
-        });
+        }
+        int[] result = new int[blocks.size() * 4];
+        for (int i = 0; i < blocks.size(); ++i) {
+            System.arraycopy(blocks.get(i), 0, result, i * 4, 4);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the parsed lines of this patch, in order.
+     */
+    public List<Line> getLines() {
+        return Collections.unmodifiableList(parsedLines);
     }
     
     public int translateLineNumberInFromRevision(int fromLineNumber) {
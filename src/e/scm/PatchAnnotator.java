@@ -0,0 +1,461 @@
+package e.scm;
+
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Adds the name of the enclosing definition (class, method, function) to
+ * each hunk header of a patch, the way "diff -p" does, so you can see what
+ * a hunk is in without reading around it:
+ *
+ *   @@ -111,41 +113,41 @@ PatchView.showPatch
+ *
+ * This used to be done by running annotate-patch.rb on a temporary copy of
+ * the patch, which meant starting a Ruby interpreter for every patch shown.
+ * Now it's one pass over the parsed patch, with the file's definitions
+ * found by a Scanner for its language. Scanning is the expensive part, so
+ * the definitions are cached by a hash of the file's contents: flicking
+ * back and forth between files, or between revisions where a file didn't
+ * change, doesn't rescan anything.
+ */
+public class PatchAnnotator {
+    private static final int MAX_CACHED_FILES = 200;
+
+    /**
+     * A named region of a file: lines firstLine to lastLine inclusive,
+     * numbered from 1. Names include any enclosing definitions' names,
+     * separated by '.', so a method reads "Class.method".
+     */
+    public static final class Definition {
+        public final String name;
+        public final int firstLine;
+        public final int lastLine;
+
+        public Definition(String name, int firstLine, int lastLine) {
+            this.name = name;
+            this.firstLine = firstLine;
+            this.lastLine = lastLine;
+        }
+    }
+
+    /**
+     * Finds the definitions in a file written in some language. Scanners
+     * only see one file at a time and must be safe to use from several
+     * threads at once. They needn't be exact: a rough idea of where a hunk
+     * is beats none at all.
+     */
+    public interface Scanner {
+        public List<Definition> scan(List<String> lines);
+    }
+
+    private static final HashMap<String, Scanner> scannersByExtension = new HashMap<>();
+    static {
+        Scanner braceScanner = new BraceScanner();
+        for (String extension : new String[] { "java", "c", "cc", "cpp", "cxx", "h", "hh", "hpp", "m", "mm", "cs", "js", "ts", "go", "scala", "kt", "groovy", "rs", "php" }) {
+            registerScanner(extension, braceScanner);
+        }
+        registerScanner("py", new IndentationScanner(new String[] { "def", "class" }, null));
+        registerScanner("rb", new IndentationScanner(new String[] { "def", "class", "module" }, "end"));
+    }
+
+    @SuppressWarnings("serial")
+    private static final LinkedHashMap<String, List<Definition>> cache = new LinkedHashMap<String, List<Definition>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Definition>> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    };
+
+    private PatchAnnotator() {
+    }
+
+    /**
+     * Uses the given scanner for files whose names end ".extension",
+     * replacing any scanner already registered for that extension.
+     */
+    public static void registerScanner(String extension, Scanner scanner) {
+        synchronized (scannersByExtension) {
+            scannersByExtension.put(extension, scanner);
+        }
+    }
+
+    private static Scanner scannerFor(String filename) {
+        int dot = filename.lastIndexOf('.');
+        if (dot == -1 || dot < filename.lastIndexOf('/')) {
+            return null;
+        }
+        synchronized (scannersByExtension) {
+            return scannersByExtension.get(filename.substring(dot + 1));
+        }
+    }
+
+    /**
+     * Tests whether we have a scanner for the given file's language. If not,
+     * annotate won't look at the file's contents, so callers needn't fetch them.
+     */
+    public static boolean canAnnotate(String filename) {
+        return scannerFor(filename) != null;
+    }
+
+    /**
+     * Returns the lines of the given patch of a single file with each hunk
+     * header naming the definition the hunk starts in. 'newerContents' are
+     * the lines of the file as of the patch's second revision; if they're
+     * null (because the file's been removed, or the caller checked
+     * canAnnotate and didn't bother fetching them), or we have no scanner
+     * for the file's language, the patch's lines are returned as they were.
+     */
+    public static ArrayList<String> annotate(Patch patch, String filename, List<String> newerContents) {
+        ArrayList<String> result = patch.getPatchLines();
+        Scanner scanner = scannerFor(filename);
+        if (scanner == null || newerContents == null) {
+            return result;
+        }
+        List<Definition> definitions = getDefinitions(scanner, newerContents);
+        if (definitions.isEmpty()) {
+            return result;
+        }
+        List<Patch.Line> lines = patch.getLines();
+        for (int i = 0; i < lines.size(); ++i) {
+            Patch.Line line = lines.get(i);
+            if (line.kind != Patch.Line.Kind.HUNK_HEADER) {
+                continue;
+            }
+            Definition definition = findInnermostDefinition(definitions, line.toLineNumber);
+            if (definition != null) {
+                // Replace anything already there (the back-end's own "diff -p" guess, say) with ours.
+                int end = line.text.indexOf(" @@", 3) + 3;
+                result.set(i, line.text.substring(0, end) + " " + definition.name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the innermost definition containing the given line, or null.
+     */
+    private static Definition findInnermostDefinition(List<Definition> definitions, int lineNumber) {
+        // Find the last definition starting at or before the line...
+        int low = 0;
+        int high = definitions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (definitions.get(mid).firstLine <= lineNumber) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // ...and work back to one that hasn't ended. Nested definitions start after the ones they're in, so the first we find is the innermost.
+        for (int i = low - 1; i >= 0; --i) {
+            Definition definition = definitions.get(i);
+            if (definition.lastLine >= lineNumber) {
+                return definition;
+            }
+        }
+        return null;
+    }
+
+    private static List<Definition> getDefinitions(Scanner scanner, List<String> contents) {
+        String key = scanner.getClass().getName() + "\0" + System.identityHashCode(scanner) + "\0" + hashOf(contents);
+        synchronized (cache) {
+            List<Definition> definitions = cache.get(key);
+            if (definitions != null) {
+                return definitions;
+            }
+        }
+        ArrayList<Definition> definitions = new ArrayList<>(scanner.scan(contents));
+        Collections.sort(definitions, new Comparator<Definition>() {
+            public int compare(Definition lhs, Definition rhs) {
+                // Outer definitions before the ones they contain.
+                return (lhs.firstLine != rhs.firstLine) ? Integer.compare(lhs.firstLine, rhs.firstLine) : Integer.compare(rhs.lastLine, lhs.lastLine);
+            }
+        });
+        List<Definition> result = Collections.unmodifiableList(definitions);
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    private static String hashOf(List<String> lines) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String line : lines) {
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest.digest()) {
+                result.append(String.format("%02x", b & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM has SHA-1.
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Finds definitions in languages that use braces for blocks: C and its
+     * descendants. A brace opens a definition if it follows "class Name" (or
+     * struct, enum and so on) or "name(...)" at the same nesting level; any
+     * other brace just opens an anonymous block. Comments, strings and
+     * preprocessor lines are ignored.
+     */
+    private static class BraceScanner implements Scanner {
+        private static final HashSet<String> TYPE_KEYWORDS = new HashSet<>(Arrays.asList("class", "interface", "enum", "struct", "union", "namespace", "record", "trait", "impl", "object"));
+        // Words that can come before '(' without naming a function.
+        private static final HashSet<String> NON_FUNCTION_KEYWORDS = new HashSet<>(Arrays.asList("if", "for", "while", "switch", "catch", "synchronized", "return", "sizeof", "func", "function", "foreach", "using", "lock", "with", "try"));
+
+        private static class Block {
+            final String name;
+            final int firstLine;
+            // The parenthesis depth outside the block, restored when it closes.
+            final int outerParenDepth;
+
+            Block(String name, int firstLine, int outerParenDepth) {
+                this.name = name;
+                this.firstLine = firstLine;
+                this.outerParenDepth = outerParenDepth;
+            }
+        }
+
+        public List<Definition> scan(List<String> lines) {
+            ArrayList<Definition> result = new ArrayList<>();
+            ArrayDeque<Block> blocks = new ArrayDeque<>();
+            ArrayList<String> names = new ArrayList<>();
+            boolean inBlockComment = false;
+            int parenDepth = 0;
+            // The name the next '{' would give its block, and the line it was on.
+            String candidate = null;
+            boolean candidateIsType = false;
+            int candidateLine = 0;
+            String previousWord = null;
+            String word = null;
+            for (int lineIndex = 0; lineIndex < lines.size(); ++lineIndex) {
+                String line = lines.get(lineIndex);
+                int lineNumber = lineIndex + 1;
+                int i = 0;
+                if (inBlockComment == false && line.trim().startsWith("#")) {
+                    continue;
+                }
+                while (i < line.length()) {
+                    char ch = line.charAt(i);
+                    if (inBlockComment) {
+                        if (line.startsWith("*/", i)) {
+                            inBlockComment = false;
+                            ++i;
+                        }
+                        ++i;
+                        continue;
+                    }
+                    if (line.startsWith("//", i)) {
+                        break;
+                    } else if (line.startsWith("/*", i)) {
+                        inBlockComment = true;
+                        i += 2;
+                        continue;
+                    } else if (ch == '"' || (ch == '\'' && isCharacterLiteral(line, i))) {
+                        i = skipQuoted(line, i);
+                        previousWord = word;
+                        word = null;
+                        continue;
+                    } else if (Character.isJavaIdentifierStart(ch)) {
+                        int start = i;
+                        while (i < line.length() && Character.isJavaIdentifierPart(line.charAt(i))) {
+                            ++i;
+                        }
+                        previousWord = word;
+                        word = line.substring(start, i);
+                        if (previousWord != null && TYPE_KEYWORDS.contains(previousWord) && parenDepth == 0) {
+                            candidate = word;
+                            candidateIsType = true;
+                            candidateLine = lineNumber;
+                        }
+                        continue;
+                    }
+
+                    if (ch == '(') {
+                        // "new Runnable() {" is an anonymous class, not a definition of Runnable.
+                        boolean isNamed = word != null && NON_FUNCTION_KEYWORDS.contains(word) == false && "new".equals(previousWord) == false;
+                        if (parenDepth == 0 && isNamed && candidateIsType == false) {
+                            candidate = word;
+                            candidateLine = lineNumber;
+                        }
+                        ++parenDepth;
+                    } else if (ch == ')') {
+                        parenDepth = Math.max(0, parenDepth - 1);
+                    } else if ((ch == ';' || ch == '=') && parenDepth == 0) {
+                        candidate = null;
+                        candidateIsType = false;
+                    } else if (ch == '{') {
+                        String name = (parenDepth == 0) ? candidate : null;
+                        blocks.push(new Block(name, (name != null) ? candidateLine : lineNumber, parenDepth));
+                        names.add(name);
+                        parenDepth = 0;
+                        candidate = null;
+                        candidateIsType = false;
+                    } else if (ch == '}' && blocks.isEmpty() == false) {
+                        Block block = blocks.pop();
+                        if (block.name != null) {
+                            result.add(new Definition(qualifiedName(names), block.firstLine, lineNumber));
+                        }
+                        names.remove(names.size() - 1);
+                        parenDepth = block.outerParenDepth;
+                        candidate = null;
+                        candidateIsType = false;
+                    }
+                    if (Character.isWhitespace(ch) == false) {
+                        previousWord = word;
+                        word = null;
+                    }
+                    ++i;
+                }
+            }
+            // Anything still open runs to the end of the file.
+            while (blocks.isEmpty() == false) {
+                Block block = blocks.pop();
+                if (block.name != null) {
+                    result.add(new Definition(qualifiedName(names), block.firstLine, lines.size()));
+                }
+                names.remove(names.size() - 1);
+            }
+            return result;
+        }
+
+        private static boolean isCharacterLiteral(String line, int i) {
+            // Rust's lifetimes and the like also start with a quote, so only take short quoted sequences as characters: 'x', '\n', '\''.
+            int close = line.indexOf('\'', (i + 1 < line.length() && line.charAt(i + 1) == '\\') ? i + 3 : i + 2);
+            return close != -1 && close - i <= 7;
+        }
+
+        private static int skipQuoted(String line, int i) {
+            char quote = line.charAt(i++);
+            while (i < line.length()) {
+                char ch = line.charAt(i++);
+                if (ch == '\\') {
+                    ++i;
+                } else if (ch == quote) {
+                    break;
+                }
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Finds definitions in languages where a definition is a line starting
+     * with a keyword and runs until the next line indented no further than
+     * it, such as Python. If the language ends definitions with a keyword
+     * (Ruby's "end"), a line of just that keyword at the definition's own
+     * indentation belongs to it.
+     */
+    private static class IndentationScanner implements Scanner {
+        private final String[] keywords;
+        private final String closingKeyword;
+
+        private static class OpenDefinition {
+            final int indentation;
+            final int firstLine;
+
+            OpenDefinition(int indentation, int firstLine) {
+                this.indentation = indentation;
+                this.firstLine = firstLine;
+            }
+        }
+
+        IndentationScanner(String[] keywords, String closingKeyword) {
+            this.keywords = keywords;
+            this.closingKeyword = closingKeyword;
+        }
+
+        public List<Definition> scan(List<String> lines) {
+            ArrayList<Definition> result = new ArrayList<>();
+            ArrayList<OpenDefinition> open = new ArrayList<>();
+            ArrayList<String> names = new ArrayList<>();
+            int lastNonBlankLine = 0;
+            for (int lineIndex = 0; lineIndex < lines.size(); ++lineIndex) {
+                String line = lines.get(lineIndex);
+                String trimmed = line.trim();
+                int lineNumber = lineIndex + 1;
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                int indentation = indentationOf(line);
+                boolean isClosing = closingKeyword != null && trimmed.equals(closingKeyword);
+                while (open.isEmpty() == false && open.get(open.size() - 1).indentation >= indentation) {
+                    OpenDefinition definition = open.remove(open.size() - 1);
+                    boolean ownsThisLine = isClosing && definition.indentation == indentation;
+                    result.add(new Definition(qualifiedName(names), definition.firstLine, ownsThisLine ? lineNumber : lastNonBlankLine));
+                    names.remove(names.size() - 1);
+                    if (ownsThisLine) {
+                        break;
+                    }
+                }
+                String name = definedName(trimmed);
+                if (name != null) {
+                    open.add(new OpenDefinition(indentation, lineNumber));
+                    names.add(name);
+                }
+                lastNonBlankLine = lineNumber;
+            }
+            while (open.isEmpty() == false) {
+                OpenDefinition definition = open.remove(open.size() - 1);
+                result.add(new Definition(qualifiedName(names), definition.firstLine, lastNonBlankLine));
+                names.remove(names.size() - 1);
+            }
+            return result;
+        }
+
+        private String definedName(String trimmed) {
+            for (String keyword : keywords) {
+                if (trimmed.startsWith(keyword) && trimmed.length() > keyword.length() && Character.isWhitespace(trimmed.charAt(keyword.length()))) {
+                    String rest = trimmed.substring(keyword.length()).trim();
+                    int end = 0;
+                    while (end < rest.length() && (Character.isLetterOrDigit(rest.charAt(end)) || "_.?!:".indexOf(rest.charAt(end)) != -1)) {
+                        ++end;
+                    }
+                    // Python ends the line with a ':' that isn't part of the name, unlike Ruby's "A::B".
+                    while (end > 0 && rest.charAt(end - 1) == ':') {
+                        --end;
+                    }
+                    return (end > 0) ? rest.substring(0, end) : null;
+                }
+            }
+            return null;
+        }
+
+        private static int indentationOf(String line) {
+            int result = 0;
+            for (int i = 0; i < line.length(); ++i) {
+                char ch = line.charAt(i);
+                if (ch == '\t') {
+                    result = (result / 8 + 1) * 8;
+                } else if (ch == ' ') {
+                    ++result;
+                } else {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Joins the names of the definitions we're in, skipping anonymous blocks.
+     */
+    private static String qualifiedName(List<String> names) {
+        StringBuilder result = new StringBuilder();
+        for (String name : names) {
+            if (name != null) {
+                if (result.length() > 0) {
+                    result.append('.');
+                }
+                result.append(name);
+            }
+        }
+        return result.toString();
+    }
+}
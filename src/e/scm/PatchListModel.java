@@ -0,0 +1,102 @@
+package e.scm;
+
+import java.util.*;
+import javax.swing.*;
+
+/**
+ * The rows of a PatchView. Unlike DefaultListModel, this doesn't copy the
+ * patch's lines or fire an event for each one, which took seconds for the
+ * diff of a big generated file. It just wraps the list it's given, and
+ * each change fires one event however many rows it covers.
+ *
+ * It also keeps track of its widest row, so PatchView can give JList a
+ * fixed cell size by rendering that one row rather than having JList
+ * render every row to find out.
+ */
+public class PatchListModel extends AbstractListModel<String> {
+    private List<String> lines;
+    private int widestRow = -1;
+    private int widestColumns = -1;
+
+    /**
+     * Wraps the given lines, which mustn't change behind our back. Use
+     * append to add lines; if you do, the list must be modifiable.
+     */
+    public PatchListModel(List<String> lines) {
+        this.lines = lines;
+        updateWidestRow(0);
+    }
+
+    public int getSize() {
+        return lines.size();
+    }
+
+    public String getElementAt(int row) {
+        return lines.get(row);
+    }
+
+    /**
+     * Adds the given lines to the end of the patch.
+     */
+    public void append(List<String> newLines) {
+        if (newLines.isEmpty()) {
+            return;
+        }
+        int firstNewRow = lines.size();
+        lines.addAll(newLines);
+        updateWidestRow(firstNewRow);
+        fireIntervalAdded(this, firstNewRow, lines.size() - 1);
+    }
+
+    /**
+     * Replaces all our lines with the given ones, firing events only for
+     * the rows that differ. Use this when the new lines are mostly the same
+     * as the old, such as when the annotated form of a patch replaces the
+     * raw output we were showing while it was loading.
+     */
+    public void replaceLines(List<String> newLines) {
+        List<String> oldLines = lines;
+        lines = newLines;
+        int commonSize = Math.min(oldLines.size(), newLines.size());
+        int firstChangedRow = 0;
+        while (firstChangedRow < commonSize && oldLines.get(firstChangedRow).equals(newLines.get(firstChangedRow))) {
+            ++firstChangedRow;
+        }
+        widestRow = -1;
+        widestColumns = -1;
+        updateWidestRow(0);
+        if (firstChangedRow < commonSize) {
+            fireContentsChanged(this, firstChangedRow, commonSize - 1);
+        }
+        if (newLines.size() > oldLines.size()) {
+            fireIntervalAdded(this, oldLines.size(), newLines.size() - 1);
+        } else if (newLines.size() < oldLines.size()) {
+            fireIntervalRemoved(this, newLines.size(), oldLines.size() - 1);
+        }
+    }
+
+    /**
+     * Returns the row that needs the most columns, or null if we're empty.
+     */
+    public String getWidestLine() {
+        return (widestRow != -1) ? lines.get(widestRow) : null;
+    }
+
+    private void updateWidestRow(int firstRow) {
+        for (int row = firstRow; row < lines.size(); ++row) {
+            int columns = columnCount(lines.get(row));
+            if (columns > widestColumns) {
+                widestRow = row;
+                widestColumns = columns;
+            }
+        }
+    }
+
+    private static int columnCount(String line) {
+        int result = 0;
+        for (int i = 0; i < line.length(); ++i) {
+            result = (line.charAt(i) == '\t') ? (result / 8 + 1) * 8 : result + 1;
+        }
+        return result;
+    }
+}
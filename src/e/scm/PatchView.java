@@ -1,15 +1,37 @@
 package e.scm;
 
+import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 import javax.swing.*;
 import e.gui.*;
 import e.util.*;
 
 public class PatchView extends JList<String> {
+    private static final int DEFAULT_CONTEXT_LINES = 3;
+    
+    private static final int MAX_RECENT_PATCHES = 32;
+    
     private ListCellRenderer<? super String> defaultCellRenderer;
-    private boolean ignoreWhiteSpace;
+    // Volatile because getPatchLines reads them off the event dispatch thread.
+    private volatile boolean ignoreWhiteSpace;
+    private volatile int contextLines = DEFAULT_CONTEXT_LINES;
+    // Whether the patch we're showing came from our DiffEngine, so that we can change the amount of context.
+    private boolean isUsingDiffEngine;
+    
+    // The patches we've shown most recently, in any PatchView, so that going back to one is instant. Keyed by getPatchKey.
+    @SuppressWarnings("serial")
+    private static final LinkedHashMap<String, LoadedPatch> recentPatches = new LinkedHashMap<String, LoadedPatch>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LoadedPatch> eldest) {
+            return size() > MAX_RECENT_PATCHES;
+        }
+    };
+    
+    // The patch we're waiting for, if any. Only touched on the event dispatch thread.
+    private PatchLoad currentLoad;
     
     private RevisionControlSystem backEnd;
     private Revision olderRevision;
@@ -17,6 +39,14 @@ public class PatchView extends JList<String> {
     private String filename;
     private StatusReporter statusReporter;
     
+    // The parsed form of the lines we're showing.
+    private List<Patch.Line> patchLines = Collections.emptyList();
+    // For each row, the rows of the hunk it's in (from its header to the row after its last line), or -1 if it's not in one.
+    private int[] hunkFirstRows = new int[0];
+    private int[] hunkEndRows = new int[0];
+    // The changed words of the hunks we've shown so far, keyed by the hunk's first row. See IntraLineDiff.
+    private final HashMap<Integer, int[][]> hunkSpans = new HashMap<>();
+    
     public PatchView() {
         // JList calculates its preferred size based on the first row of its model, so provide a fake model so that our initial preferred size is 80 columns.
         // We don't use setPrototypeCellValue because that would also affect our maximum size.
@@ -45,6 +75,10 @@ public class PatchView extends JList<String> {
         menu.addMenuItemProvider(new MenuItemProvider() {
             public void provideMenuItems(MouseEvent e, Collection<Action> actions) {
                 actions.add(new IgnoreWhiteSpaceAction());
+                actions.add(new ChangeContextAction("Show More Context", Math.max(1, contextLines * 2)));
+                actions.add(new ChangeContextAction("Show Less Context", contextLines / 2));
+                actions.add(null);
+                actions.add(new BackEndActivityWindow.ShowAction());
             }
         });
         
@@ -62,9 +96,73 @@ public class PatchView extends JList<String> {
         }
     }
     
+    private class ChangeContextAction extends AbstractAction {
+        private final int newContextLines;
+        
+        ChangeContextAction(String name, int newContextLines) {
+            super(name);
+            this.newContextLines = newContextLines;
+        }
+        
+        @Override
+        public boolean isEnabled() {
+            return isUsingDiffEngine && newContextLines != contextLines;
+        }
+        
+        public void actionPerformed(ActionEvent e) {
+            contextLines = newContextLines;
+            updatePatch();
+        }
+    }
+    
+    /**
+     * Shows the patch for the current revisions and settings. Patches we've
+     * shown recently come from recentPatches; anything else is loaded in
+     * the background, replacing (and cancelling) any load already under way.
+     * We show the back-end's output as it arrives, so that a slow diff of a
+     * big file isn't just a blank space.
+     */
     private void updatePatch() {
-        ArrayList<String> lines = getPatchLines(backEnd, olderRevision, newerRevision, filename, statusReporter);
-        showPatch(lines);
+        if (currentLoad != null) {
+            currentLoad.cancel();
+            currentLoad = null;
+        }
+        String key = getPatchKey();
+        LoadedPatch recentPatch;
+        synchronized (recentPatches) {
+            recentPatch = recentPatches.get(key);
+        }
+        if (recentPatch != null) {
+            isUsingDiffEngine = recentPatch.isFromDiffEngine;
+            showPatch(recentPatch.lines, false);
+            return;
+        }
+        // The patch's output will be appended to this as it arrives.
+        showPatch(new ArrayList<String>(), false);
+        statusReporter.setMessage("Getting patch...");
+        currentLoad = new PatchLoad(key);
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, currentLoad);
+    }
+    
+    private String getPatchKey() {
+        StringBuilder result = new StringBuilder();
+        result.append(backEnd.getRoot()).append('\0').append(filename);
+        result.append('\0').append(numberOf(olderRevision)).append('\0').append(numberOf(newerRevision));
+        result.append('\0').append(ignoreWhiteSpace).append('\0').append(contextLines);
+        if (isWorkingCopy(olderRevision) || isWorkingCopy(newerRevision)) {
+            // The working copy can change under us, so a patch involving it is only good until the file's next modified.
+            result.append('\0').append(backEnd.getRoot().resolve(filename).toFile().lastModified());
+        }
+        return result.toString();
+    }
+    
+    private static String numberOf(Revision revision) {
+        return (revision != null) ? revision.number : "";
+    }
+    
+    private static boolean isWorkingCopy(Revision revision) {
+        // Back-ends treat a missing revision as the working copy (or something relative to it).
+        return revision == null || revision == Revision.LOCAL_REVISION;
     }
     
     public void showPatch(RevisionControlSystem backEnd, Revision olderRevision, Revision newerRevision, String filename, StatusReporter statusReporter) {
@@ -76,48 +174,300 @@ public class PatchView extends JList<String> {
         updatePatch();
     }
     
-    public ArrayList<String> getPatchLines(RevisionControlSystem backEnd, Revision olderRevision, Revision newerRevision, String filename, StatusReporter statusReporter) {
-        WaitCursor waitCursor = new WaitCursor(this, "Getting patch...", statusReporter);
-        waitCursor.start();
-        try {
-            Patch patch = new Patch(backEnd, filename, olderRevision, newerRevision, false, ignoreWhiteSpace);
-            return annotatePatchUsingTags(backEnd, patch.getPatchLines());
-        } finally {
-            waitCursor.stop();
+    /**
+     * Returns the annotated patch between the given revisions, with this
+     * view's white space and context settings. This runs back-end commands,
+     * so don't call it on the event dispatch thread.
+     */
+    public ArrayList<String> getPatchLines(RevisionControlSystem backEnd, Revision olderRevision, Revision newerRevision, String filename) {
+        return loadPatch(backEnd, olderRevision, newerRevision, filename, ignoreWhiteSpace, contextLines, null).lines;
+    }
+    
+    private static LoadedPatch loadPatch(RevisionControlSystem backEnd, Revision olderRevision, Revision newerRevision, String filename, boolean ignoreWhiteSpace, int contextLines, ProcessUtilities.LineListener partialOutputListener) {
+        // Diff the revisions ourselves if we can, so that changing the white space or context needs no back-end commands.
+        // Not when that would mean asking a server for both revisions' contents rather than for one diff, though.
+        Patch patch = null;
+        if (olderRevision != null && newerRevision != null && backEnd.isHistoryLocal()) {
+            DiffEngine.WhiteSpace whiteSpace = ignoreWhiteSpace ? DiffEngine.WhiteSpace.IGNORE_ALL : DiffEngine.WhiteSpace.EXACT;
+            patch = Patch.fromContents(backEnd, filename, olderRevision, newerRevision, false, new DiffEngine(DiffEngine.Algorithm.HISTOGRAM, whiteSpace, contextLines));
+        }
+        boolean isFromDiffEngine = (patch != null);
+        if (patch == null) {
+            patch = new Patch(backEnd, filename, olderRevision, newerRevision, false, ignoreWhiteSpace, partialOutputListener);
+        }
+        // A missing newer revision means the working copy.
+        Revision contentsRevision = (newerRevision != null) ? newerRevision : Revision.LOCAL_REVISION;
+        List<String> contents = PatchAnnotator.canAnnotate(filename) ? backEnd.getFileContents(contentsRevision, filename) : null;
+        return new LoadedPatch(PatchAnnotator.annotate(patch, filename, contents), isFromDiffEngine);
+    }
+    
+    private static class LoadedPatch {
+        final ArrayList<String> lines;
+        final boolean isFromDiffEngine;
+        
+        LoadedPatch(ArrayList<String> lines, boolean isFromDiffEngine) {
+            this.lines = lines;
+            this.isFromDiffEngine = isFromDiffEngine;
+        }
+    }
+    
+    /**
+     * Loads one patch on the back-end's scheduler, showing its output as it
+     * arrives for as long as it's still the patch we want.
+     */
+    private class PatchLoad implements Runnable {
+        private final String key;
+        private final RevisionControlSystem backEnd = PatchView.this.backEnd;
+        private final Revision olderRevision = PatchView.this.olderRevision;
+        private final Revision newerRevision = PatchView.this.newerRevision;
+        private final String filename = PatchView.this.filename;
+        private final boolean ignoreWhiteSpace = PatchView.this.ignoreWhiteSpace;
+        private final int contextLines = PatchView.this.contextLines;
+        
+        private volatile boolean isCancelled = false;
+        // Output that's arrived but not yet been shown. Guarded by itself.
+        private final ArrayList<String> unshownLines = new ArrayList<>();
+        // Whether we've shown any partial output. Only touched on the event dispatch thread.
+        private boolean hasShownPartialOutput = false;
+        
+        PatchLoad(String key) {
+            this.key = key;
+        }
+        
+        void cancel() {
+            isCancelled = true;
+        }
+        
+        public void run() {
+            // Let the back-end kill its diff if we're cancelled while it's running.
+            CancellationToken previousToken = CancellationToken.setCurrent(new CancellationToken() {
+                public boolean isCancelled() {
+                    return isCancelled;
+                }
+            });
+            try {
+                final LoadedPatch patch = loadPatch(backEnd, olderRevision, newerRevision, filename, ignoreWhiteSpace, contextLines, new ProcessUtilities.LineListener() {
+                    public void processLine(String line) {
+                        addPartialOutput(line);
+                    }
+                });
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        finish(patch);
+                    }
+                });
+            } catch (CancellationException ex) {
+                // We've been replaced by a load of some other patch.
+            } catch (final Exception ex) {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        if (currentLoad == PatchLoad.this) {
+                            currentLoad = null;
+                            statusReporter.setMessage("");
+                            statusReporter.reportException("Getting patch...", ex);
+                        }
+                    }
+                });
+            } finally {
+                CancellationToken.setCurrent(previousToken);
+            }
+        }
+        
+        private void addPartialOutput(String line) {
+            synchronized (unshownLines) {
+                unshownLines.add(line);
+                if (unshownLines.size() > 1) {
+                    // There's already a call to showPartialOutput on its way, and it'll take this line too.
+                    return;
+                }
+            }
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    showPartialOutput();
+                }
+            });
+        }
+        
+        private void showPartialOutput() {
+            ArrayList<String> lines;
+            synchronized (unshownLines) {
+                lines = new ArrayList<>(unshownLines);
+                unshownLines.clear();
+            }
+            if (currentLoad != this) {
+                return;
+            }
+            ((PatchListModel) getModel()).append(lines);
+            updateCellSize();
+            hasShownPartialOutput = true;
+        }
+        
+        private void finish(LoadedPatch patch) {
+            if (currentLoad != this) {
+                return;
+            }
+            currentLoad = null;
+            statusReporter.setMessage("");
+            synchronized (recentPatches) {
+                recentPatches.put(key, patch);
+            }
+            isUsingDiffEngine = patch.isFromDiffEngine;
+            showPatch(patch.lines, hasShownPartialOutput);
         }
     }
     
-    private void showPatch(ArrayList<String> lines) {
-        DefaultListModel<String> differences = new DefaultListModel<>();
-        for (String line : lines) {
-            differences.addElement(line);
+    /**
+     * Shows the given lines. If 'isCompletingPartialOutput', the model
+     * already holds the start of them (without annotations), and we update
+     * it in place so that anyone who's started reading doesn't lose their
+     * place.
+     */
+    private void showPatch(List<String> lines, boolean isCompletingPartialOutput) {
+        patchLines = Patch.parseLines(lines);
+        findHunks();
+        setCellRenderer(new IntraLineCellRenderer());
+        if (isCompletingPartialOutput) {
+            ((PatchListModel) getModel()).replaceLines(lines);
+            updateCellSize();
+            return;
         }
-        setCellRenderer(PatchListCellRenderer.INSTANCE);
-        setModel(differences);
+        
+        setModel(new PatchListModel(lines));
+        updateCellSize();
         
         // We can't easily retain the context when switching to differences.
         // As an extension, though, we could do this.
         ensureIndexIsVisible(0);
     }
     
-    public static ArrayList<String> annotatePatchUsingTags(RevisionControlSystem backEnd, ArrayList<String> lines) {
-        ArrayList<String> newLines = new ArrayList<>();
-        ArrayList<String> newErrors = new ArrayList<>();
-        String patch = StringUtilities.join(lines, "\n") + "\n";
-        String patchAnnotationTool = FileUtilities.findSupportScript("annotate-patch.rb");
-        
-        File patchFile = FileUtilities.createTemporaryFile("e.scm.PatchView-patch", ".tmp", "patch file", patch);
-        String[] command = new String[] { patchAnnotationTool.toString(), patchFile.toString() };
-        int status = ProcessUtilities.backQuote(backEnd.getRoot(), command, newLines, newErrors);
-        if (status != 0) {
-            return lines;
-        }
-        // Remove the file right away, since a CheckInTool user can cause an
-        // arbitrary number to be created during a session; one for each time
-        // they change the selection in the file list. We only remove the
-        // file if the script executed successfully; if it didn't, we might
-        // want to debug the problem.
-        patchFile.delete();
-        return newLines;
+    /**
+     * Gives every row the size of the widest, so that JList doesn't render
+     * every row of the patch to find out how big to be: that's most of the
+     * time it takes to show a big patch. Our font is fixed-width, so the
+     * row with the most columns is the widest.
+     */
+    private void updateCellSize() {
+        String widestLine = ((PatchListModel) getModel()).getWidestLine();
+        if (widestLine == null) {
+            // Let JList do as it always has with an empty list.
+            setFixedCellWidth(-1);
+            setFixedCellHeight(-1);
+            return;
+        }
+        // A row of -1 keeps the renderer from looking for the changed words of a real row.
+        Dimension size = getCellRenderer().getListCellRendererComponent(this, widestLine, -1, false, false).getPreferredSize();
+        if (size.width != getFixedCellWidth() || size.height != getFixedCellHeight()) {
+            setFixedCellWidth(size.width);
+            setFixedCellHeight(size.height);
+        }
+    }
+    
+    private void findHunks() {
+        hunkFirstRows = new int[patchLines.size()];
+        hunkEndRows = new int[patchLines.size()];
+        hunkSpans.clear();
+        int firstRow = -1;
+        for (int row = 0; row < patchLines.size(); ++row) {
+            Patch.Line line = patchLines.get(row);
+            if (line.kind == Patch.Line.Kind.HUNK_HEADER) {
+                firstRow = row;
+            } else if (line.hunk == null && line.isNoNewlineMarker() == false) {
+                // Anything but a "\ No newline at end of file" ends the hunk.
+                firstRow = -1;
+            }
+            hunkFirstRows[row] = firstRow;
+        }
+        int endRow = -1;
+        for (int row = patchLines.size() - 1; row >= 0; --row) {
+            if (hunkFirstRows[row] == -1) {
+                endRow = -1;
+            } else if (endRow == -1 || row + 1 == patchLines.size() || hunkFirstRows[row + 1] != hunkFirstRows[row]) {
+                endRow = row + 1;
+            }
+            hunkEndRows[row] = endRow;
+        }
+    }
+    
+    /**
+     * Returns the changed spans of the given row (see IntraLineDiff), or
+     * null if there aren't any or they're not ready yet. Only rows that are
+     * painted get here, so only the hunks the user can see are compared.
+     */
+    private int[] getSpansForRow(int row) {
+        if (row < 0 || row >= hunkFirstRows.length || hunkFirstRows[row] == -1) {
+            return null;
+        }
+        final int firstRow = hunkFirstRows[row];
+        int[][] spans = hunkSpans.get(firstRow);
+        if (spans == null) {
+            final List<Patch.Line> currentPatchLines = patchLines;
+            spans = IntraLineDiff.getSpans(patchLines.subList(firstRow, hunkEndRows[row]), new Runnable() {
+                public void run() {
+                    // Only repaint if we're still showing the same patch.
+                    if (patchLines == currentPatchLines) {
+                        repaint();
+                    }
+                }
+            });
+            if (spans == null) {
+                return null;
+            }
+            hunkSpans.put(firstRow, spans);
+        }
+        return spans[row - firstRow];
+    }
+    
+    /**
+     * Renders rows as PatchListCellRenderer does, then lays the changed
+     * words of replaced lines over them.
+     */
+    @SuppressWarnings("serial")
+    private class IntraLineCellRenderer extends JComponent implements ListCellRenderer<String> {
+        private Component delegate;
+        private String text;
+        private int[] spans;
+        private Color color;
+        
+        IntraLineCellRenderer() {
+            setLayout(new BorderLayout());
+        }
+        
+        public Component getListCellRendererComponent(JList<? extends String> list, String value, int index, boolean isSelected, boolean cellHasFocus) {
+            Component component = PatchListCellRenderer.INSTANCE.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            int[] rowSpans = getSpansForRow(index);
+            if (rowSpans == null || (component instanceof JLabel) == false) {
+                return component;
+            }
+            removeAll();
+            add(component, BorderLayout.CENTER);
+            this.delegate = component;
+            this.text = value;
+            this.spans = rowSpans;
+            this.color = (patchLines.get(index).kind == Patch.Line.Kind.FROM) ? IntraLineDiff.REMOVED_WORD_COLOR : IntraLineDiff.ADDED_WORD_COLOR;
+            return this;
+        }
+        
+        @Override
+        public void paint(Graphics g) {
+            super.paint(g);
+            JLabel label = (JLabel) delegate;
+            FontMetrics metrics = label.getFontMetrics(label.getFont());
+            int left = label.getInsets().left;
+            g.setColor(color);
+            for (int i = 0; i < spans.length; i += 2) {
+                // Span offsets don't count the patch's +/- prefix.
+                int x = left + metrics.stringWidth(text.substring(0, spans[i] + 1));
+                int width = metrics.stringWidth(text.substring(spans[i] + 1, spans[i + 1] + 1));
+                g.fillRect(x, 0, width, getHeight());
+            }
+        }
+    }
+    
+    /**
+     * Returns the parsed form of the given row of the patch, or null if
+     * there's no such row.
+     */
+    public Patch.Line getPatchLine(int index) {
+        return (index >= 0 && index < patchLines.size()) ? patchLines.get(index) : null;
     }
 }
@@ -0,0 +1,211 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import e.util.*;
+
+/**
+ * A RevisionControlSystem that answers from recordings (see
+ * BackEndRecording) rather than running anything, so parsers, patches and
+ * models can be exercised and timed on captures of real repositories
+ * without git, hg, svn, cvs, bk or bzr installed.
+ *
+ * The interpretation of the output is left to an instance of the back-end
+ * that made the recordings, whose commands we serve. A command run more
+ * than once gets its recordings in the order they were made, and then the
+ * last one again; a command that was never recorded is an error.
+ *
+ * Set the environment variable SCM_REPLAY_FROM to the directory to use
+ * this in place of the real back-end.
+ */
+public class ReplayRevisionControlSystem extends RevisionControlSystem {
+    private final RevisionControlSystem backEnd;
+    private final HashMap<String, List<BackEndRecording>> recordings = new HashMap<>();
+    private final HashMap<String, Integer> replayCounts = new HashMap<>();
+
+    /**
+     * Replays the recordings in the given directory for the repository
+     * containing the given path, or for the first repository recorded if
+     * none contains it (or 'path' is null).
+     */
+    public ReplayRevisionControlSystem(Path fixtureDirectory, Path path) throws IOException {
+        List<BackEndRecording> allRecordings = BackEndRecording.loadAll(fixtureDirectory);
+        if (allRecordings.isEmpty()) {
+            throw new IOException("no recordings in \"" + fixtureDirectory + "\"");
+        }
+        BackEndRecording chosen = allRecordings.get(0);
+        if (path != null) {
+            for (BackEndRecording recording : allRecordings) {
+                if (path.startsWith(recording.root)) {
+                    chosen = recording;
+                    break;
+                }
+            }
+        }
+        for (BackEndRecording recording : allRecordings) {
+            if (recording.root.equals(chosen.root)) {
+                String key = recording.getKey();
+                if (recordings.containsKey(key) == false) {
+                    recordings.put(key, new ArrayList<BackEndRecording>());
+                }
+                recordings.get(key).add(recording);
+            }
+        }
+
+        setRoot(chosen.root);
+        this.backEnd = makeBackEnd(chosen.backEndName);
+        backEnd.setRoot(chosen.root);
+        backEnd.setReplaySource(this);
+    }
+
+    private static RevisionControlSystem makeBackEnd(String name) throws IOException {
+        if (name.equals("Bazaar")) {
+            return new Bazaar();
+        } else if (name.equals("BitKeeper")) {
+            return new BitKeeper();
+        } else if (name.equals("Cvs")) {
+            return new Cvs();
+        } else if (name.equals("Git")) {
+            return new Git();
+        } else if (name.equals("Mercurial")) {
+            return new Mercurial();
+        } else if (name.equals("Subversion")) {
+            return new Subversion();
+        }
+        throw new IOException("unknown back-end \"" + name + "\" in recordings");
+    }
+
+    /**
+     * Returns the back-end whose recordings we're replaying, for anything
+     * that needs its back-end-specific methods.
+     */
+    public RevisionControlSystem getRecordedBackEnd() {
+        return backEnd;
+    }
+
+    /**
+     * Plays back the recording of the given command to the listeners,
+     * returning its exit status.
+     */
+    int replay(String[] command, String input, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) {
+        String key = BackEndRecording.keyFor(getRoot(), command, input);
+        BackEndRecording recording;
+        synchronized (replayCounts) {
+            List<BackEndRecording> candidates = recordings.get(key);
+            if (candidates == null) {
+                throw new RuntimeException("no recording of '" + ProcessUtilities.shellQuotedFormOf(Arrays.asList(command)) + "' in \"" + getRoot() + "\"");
+            }
+            Integer replayCount = replayCounts.get(key);
+            int index = (replayCount == null) ? 0 : replayCount;
+            recording = candidates.get(Math.min(index, candidates.size() - 1));
+            replayCounts.put(key, index + 1);
+        }
+        for (String line : recording.lines) {
+            outputListener.processLine(line);
+        }
+        for (String line : recording.errors) {
+            errorsListener.processLine(line);
+        }
+        return recording.status;
+    }
+
+    @Override
+    protected int runCommand(String[] command, String input, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) {
+        return replay(command, input, outputListener, errorsListener);
+    }
+
+    //
+    // Everything else is the recorded back-end's business.
+    //
+
+    @Override
+    protected int getMaxConcurrentCommands() {
+        return backEnd.getMaxConcurrentCommands();
+    }
+
+    public String[] getAnnotateCommand(Revision revision, String filename) {
+        return backEnd.getAnnotateCommand(revision, filename);
+    }
+
+    public AnnotatedLine parseAnnotatedLine(RevisionListModel revisions, String line) {
+        return backEnd.parseAnnotatedLine(revisions, line);
+    }
+
+    public String[] getDifferencesCommand(Revision olderRevision, Revision newerRevision, String filename, boolean ignoreWhiteSpace) {
+        return backEnd.getDifferencesCommand(olderRevision, newerRevision, filename, ignoreWhiteSpace);
+    }
+
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        return backEnd.getFileContentsCommand(revision, filename);
+    }
+
+    public String[] getLogCommand(String filename) {
+        return backEnd.getLogCommand(filename);
+    }
+
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return backEnd.createLogParser(listener);
+    }
+
+    public boolean isLocallyModified(String filename) {
+        return backEnd.isLocallyModified(filename);
+    }
+
+    @Override
+    public long getExpectedDiffMilliseconds() {
+        return backEnd.getExpectedDiffMilliseconds();
+    }
+
+    public boolean supportsChangeSets() {
+        return backEnd.supportsChangeSets();
+    }
+
+    public List<ChangeSetItem> listTouchedFilesInRevision(String filename, Revision revision) {
+        return backEnd.listTouchedFilesInRevision(filename, revision);
+    }
+
+    @Override
+    public boolean isHistoryLocal() {
+        return backEnd.isHistoryLocal();
+    }
+
+    public void revert(String filename) {
+        backEnd.revert(filename);
+    }
+
+    public List<FileStatus> getStatuses(StatusReporter statusReporter) {
+        return backEnd.getStatuses(statusReporter);
+    }
+
+    @Override
+    public Set<String> getIgnoredDirectories(String directory) {
+        return backEnd.getIgnoredDirectories(directory);
+    }
+
+    @Override
+    public boolean canGetStatusesOfPaths() {
+        return backEnd.canGetStatusesOfPaths();
+    }
+
+    @Override
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        return backEnd.getStatuses(statusReporter, filenames);
+    }
+
+    @Override
+    public void streamStatuses(StatusReporter statusReporter, StatusListener listener) {
+        backEnd.streamStatuses(statusReporter, listener);
+    }
+
+    public void commit(String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded) {
+        backEnd.commit(comment, fileStatuses, excluded);
+    }
+
+    @Override
+    public void commit(StatusReporter statusReporter, String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded) {
+        backEnd.commit(statusReporter, comment, fileStatuses, excluded);
+    }
+}
@@ -3,6 +3,8 @@ package e.scm;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import e.util.*;
 
 /**
@@ -17,6 +19,14 @@ public abstract class RevisionControlSystem {
      * use with the given file or directory.
      */
     public static RevisionControlSystem forPath(String path) {
+        String replayDirectory = System.getenv("SCM_REPLAY_FROM");
+        if (replayDirectory != null && replayDirectory.isEmpty() == false) {
+            try {
+                return new ReplayRevisionControlSystem(Paths.get(replayDirectory), FileUtilities.pathFrom(path).toAbsolutePath());
+            } catch (IOException ex) {
+                throw new RuntimeException("couldn't replay recordings from \"" + replayDirectory + "\"", ex);
+            }
+        }
         Path root = findRepositoryRoot(FileUtilities.pathFrom(path));
         if (root == null) {
             return null;
@@ -154,13 +164,67 @@ public abstract class RevisionControlSystem {
     
     private Path repositoryRoot;
     
-    private void setRoot(Path root) {
+    // Non-null if our commands should be answered from recordings instead of run.
+    private ReplayRevisionControlSystem replaySource;
+    
+    void setRoot(Path root) {
         this.repositoryRoot = root;
     }
     
+    void setReplaySource(ReplayRevisionControlSystem replaySource) {
+        this.replaySource = replaySource;
+    }
+    
     public Path getRoot() {
         return repositoryRoot;
     }
+    
+    /**
+     * Tests whether our commands are being recorded or replayed. If so,
+     * back-ends must run everything through backQuote, rather than take
+     * short cuts (reading their metadata themselves, or keeping a child
+     * process running) that recordings can't capture.
+     */
+    protected boolean isRecordingOrReplaying() {
+        return replaySource != null || BackEndRecording.isRecording();
+    }
+    
+    // Shared by every instance for the same repository, so separate windows don't multiply the load.
+    private static final HashMap<Path, BackEndScheduler> schedulers = new HashMap<>();
+    
+    /**
+     * Returns the scheduler that back-end work for this repository should
+     * be run on, rather than starting a thread of its own.
+     */
+    public BackEndScheduler getScheduler() {
+        synchronized (schedulers) {
+            BackEndScheduler scheduler = schedulers.get(repositoryRoot);
+            if (scheduler == null) {
+                scheduler = new BackEndScheduler(getClass().getSimpleName(), getMaxConcurrentCommands());
+                schedulers.put(repositoryRoot, scheduler);
+            }
+            return scheduler;
+        }
+    }
+    
+    /**
+     * Returns how many commands it's worth running at once in this
+     * repository. The default suits a local repository, where we're
+     * limited by our CPUs. Back-ends that talk to a server should return
+     * something smaller, so as not to hammer it.
+     */
+    protected int getMaxConcurrentCommands() {
+        return Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    }
+    
+    /**
+     * Tests whether the repository's history is on this machine, so that
+     * fetching two revisions' contents costs little more than one diff.
+     * Back-ends that talk to a server should return false.
+     */
+    public boolean isHistoryLocal() {
+        return true;
+    }
 
     /**
      * Returns a command that gets the annotated form of the given revision
@@ -183,14 +247,109 @@ public abstract class RevisionControlSystem {
      */
     public abstract String[] getDifferencesCommand(Revision olderRevision, Revision newerRevision, String filename, boolean ignoreWhiteSpace);
 
+    /**
+     * Returns a command that writes the given committed revision of the
+     * given file to standard output, or null if this back-end has no such
+     * command. DiffEngine uses the contents to make diffs itself.
+     */
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        return null;
+    }
+    
+    // Committed revisions can't change, so we can keep their contents until we need the room.
+    private static final int MAX_CACHED_CONTENTS_LINES = 1000000;
+    private static final LinkedHashMap<String, List<String>> contentsCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static int cachedContentsLineCount = 0;
+    
+    /**
+     * Returns the lines of the given file as of the given revision, or null
+     * if we can't get them (including when the file didn't exist then).
+     * Revision.LOCAL_REVISION gives the working copy's lines. Committed
+     * revisions are cached, so asking for one again costs nothing.
+     */
+    public final List<String> getFileContents(Revision revision, String filename) {
+        if (revision == Revision.LOCAL_REVISION) {
+            Path path = repositoryRoot.resolve(filename);
+            if (Files.isRegularFile(path) == false) {
+                return null;
+            }
+            return splitLines(StringUtilities.readFile(path));
+        }
+        
+        String key = repositoryRoot + "\0" + filename + "\0" + revision.number;
+        synchronized (contentsCache) {
+            List<String> cachedLines = contentsCache.get(key);
+            if (cachedLines != null) {
+                return cachedLines;
+            }
+        }
+        List<String> lines = readFileContents(revision, filename);
+        if (lines == null) {
+            return null;
+        }
+        lines = Collections.unmodifiableList(lines);
+        synchronized (contentsCache) {
+            if (contentsCache.containsKey(key) == false) {
+                contentsCache.put(key, lines);
+                cachedContentsLineCount += lines.size();
+            }
+            Iterator<List<String>> it = contentsCache.values().iterator();
+            while (cachedContentsLineCount > MAX_CACHED_CONTENTS_LINES && contentsCache.size() > 1) {
+                cachedContentsLineCount -= it.next().size();
+                it.remove();
+            }
+        }
+        return lines;
+    }
+    
+    /**
+     * Reads the lines of the given committed revision of the given file
+     * from the back-end, returning null on failure. The default runs the
+     * command from getFileContentsCommand.
+     */
+    protected List<String> readFileContents(Revision revision, String filename) {
+        String[] command = getFileContentsCommand(revision, filename);
+        if (command == null) {
+            return null;
+        }
+        ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        int status = backQuoteShared(command, lines, errors);
+        return (status == 0) ? lines : null;
+    }
+    
+    private static List<String> splitLines(String content) {
+        ArrayList<String> result = new ArrayList<>(Arrays.asList(content.split("\n", -1)));
+        // A final newline ends the last line rather than starting another.
+        if (result.get(result.size() - 1).isEmpty()) {
+            result.remove(result.size() - 1);
+        }
+        return result;
+    }
+    
     /** Returns a command that gets the revision log for the given file. */
     public abstract String[] getLogCommand(String filename);
 
     /**
-     * Parses the lines returned on standard output by the command from
-     * getLogCommand, building a RevisionListModel.
+     * Returns a parser for the lines written to standard output by the command
+     * from getLogCommand, which passes each revision to the given listener
+     * as soon as it has been parsed.
+     */
+    public abstract LogParser createLogParser(Consumer<Revision> listener);
+    
+    /**
+     * Parses the complete output of the command from getLogCommand, building
+     * a RevisionListModel.
      */
-    public abstract RevisionListModel parseLog(List<String> lines);
+    public RevisionListModel parseLog(List<String> lines) {
+        RevisionListModel result = new RevisionListModel();
+        LogParser parser = createLogParser(result::add);
+        for (String line : lines) {
+            parser.processLine(line);
+        }
+        parser.finish();
+        return result;
+    }
 
     /**
      * Tests whether a given file has been locally modified.
@@ -198,13 +357,14 @@ public abstract class RevisionControlSystem {
     public abstract boolean isLocallyModified(String filename);
     
     /**
-     * Tests whether meta-data is cheap to access, which generally means it's
-     * stored locally, as with BitKeeper. This can be used to enable/disable
-     * advanced features that work okay for (say) BitKeeper, but are too slow
-     * to use with broken designs like Subversion's.
+     * Returns how long we should expect a diff between two revisions to
+     * take, in milliseconds, before we've timed any. LineTracingCostModel
+     * starts from this and learns the real figure for each repository.
+     * The default assumes the meta-data is on a server; back-ends that keep
+     * it locally should return something much smaller.
      */
-    public boolean isMetaDataCheap() {
-        return false;
+    public long getExpectedDiffMilliseconds() {
+        return 1000;
     }
     
     /**
@@ -239,12 +399,297 @@ public abstract class RevisionControlSystem {
      */
     public abstract List<FileStatus> getStatuses(StatusReporter statusReporter);
     
+    /**
+     * Receives file statuses one at a time, as a back-end finds them.
+     */
+    public interface StatusListener {
+        public void statusFound(FileStatus fileStatus);
+    }
+    
+    public static class ArrayListStatusListener implements StatusListener {
+        private List<FileStatus> statuses;
+        
+        public ArrayListStatusListener(List<FileStatus> statuses) {
+            this.statuses = statuses;
+        }
+        
+        public void statusFound(FileStatus fileStatus) {
+            statuses.add(fileStatus);
+        }
+    }
+    
+    /**
+     * Like getStatuses, but passes each status to 'listener' as soon as the
+     * back-end's output has been parsed that far, so that a caller can show
+     * the first files of a big tree while the rest are still being found.
+     * The statuses come in whatever order the back-end gives them. Back-ends
+     * whose status output can be parsed a line at a time should override
+     * this; by default we get all the statuses and then pass them on.
+     */
+    public void streamStatuses(StatusReporter statusReporter, StatusListener listener) {
+        for (FileStatus fileStatus : getStatuses(statusReporter)) {
+            listener.statusFound(fileStatus);
+        }
+    }
+    
+    /**
+     * Returns the directories at or under the given one (relative to the
+     * repository root, "" meaning the root itself) that the back-end
+     * ignores, relative to the root and without a trailing '/'. Build
+     * output goes in directories like these, and WorkingCopyWatcher doesn't
+     * want to hear about it. By default we don't know of any.
+     */
+    public Set<String> getIgnoredDirectories(String directory) {
+        return Collections.emptySet();
+    }
+    
+    /**
+     * Tests whether getStatuses can be limited to some paths, cheaply and
+     * without side effects. CheckInWindow only keeps its statuses up to
+     * date as files change if so: otherwise every change would cost the
+     * status of everything.
+     */
+    public boolean canGetStatusesOfPaths() {
+        return false;
+    }
+    
+    /**
+     * Returns status information for just the given files (and anything
+     * in them, for directories), which are relative to the repository root
+     * as usual. A file with nothing to report is simply left out.
+     * Back-ends whose status command can be limited to some paths should
+     * override this and canGetStatusesOfPaths; by default we get the status
+     * of everything and keep the ones asked for, which is right but no
+     * quicker.
+     */
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        ArrayList<FileStatus> result = new ArrayList<>();
+        for (FileStatus fileStatus : getStatuses(statusReporter)) {
+            if (isAtOrUnder(fileStatus.getName(), filenames)) {
+                result.add(fileStatus);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Tests whether the given file is one of the given paths or in one of
+     * them. A trailing '/' (as a back-end may give for a directory) is
+     * ignored.
+     */
+    public static boolean isAtOrUnder(String filename, Set<String> paths) {
+        String path = filename.endsWith("/") ? filename.substring(0, filename.length() - 1) : filename;
+        while (true) {
+            if (paths.contains(path)) {
+                return true;
+            }
+            int slash = path.lastIndexOf('/');
+            if (slash == -1) {
+                return false;
+            }
+            path = path.substring(0, slash);
+        }
+    }
+    
     /**
      * Commits the files from the given list of FileStatus objects using the comment
      * supplied.
      */
     public abstract void commit(String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded);
     
+    /**
+     * Like commit, but lets back-ends that commit in several steps show
+     * their progress. By default we just commit.
+     */
+    public void commit(StatusReporter statusReporter, String comment, List<FileStatus> fileStatuses, List<FileStatus> excluded) {
+        commit(comment, fileStatuses, excluded);
+    }
+    
+    /**
+     * Runs a command in the repository root, collecting its output and
+     * returning its exit status. Back-ends and their callers should run
+     * commands through here rather than use ProcessUtilities directly, so
+     * that a back-end can choose how its commands get run.
+     */
+    public int backQuote(String[] command, ArrayList<String> lines, ArrayList<String> errors) {
+        return backQuote(command, "", new ProcessUtilities.ArrayListLineListener(lines), new ProcessUtilities.ArrayListLineListener(errors));
+    }
+    
+    /**
+     * Runs a command in the repository root, feeding it the given input and
+     * passing each line of its output to the appropriate listener.
+     * If the current CancellationToken is cancelled while the command is
+     * running, the command is killed and CancellationException is thrown.
+     * Every command is recorded in BackEndStatistics, and saved as a
+     * BackEndRecording if we've been asked to record commands.
+     */
+    public final int backQuote(String[] command, String input, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) {
+        return backQuote(command, input, '\n', outputListener, errorsListener);
+    }
+    
+    /**
+     * Like backQuote, but passes the output listener each piece of the
+     * command's output ending in 'outputTerminator', rather than each line.
+     * Use '\0' for output like that of "git status -z", whose entries end in
+     * NULs: read a line at a time, nothing would arrive until the end.
+     */
+    public final int backQuote(String[] command, String input, char outputTerminator, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) {
+        BackEndStatistics.Record record = BackEndStatistics.startCommand(repositoryRoot, command);
+        try {
+            if (replaySource != null) {
+                record.exitStatus = replaySource.replay(command, input, record.wrapOutputListener(outputListener), record.wrapErrorsListener(errorsListener));
+            } else if (BackEndRecording.isRecording() && (this instanceof ReplayRevisionControlSystem) == false) {
+                record.exitStatus = runAndRecordCommand(command, input, outputTerminator, record.wrapOutputListener(outputListener), record.wrapErrorsListener(errorsListener));
+            } else {
+                record.exitStatus = runCommand(command, input, outputTerminator, record.wrapOutputListener(outputListener), record.wrapErrorsListener(errorsListener));
+            }
+            return record.exitStatus;
+        } finally {
+            record.finish();
+        }
+    }
+    
+    private int runAndRecordCommand(String[] command, String input, char outputTerminator, final ProcessUtilities.LineListener outputListener, final ProcessUtilities.LineListener errorsListener) {
+        final ArrayList<String> lines = new ArrayList<>();
+        final ArrayList<String> errors = new ArrayList<>();
+        int status = runCommand(command, input, outputTerminator, new ProcessUtilities.LineListener() {
+            public void processLine(String line) {
+                lines.add(line);
+                outputListener.processLine(line);
+            }
+        }, new ProcessUtilities.LineListener() {
+            public void processLine(String line) {
+                errors.add(line);
+                errorsListener.processLine(line);
+            }
+        });
+        new BackEndRecording(getClass().getSimpleName(), repositoryRoot, command, input, status, lines, errors).save();
+        return status;
+    }
+    
+    /**
+     * Does the work of backQuote. Back-ends can override this to change how
+     * their commands get run.
+     */
+    protected int runCommand(String[] command, String input, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) {
+        CancellationToken token = CancellationToken.getCurrent();
+        if (token == CancellationToken.NONE) {
+            return ProcessUtilities.backQuote(repositoryRoot, command, input, outputListener, errorsListener);
+        }
+        return CancellableCommand.run(repositoryRoot, command, input, outputListener, errorsListener, token);
+    }
+    
+    /**
+     * Runs a command for backQuote, splitting its output at the given
+     * terminator. Newline-terminated output goes through runCommand, so
+     * back-ends' overrides see it; anything else is always run directly,
+     * since ProcessUtilities only reads lines.
+     */
+    private int runCommand(String[] command, String input, char outputTerminator, ProcessUtilities.LineListener outputListener, ProcessUtilities.LineListener errorsListener) {
+        if (outputTerminator == '\n') {
+            return runCommand(command, input, outputListener, errorsListener);
+        }
+        return CancellableCommand.run(repositoryRoot, command, input, outputTerminator, outputListener, errorsListener, CancellationToken.getCurrent());
+    }
+    
+    /**
+     * One run of a command whose output other threads might want too.
+     */
+    private static class SharedCommand {
+        final ArrayList<String> lines = new ArrayList<>();
+        final ArrayList<String> errors = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        int status;
+        RuntimeException failure;
+    }
+    
+    // Keyed by repository root and command.
+    private static final HashMap<String, SharedCommand> commandsInFlight = new HashMap<>();
+    
+    /**
+     * Like backQuote, but if another thread is already running the same
+     * command in the same repository, waits for it and shares its result
+     * instead of starting another process. Only use this for commands whose
+     * output can't change, such as a diff or annotation of committed
+     * revisions: a caller that arrives just after the shared command starts
+     * gets output from before it arrived. Anything involving the working
+     * copy or the current head should use backQuote.
+     */
+    public int backQuoteShared(String[] command, ArrayList<String> lines, ArrayList<String> errors) {
+        return backQuoteShared(command, lines, errors, null);
+    }
+    
+    /**
+     * Like backQuoteShared, but also passes each line of output to
+     * 'partialOutputListener' (if it's not null). If we start the command,
+     * the listener sees each line as it arrives; if we share another
+     * thread's run, it sees them all when that finishes.
+     */
+    public int backQuoteShared(String[] command, ArrayList<String> lines, ArrayList<String> errors, final ProcessUtilities.LineListener partialOutputListener) {
+        String key = repositoryRoot + "\0" + StringUtilities.join(Arrays.asList(command), "\0");
+        CancellationToken token = CancellationToken.getCurrent();
+        while (true) {
+            SharedCommand sharedCommand;
+            boolean isOurs = false;
+            synchronized (commandsInFlight) {
+                sharedCommand = commandsInFlight.get(key);
+                if (sharedCommand == null) {
+                    sharedCommand = new SharedCommand();
+                    commandsInFlight.put(key, sharedCommand);
+                    isOurs = true;
+                }
+            }
+            
+            if (isOurs) {
+                try {
+                    if (partialOutputListener != null) {
+                        final ArrayList<String> sharedLines = sharedCommand.lines;
+                        sharedCommand.status = backQuote(command, "", new ProcessUtilities.LineListener() {
+                            public void processLine(String line) {
+                                sharedLines.add(line);
+                                partialOutputListener.processLine(line);
+                            }
+                        }, new ProcessUtilities.ArrayListLineListener(sharedCommand.errors));
+                    } else {
+                        sharedCommand.status = backQuote(command, sharedCommand.lines, sharedCommand.errors);
+                    }
+                } catch (RuntimeException ex) {
+                    sharedCommand.failure = ex;
+                    throw ex;
+                } finally {
+                    synchronized (commandsInFlight) {
+                        commandsInFlight.remove(key);
+                    }
+                    sharedCommand.done.countDown();
+                }
+            } else {
+                try {
+                    while (sharedCommand.done.await(100, TimeUnit.MILLISECONDS) == false) {
+                        // Our caller may give up before the thread we're waiting for does.
+                        token.throwIfCancelled();
+                    }
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (sharedCommand.failure instanceof CancellationException) {
+                    // The thread that started the command gave up on it, but we didn't, so try again.
+                    continue;
+                }
+                if (sharedCommand.failure != null) {
+                    throw new RuntimeException("shared command '" + ProcessUtilities.shellQuotedFormOf(Arrays.asList(command)) + "' failed", sharedCommand.failure);
+                }
+                if (partialOutputListener != null) {
+                    for (String line : sharedCommand.lines) {
+                        partialOutputListener.processLine(line);
+                    }
+                }
+            }
+            lines.addAll(sharedCommand.lines);
+            errors.addAll(sharedCommand.errors);
+            return sharedCommand.status;
+        }
+    }
+    
     public void execAndDump(List<String> commandAsList) {
         execAndDumpWithInput(commandAsList, "");
     }
@@ -257,8 +702,9 @@ public abstract class RevisionControlSystem {
         String tool = command[0];
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        Log.warn(tool + ": running echo '" + input +"' | \"" + ProcessUtilities.shellQuotedFormOf(commandAsList) + "\"...");
-        int status = ProcessUtilities.backQuote(repositoryRoot, command, input, lines, errors);
+        // The input can be a thousand paths (see Git.commit), so we only say how much there is.
+        Log.warn(tool + ": running \"" + ProcessUtilities.shellQuotedFormOf(commandAsList) + "\" with " + describeInput(input) + "...");
+        int status = backQuote(command, input, new ProcessUtilities.ArrayListLineListener(lines), new ProcessUtilities.ArrayListLineListener(errors));
         for (int i = 0; i < lines.size(); ++i) {
             Log.warn(tool + ": stdout: " + lines.get(i));
         }
@@ -271,6 +717,29 @@ public abstract class RevisionControlSystem {
         }
     }
     
+    /**
+     * Describes the input to a command by the number of items in it:
+     * NUL-separated ones (such as Git.commit's pathspecs) if there are any
+     * NULs, lines otherwise.
+     */
+    private static String describeInput(String input) {
+        if (input.isEmpty()) {
+            return "no input";
+        }
+        char terminator = (input.indexOf('\0') != -1) ? '\0' : '\n';
+        int itemCount = 0;
+        for (int i = 0; i < input.length(); ++i) {
+            if (input.charAt(i) == terminator) {
+                ++itemCount;
+            }
+        }
+        if (input.charAt(input.length() - 1) != terminator) {
+            ++itemCount;
+        }
+        String item = (terminator == '\0') ? "NUL-separated item" : "line";
+        return itemCount + " " + item + ((itemCount == 1) ? "" : "s") + " of input";
+    }
+    
     /**
      * Reports an error in a dialog, and then throws a RuntimeException.
      */
@@ -41,6 +41,19 @@ public class RevisionListModel extends AbstractListModel<Revision> {
         fireIntervalAdded(this, getSize() - 1, getSize() - 1);
     }
 
+    /** Adds several revisions, with a single event. */
+    public void addAll(List<Revision> revisions) {
+        if (revisions.isEmpty()) {
+            return;
+        }
+        int firstIndex = getSize();
+        for (Revision revision : revisions) {
+            data.add(revision);
+            updateCaches(revision);
+        }
+        fireIntervalAdded(this, firstIndex, getSize() - 1);
+    }
+
     private void updateCaches(Revision revision) {
         numberToRevisionMap.put(revision.number, revision);
         maxAuthorNameLength = Math.max(maxAuthorNameLength, revision.shortAuthor.length());
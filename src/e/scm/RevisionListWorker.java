@@ -2,13 +2,31 @@ package e.scm;
 
 import e.util.*;
 import java.awt.*;
+import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 
 public abstract class RevisionListWorker extends BackEndWorker {
+  // We hand revisions to the event dispatch thread in batches, rather than
+  // one at a time or all at the end, so long histories appear progressively.
+  private static final int BATCH_SIZE = 200;
+  private static final long BATCH_INTERVAL_MS = 100;
+  
   private RevisionControlSystem backEnd;
   protected String filePath;
   private JList<?> listForErrors;
   
+  // Only touched on the event dispatch thread, once work has started.
+  private RevisionListModel revisions = new RevisionListModel();
+  private boolean haveReportedStart = false;
+  
+  // Parsed revisions not yet handed to the event dispatch thread.
+  private ArrayList<Revision> pendingRevisions = new ArrayList<>();
+  private long lastBatchTime = System.currentTimeMillis();
+  private RuntimeException parseFailure;
+  
+  private boolean isLocallyModified;
+  
   public RevisionListWorker(RevisionControlSystem backEnd, BackEndTask backEndTask, String filePath, JList<?> listForErrors) {
     super(backEndTask);
     this.backEnd = backEnd;
@@ -17,30 +35,119 @@ public abstract class RevisionListWorker extends BackEndWorker {
   }
   
   public void work() {
+    // Checking for local modifications means running another back-end command, which can be as slow as
+    // the log itself with a remote CVS or Subversion server, so run the two at the same time.
+    FutureTask<Boolean> localModificationCheck = backEnd.getScheduler().submit(BackEndScheduler.Priority.INTERACTIVE, CancellationToken.inheritCurrent(new Callable<Boolean>() {
+      public Boolean call() {
+        return backEnd.isLocallyModified(filePath);
+      }
+    }));
+    
     command = backEnd.getLogCommand(filePath);
-    status = ProcessUtilities.backQuote(backEnd.getRoot(), command, lines, errors);
+    final LogParser parser = backEnd.createLogParser(this::addRevision);
+    ProcessUtilities.LineListener outputListener = new ProcessUtilities.LineListener() {
+      public void processLine(String line) {
+        // Don't let a parse failure escape into the code reading the process' output.
+        // We report it once the process has finished.
+        if (parseFailure != null) {
+          return;
+        }
+        try {
+          parser.processLine(line);
+        } catch (RuntimeException ex) {
+          parseFailure = ex;
+        }
+      }
+    };
+    status = backEnd.backQuote(command, "", outputListener, new ProcessUtilities.ArrayListLineListener(errors));
+    if (parseFailure != null) {
+      throw parseFailure;
+    }
+    parser.finish();
+    publishPendingRevisions();
+    
+    try {
+      // If the scheduler hasn't got round to the check yet, run it here rather than wait for a free thread.
+      localModificationCheck.run();
+      isLocallyModified = localModificationCheck.get();
+    } catch (InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof CancellationException) {
+        throw (CancellationException) ex.getCause();
+      }
+      throw new RuntimeException(ex.getCause());
+    }
   }
   
-  private RevisionListModel parseRevisions() {
-    RevisionListModel revisions = backEnd.parseLog(lines);
-    if (backEnd.isLocallyModified(filePath)) {
-      revisions.addLocalRevision(Revision.LOCAL_REVISION);
+  private synchronized void addRevision(Revision revision) {
+    pendingRevisions.add(revision);
+    long now = System.currentTimeMillis();
+    if (pendingRevisions.size() >= BATCH_SIZE || now - lastBatchTime >= BATCH_INTERVAL_MS) {
+      publishPendingRevisions();
+      lastBatchTime = now;
     }
-    return revisions;
   }
   
-  public void finish() {
-    if (status != 0 || errors.size() > 0) {
-      ScmUtilities.showToolError(listForErrors, errors, command, status);
+  private synchronized void publishPendingRevisions() {
+    if (pendingRevisions.isEmpty()) {
       return;
     }
-    
+    final ArrayList<Revision> batch = pendingRevisions;
+    pendingRevisions = new ArrayList<>();
     EventQueue.invokeLater(new Runnable() {
       public void run() {
-        reportFileRevisions(parseRevisions());
+        if (isOutdated()) {
+          // A cancelled or superseded worker mustn't replace the current one's model.
+          return;
+        }
+        revisions.addAll(batch);
+        if (haveReportedStart == false) {
+          haveReportedStart = true;
+          reportFirstRevisions(revisions);
+        }
       }
     });
   }
   
+  public void finish() {
+    if (status != 0 || errors.size() > 0) {
+      restoreList();
+      ScmUtilities.showToolError(listForErrors, errors, command, status);
+      return;
+    }
+    
+    // All the back-end work is done; we're just adding the last revision to the model.
+    // Any batches published by work are ahead of us in the event queue.
+    if (isLocallyModified) {
+      revisions.addLocalRevision(Revision.LOCAL_REVISION);
+    }
+    reportFileRevisions(revisions);
+  }
+  
+  @Override
+  public void reportException(Exception ex) {
+    restoreList();
+    super.reportException(ex);
+  }
+  
+  /**
+   * Re-enables the list if reportFirstRevisions disabled it but we're not
+   * going to get as far as reportFileRevisions.
+   */
+  private void restoreList() {
+    if (haveReportedStart) {
+      listForErrors.setEnabled(true);
+    }
+  }
+  
+  /**
+   * Invoked on the event dispatch thread with the model as soon as it has
+   * some revisions in it, while the log command may still be running. The
+   * model will continue to grow until reportFileRevisions is invoked.
+   */
+  public void reportFirstRevisions(RevisionListModel fileRevisions) {
+  }
+  
   public abstract void reportFileRevisions(RevisionListModel fileRevisions);
 }
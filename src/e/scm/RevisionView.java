@@ -5,6 +5,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import javax.swing.*;
 import javax.swing.event.*;
@@ -37,36 +38,20 @@ public class RevisionView extends JComponent {
         return range;
     }
             
-    private int translateLineNumberInOneStep(Revision fromRevision, Revision toRevision, int fromLineNumber) {
-        Patch patch = new Patch(backEnd, filePath, fromRevision, toRevision, true, false);
-        int toLineNumber = patch.translateLineNumberInFromRevision(fromLineNumber);
-        //Log.warn("translateLineNumberInOneStep: (" + fromRevision + ") => (" + toRevision + ") maps (" + fromLineNumber + " => " + toLineNumber + ")");
-        return toLineNumber;
-    }
-    
     public int translateLineNumberStepByStep(Revision fromRevision, Revision toRevision, int lineNumber) {
-        if (backEnd.isMetaDataCheap() == false) {
-            // FIXME: "return translateLineNumberInOneStep(fromRevision, toRevision, lineNumber);" would be better,
-            // but it's still too slow across the Atlantic. Really, cheapness
-            // of meta-data access isn't binary. I can imagine sites where you
-            // can't afford to trace back step-by-step, but you could afford a
-            // single step. Why isn't programming with timeouts easier?
-            return lineNumber;
-        }
-        
         if (fromRevision == toRevision) {
             return lineNumber;
         }
         
         try {
-            List<Revision> revisionRange = getRevisionRange(fromRevision, toRevision);
-            Revision previousRevision = fromRevision;
-            for (int i = 1 /* sic */; i < revisionRange.size(); ++i) {
-                statusReporter.startTask("Tracing line back to revision " + toRevision.number + " (currently at " + previousRevision.number + ")...");
-                Revision revision = revisionRange.get(i);
-                lineNumber = translateLineNumberInOneStep(previousRevision, revision, lineNumber);
-                previousRevision = revision;
+            int indexedLineNumber = LineProvenanceIndex.forFile(backEnd, filePath).translate(fromRevision, toRevision, lineNumber);
+            if (indexedLineNumber != -1) {
+                return indexedLineNumber;
             }
+            List<Revision> revisionRange = getRevisionRange(fromRevision, toRevision);
+            lineNumber = new LineTracer(backEnd, filePath, statusReporter).translate(fromRevision, revisionRange, lineNumber);
+        } catch (CancellationException ex) {
+            throw ex;
         } catch (Exception ex) {
             // Jumping to the same line number in the target revision isn't ideal, but it's better than not jumping to
             // the right revision and it's better than jumping to the top.
@@ -76,8 +61,6 @@ public class RevisionView extends JComponent {
             // the Patch class contains an isPatchReversed boolean to let us work around this.
             // Once we get round to using it.
             Log.warn("Couldn't translate line number", ex);
-        } finally {
-            statusReporter.finishTask();
         }
         return lineNumber;
     }
@@ -119,10 +102,17 @@ public class RevisionView extends JComponent {
         
         /**
          * Handles single-clicks by showing the comment associated with
-         * the line's revision.
+         * the line's revision, and which revision removed the line, if
+         * we're annotating an old revision and we know.
          */
         private void click(AnnotatedLine annotatedLine) {
-            showComment(annotatedLine.revision.comment);
+            String comment = annotatedLine.revision.comment;
+            Revision annotatedRevision = getAnnotatedRevision();
+            Revision removingRevision = (annotatedRevision != null) ? LineProvenanceIndex.forFile(backEnd, filePath).getRevisionRemoving(annotatedRevision, 1 + index) : null;
+            if (removingRevision != null) {
+                comment += "\n(This line was removed in revision " + removingRevision.number + ".)";
+            }
+            showComment(comment);
         }
     };
     
@@ -135,55 +125,23 @@ public class RevisionView extends JComponent {
                 Revision newerRevision = (Revision) values[0];
                 Revision olderRevision = (Revision) values[values.length - 1];
                 
-                ListModel<String> model = patchView.getModel();
                 final int index = patchView.locationToIndex(e.getPoint());
-                String lineOfInterest = model.getElementAt(index);
+                Patch.Line lineOfInterest = patchView.getPatchLine(index);
                 
                 // Only lines removed or added can be jumped to.
-                if (lineOfInterest.matches("^[-+].*") == false) {
+                if (lineOfInterest == null || (lineOfInterest.kind != Patch.Line.Kind.FROM && lineOfInterest.kind != Patch.Line.Kind.TO)) {
                     // FIXME: give some feedback?
                     return;
                 }
                 
-                // What revision are we going to?
+                // What revision are we going to, and where is the line in it?
                 Revision desiredRevision = olderRevision;
-                if (lineOfInterest.startsWith("+")) {
+                int desiredLineNumber = lineOfInterest.fromLineNumber;
+                if (lineOfInterest.kind == Patch.Line.Kind.TO) {
                     desiredRevision = newerRevision;
+                    desiredLineNumber = lineOfInterest.toLineNumber;
                 }
                 
-                // Search backwards for the previous @@ line to help find out where we are.
-                int newerStartLine = 0;
-                int olderStartLine = 0;
-                int linesIntoHunk = 0;
-                for (int i = index; i >= 0; --i) {
-                    String line = model.getElementAt(i);
-                    Patch.HunkRange hunkRange = new Patch.HunkRange(line);
-                    if (hunkRange.matches()) {
-                        olderStartLine = hunkRange.fromBegin();
-                        newerStartLine = hunkRange.toBegin();
-                        break;
-                    } else if (line.startsWith("+")) {
-                        if (desiredRevision == newerRevision) {
-                            ++linesIntoHunk;
-                        }
-                    } else if (line.startsWith("-")) {
-                        if (desiredRevision == olderRevision) {
-                            ++linesIntoHunk;
-                        }
-                    } else {
-                        // Context lines count for both revisions.
-                        ++linesIntoHunk;
-                    }
-                }
-                
-                // The line numbers in the @@ line actually refer to the
-                // line after.
-                --newerStartLine;
-                --olderStartLine;
-                
-                int startLine = ((desiredRevision == olderRevision) ? olderStartLine : newerStartLine);
-                int desiredLineNumber = startLine + linesIntoHunk;
-                
                 selectRevision(desiredRevision, desiredLineNumber);
             }
         }
@@ -355,30 +313,39 @@ public class RevisionView extends JComponent {
     }
 
     private void showAnnotationsForRevision(final Revision revision, final int lineNumber) {
-        new Thread(new BackEndWorker(new BackEndTask("Getting annotations for revision " + revision.number + "...", statusReporter)) {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new BackEndWorker(new BackEndTask("Getting annotations for revision " + revision.number + "...", statusReporter)) {
+            private AnnotationModel newAnnotationModel;
+            
             public void work() {
                 command = backEnd.getAnnotateCommand(revision, filePath);
-                status = ProcessUtilities.backQuote(backEnd.getRoot(), command, lines, errors);
+                if (revision == Revision.LOCAL_REVISION) {
+                    status = backEnd.backQuote(command, lines, errors);
+                } else {
+                    status = backEnd.backQuoteShared(command, lines, errors);
+                }
+                // CVS writes junk to standard error even on success.
+                if (status == 0) {
+                    newAnnotationModel = makeAnnotationModel(revision, lines);
+                }
             }
             
             public void finish() {
-                // CVS writes junk to standard error even on success.
                 if (status != 0) {
                     ScmUtilities.showToolError(annotationView, errors, command, status);
                     return;
                 }
                 
-                updateAnnotationModel(revision, lines);
+                updateAnnotationModel(newAnnotationModel);
                 showSpecificLineInList(lineNumber, annotationView);
             }
-        }).start();
+        });
     }
     
     /**
      * Here, the line number corresponds to a line number in fromRevision.
      */
     private void showAnnotationsForRevision(final Revision toRevision, final Revision fromRevision, final int fromLineNumber) {
-        new Thread(new BackEndWorker(new BackEndTask("Tracing line back to revision " + toRevision.number + "...", statusReporter)) {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new BackEndWorker(new BackEndTask("Tracing line back to revision " + toRevision.number + "...", statusReporter)) {
             private int toLineNumber;
             
             public void work() {
@@ -388,29 +355,41 @@ public class RevisionView extends JComponent {
             public void finish() {
                 showAnnotationsForRevision(toRevision, toLineNumber);
             }
-        }).start();
+        });
     }
 
-    @SuppressWarnings("unchecked") // annotationView is a raw JList.
-    private void updateAnnotationModel(Revision revision, List<String> lines) {
-        annotationModel = parseAnnotations(lines);
+    /**
+     * Parses the output of the annotate command. This runs the back-end
+     * again for the local revision, so don't call it on the event dispatch
+     * thread.
+     */
+    private AnnotationModel makeAnnotationModel(Revision revision, List<String> lines) {
+        AnnotationModel result = parseAnnotations(lines);
         if (revision == Revision.LOCAL_REVISION) {
             // The annotations are wrong.
             // They're actually for the head revision, not the locally modified file.
             // We have to fake it by getting a patch and 'applying' it to the annotations.
             Patch patch = new Patch(backEnd, filePath, null, Revision.LOCAL_REVISION, false, false);
-            annotationModel.applyPatch(patch.getPatchLines(), revisions);
+            result.applyPatch(patch.getLines(), revisions);
         }
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked") // annotationView is a raw JList.
+    private void updateAnnotationModel(AnnotationModel newAnnotationModel) {
+        annotationModel = newAnnotationModel;
         annotationView.setModel(annotationModel);
         annotationView.addMouseListener(annotationsDoubleClickListener);
         mainView.setSelectedIndex(0);
     }
     
     public AnnotationModel parseAnnotations(List<String> lines) {
+        long startNanos = System.nanoTime();
         AnnotationModel result = new AnnotationModel();
         for (String line : lines) {
             result.add(backEnd.parseAnnotatedLine(revisions, line));
         }
+        BackEndStatistics.addParseTime(System.nanoTime() - startNanos);
         return result;
     }
 
@@ -472,12 +451,25 @@ public class RevisionView extends JComponent {
     }
     
     private void readListOfRevisions(final int initialLineNumber) {
-        new Thread(new RevisionListWorker(backEnd, new BackEndTask("Getting list of revisions...", statusReporter), filePath, revisionsList) {
+        backEnd.getScheduler().execute(BackEndScheduler.Priority.INTERACTIVE, new RevisionListWorker(backEnd, new BackEndTask("Getting list of revisions...", statusReporter), filePath, revisionsList) {
+            public void reportFirstRevisions(RevisionListModel fileRevisions) {
+                // Show the revisions as they arrive, but don't let the user choose one until we know them all,
+                // because annotations can refer to any revision.
+                RevisionView.this.revisions = fileRevisions;
+                revisionsList.setModel(revisions);
+                revisionsList.setEnabled(false);
+            }
+            
             public void reportFileRevisions(RevisionListModel fileRevisions) {
                 RevisionView.this.revisions = fileRevisions;
                 revisionsList.setModel(revisions);
+                revisionsList.setEnabled(true);
                 showLogButton.setEnabled(true);
                 
+                LineProvenanceIndex index = LineProvenanceIndex.forFile(backEnd, filePath);
+                index.setRevisions(fileRevisions);
+                index.buildInBackground();
+                
                 if (initialLineNumber != 0) {
                     Revision revision = revisions.getLatestInRepository();
                     selectRevision(revision, initialLineNumber);
@@ -485,7 +477,7 @@ public class RevisionView extends JComponent {
                     showSummaryOfAllRevisions();
                 }
             }
-        }).start();
+        });
     }
 
     public void selectRevision(Revision revision, int lineNumber) {
@@ -9,7 +9,8 @@ public class StatusReporter {
     private JAsynchronousProgressIndicator progressIndicator = new JAsynchronousProgressIndicator();
     private JPanel progressPanel;
     private JLabel statusLine = new JLabel();
-    private int currentTaskHandle = 0;
+    // Volatile because workers poll isTaskOutdated from their own threads.
+    private volatile int currentTaskHandle = 0;
     
     public StatusReporter(Component owner) {
         this.owner = owner;
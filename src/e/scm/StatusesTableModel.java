@@ -4,21 +4,62 @@ import java.awt.*;
 import java.util.*;
 import java.util.List;
 import javax.swing.*;
+import javax.swing.event.*;
 import javax.swing.table.*;
 
+/**
+ * The files CheckInWindow offers to commit, and which of them are
+ * included. A big code generation or vendor drop can leave us with a
+ * hundred thousand rows, and every table event asks how many are
+ * included, so we keep count rather than scan. The rows are sorted, so we
+ * find a file by binary search, and we merge new statuses in with one pass
+ * over the rows rather than insert and remove them one at a time.
+ * StatusesTableModelBenchmark times all this at that scale.
+ */
 public class StatusesTableModel extends AbstractTableModel {
-    private Boolean[] isIncluded;
-    private List<FileStatus> statuses;
+    // Sorted by ORDER.
+    private ArrayList<FileStatus> statuses;
+    // The included rows, and how many there are.
+    private BitSet includedRows = new BitSet();
+    private int includedCount = 0;
+    // The rows that are whole directories (which end in '/'), so we needn't look up every parent of every new file.
+    private final HashSet<String> directoryNames = new HashSet<>();
+    
+    // While merge is working, the rows it's done are in mergedStatuses (and mergedIncludedRows), and the rest are
+    // still in statuses from unmergedRow on. The table sees the two together, so each event we fire matches the rows.
+    private ArrayList<FileStatus> mergedStatuses;
+    private BitSet mergedIncludedRows;
+    private int unmergedRow;
+    
+    // Past this many runs of changed rows, one "everything changed" event is cheaper for the table than an event for each.
+    private static final int MAX_ROW_EVENTS = 100;
+    
+    // FileStatus.compareTo ignores case, but two names that differ only in case are different files.
+    private static final Comparator<String> ORDER = new Comparator<String>() {
+        public int compare(String lhs, String rhs) {
+            int result = lhs.compareToIgnoreCase(rhs);
+            return (result != 0) ? result : lhs.compareTo(rhs);
+        }
+    };
     
     public StatusesTableModel(List<FileStatus> statuses) {
-        this.statuses = statuses;
-        this.isIncluded = new Boolean[statuses.size()];
-        for (int i = 0; i < isIncluded.length; ++i) {
-            isIncluded[i] = Boolean.FALSE;
+        this.statuses = new ArrayList<>(statuses);
+        Collections.sort(this.statuses, new Comparator<FileStatus>() {
+            public int compare(FileStatus lhs, FileStatus rhs) {
+                return ORDER.compare(lhs.getName(), rhs.getName());
+            }
+        });
+        for (FileStatus status : this.statuses) {
+            if (status.getName().endsWith("/")) {
+                directoryNames.add(status.getName());
+            }
         }
     }
     
     public int getRowCount() {
+        if (mergedStatuses != null) {
+            return mergedStatuses.size() + statuses.size() - unmergedRow;
+        }
         return statuses.size();
     }
     
@@ -37,7 +78,7 @@ public class StatusesTableModel extends AbstractTableModel {
     
     public Object getValueAt(int row, int column) {
         switch (column) {
-            case 0: return isIncluded[row];
+            case 0: return Boolean.valueOf(isIncluded(row));
             case 1: return getFileStatus(row).getStateString();
             case 2: return getFileStatus(row).getName();
         }
@@ -45,6 +86,9 @@ public class StatusesTableModel extends AbstractTableModel {
     }
     
     public FileStatus getFileStatus(int row) {
+        if (mergedStatuses != null) {
+            return (row < mergedStatuses.size()) ? mergedStatuses.get(row) : statuses.get(row - mergedStatuses.size() + unmergedRow);
+        }
         return statuses.get(row);
     }
     
@@ -67,23 +111,260 @@ public class StatusesTableModel extends AbstractTableModel {
     
     public void setValueAt(Object value, int row, int column) {
         assert(column == 0);
-        isIncluded[row] = (Boolean) value;
+        boolean newState = ((Boolean) value).booleanValue();
+        if (includedRows.get(row) != newState) {
+            includedRows.set(row, newState);
+            includedCount += newState ? 1 : -1;
+        }
         fireTableCellUpdated(row, column);
     }
     
+    /**
+     * Returns the row of the named file, or -1 if it's not in the table.
+     */
+    public int getRow(String name) {
+        int low = 0;
+        int high = getRowCount() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int order = ORDER.compare(getFileStatus(mid).getName(), name);
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Adds statuses (in any order) as a back-end streams them in, keeping
+     * the rows sorted.
+     */
+    public void addStatuses(List<FileStatus> newStatuses) {
+        merge(newStatuses, Collections.<String>emptySet());
+    }
+    
+    /**
+     * Merges newly fetched statuses into the table, without disturbing the
+     * checkboxes of the files already in it. If 'filenames' is null, the
+     * statuses are those of every file; otherwise they're just those of the
+     * given files (and anything in them, for directories), and the rows of
+     * other files are left alone. Rows are removed, updated and inserted
+     * rather than the whole table replaced, so the table usually keeps its
+     * selection; if too much has changed, though, we tell the table
+     * everything's changed, which loses it. Returns the statuses of files
+     * that weren't in the table before.
+     */
+    public List<FileStatus> mergeStatuses(List<FileStatus> newStatuses, Set<String> filenames) {
+        return merge(newStatuses, filenames);
+    }
+    
+    /**
+     * Does the work of addStatuses and mergeStatuses in one pass over the
+     * sorted rows and the sorted new statuses, firing one event for each
+     * run of adjacent rows removed, changed or inserted.
+     */
+    private List<FileStatus> merge(List<FileStatus> newStatuses, Set<String> filenames) {
+        ArrayList<FileStatus> sortedStatuses = sortedWithoutDuplicates(newStatuses);
+        ArrayList<FileStatus> result = new ArrayList<>();
+        RowEvents events = new RowEvents();
+        mergedStatuses = new ArrayList<>(statuses.size() + sortedStatuses.size());
+        mergedIncludedRows = new BitSet();
+        unmergedRow = 0;
+        try {
+            int i = 0;
+            while (unmergedRow < statuses.size() || i < sortedStatuses.size()) {
+                FileStatus oldStatus = (unmergedRow < statuses.size()) ? statuses.get(unmergedRow) : null;
+                FileStatus newStatus = (i < sortedStatuses.size()) ? sortedStatuses.get(i) : null;
+                int order = (oldStatus == null) ? 1 : (newStatus == null) ? -1 : ORDER.compare(oldStatus.getName(), newStatus.getName());
+                // Each change's event has to go before the change, since it may finish the previous run.
+                int row = mergedStatuses.size();
+                if (order < 0 && filenames != null && filenames.isEmpty()) {
+                    // Nothing's to be removed, so take the rows up to the next new status as they are.
+                    // Statuses stream in order, so this is most of the table for each batch.
+                    int endRow = (newStatus == null) ? statuses.size() : findInsertionRow(statuses, unmergedRow, newStatus.getName());
+                    for (int includedRow = includedRows.nextSetBit(unmergedRow); includedRow != -1 && includedRow < endRow; includedRow = includedRows.nextSetBit(includedRow + 1)) {
+                        mergedIncludedRows.set(row + includedRow - unmergedRow);
+                    }
+                    mergedStatuses.addAll(statuses.subList(unmergedRow, endRow));
+                    unmergedRow = endRow;
+                } else if (order < 0 && (filenames == null || RevisionControlSystem.isAtOrUnder(oldStatus.getName(), filenames))) {
+                    // The back-end no longer has anything to say about this file.
+                    events.add(TableModelEvent.DELETE, row);
+                    if (includedRows.get(unmergedRow)) {
+                        --includedCount;
+                    }
+                    directoryNames.remove(oldStatus.getName());
+                    ++unmergedRow;
+                } else if (order < 0) {
+                    // A file we weren't asked about.
+                    mergedIncludedRows.set(row, includedRows.get(unmergedRow));
+                    mergedStatuses.add(oldStatus);
+                    ++unmergedRow;
+                } else if (order == 0) {
+                    if (newStatus.getState() != oldStatus.getState()) {
+                        events.add(TableModelEvent.UPDATE, row);
+                    }
+                    mergedIncludedRows.set(row, includedRows.get(unmergedRow));
+                    mergedStatuses.add(newStatus);
+                    ++unmergedRow;
+                    ++i;
+                } else {
+                    if (isInUntrackedDirectory(newStatus.getName()) == false) {
+                        events.add(TableModelEvent.INSERT, row);
+                        mergedStatuses.add(newStatus);
+                        result.add(newStatus);
+                        if (newStatus.getName().endsWith("/")) {
+                            directoryNames.add(newStatus.getName());
+                        }
+                    }
+                    ++i;
+                }
+            }
+            statuses = mergedStatuses;
+            includedRows = mergedIncludedRows;
+        } finally {
+            mergedStatuses = null;
+            mergedIncludedRows = null;
+            unmergedRow = 0;
+        }
+        events.finish();
+        return result;
+    }
+    
+    /**
+     * Returns the first row from 'firstRow' on of the given sorted statuses
+     * whose name doesn't come before 'name'.
+     */
+    private static int findInsertionRow(List<FileStatus> sortedStatuses, int firstRow, String name) {
+        int low = firstRow;
+        int high = sortedStatuses.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ORDER.compare(sortedStatuses.get(mid).getName(), name) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Returns the given statuses sorted, keeping only the last of any for
+     * the same file.
+     */
+    private static ArrayList<FileStatus> sortedWithoutDuplicates(List<FileStatus> statuses) {
+        ArrayList<FileStatus> sortedStatuses = new ArrayList<>(statuses);
+        // The sort is stable, so the last of any duplicates stays last.
+        Collections.sort(sortedStatuses, new Comparator<FileStatus>() {
+            public int compare(FileStatus lhs, FileStatus rhs) {
+                return ORDER.compare(lhs.getName(), rhs.getName());
+            }
+        });
+        ArrayList<FileStatus> result = new ArrayList<>(sortedStatuses.size());
+        for (int i = 0; i < sortedStatuses.size(); ++i) {
+            if (i + 1 == sortedStatuses.size() || sortedStatuses.get(i).getName().equals(sortedStatuses.get(i + 1).getName()) == false) {
+                result.add(sortedStatuses.get(i));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Collects the rows merge changes into runs, and fires one event for
+     * each run. Removing a row moves the next one up into its place, so a
+     * run of removals all happen at the same row. A table's selection model
+     * takes time proportional to the number of rows to shift the selection
+     * for each insertion or removal, so past MAX_ROW_EVENTS runs we stop
+     * and fire one "everything changed" event at the end.
+     */
+    private class RowEvents {
+        private int type;
+        private int firstRow;
+        private int rowCount = 0;
+        private int eventCount = 0;
+        
+        void add(int type, int row) {
+            int nextRow = (this.type == TableModelEvent.DELETE) ? firstRow : firstRow + rowCount;
+            if (rowCount > 0 && (type != this.type || row != nextRow)) {
+                flush();
+            }
+            if (rowCount == 0) {
+                this.type = type;
+                firstRow = row;
+            }
+            ++rowCount;
+        }
+        
+        void flush() {
+            if (rowCount == 0) {
+                return;
+            }
+            int lastRow = firstRow + rowCount - 1;
+            rowCount = 0;
+            if (++eventCount > MAX_ROW_EVENTS) {
+                return;
+            }
+            if (type == TableModelEvent.DELETE) {
+                fireTableRowsDeleted(firstRow, lastRow);
+            } else if (type == TableModelEvent.INSERT) {
+                fireTableRowsInserted(firstRow, lastRow);
+            } else {
+                fireTableRowsUpdated(firstRow, lastRow);
+            }
+        }
+        
+        void finish() {
+            flush();
+            if (eventCount > MAX_ROW_EVENTS) {
+                fireTableDataChanged();
+            }
+        }
+    }
+    
+    /**
+     * Tests whether the given file is in a directory that's already in the
+     * table as a whole. Back-ends list an untracked directory rather than
+     * its contents, but asked about one of the files in it they'll list the
+     * file.
+     */
+    private boolean isInUntrackedDirectory(String name) {
+        if (directoryNames.isEmpty()) {
+            return false;
+        }
+        for (int slash = name.indexOf('/'); slash != -1 && slash + 1 < name.length(); slash = name.indexOf('/', slash + 1)) {
+            if (directoryNames.contains(name.substring(0, slash + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     public void includeFiles(List<FileStatus> fileStatuses) {
         includeFilenames(fileStatusListToFilenameList(fileStatuses));
     }
     
-    public void includeFilenames(List<String> names) {
-        for (int i = 0; i < getRowCount(); ++i) {
-            String name = getFileStatus(i).getName();
-            if (names.contains(name)) {
-                setValueAt(Boolean.TRUE, i, 0);
+    public void includeFilenames(Collection<String> names) {
+        for (String name : names) {
+            int row = getRow(name);
+            if (row != -1 && isIncluded(row) == false) {
+                setValueAt(Boolean.TRUE, row, 0);
             }
         }
     }
     
+    /**
+     * Tests whether the named file is in the table and included.
+     */
+    public boolean isIncludedFilename(String name) {
+        int row = getRow(name);
+        return row != -1 && isIncluded(row);
+    }
+    
     public List<FileStatus> getFilesIf(boolean included) {
         ArrayList<FileStatus> result = new ArrayList<>();
         for (int i = 0; i < getRowCount(); ++i) {
@@ -107,13 +388,7 @@ public class StatusesTableModel extends AbstractTableModel {
     }
     
     public int getIncludedFileCount() {
-        int result = 0;
-        for (int i = 0; i < getRowCount(); ++i) {
-            if (isIncluded(i)) {
-                ++result;
-            }
-        }
-        return result;
+        return includedCount;
     }
     
     /**
@@ -133,12 +408,7 @@ public class StatusesTableModel extends AbstractTableModel {
      * be non-empty. Used to enable and disable the commit button.
      */
     public boolean isAtLeastOneFileIncluded() {
-        for (int i = 0; i < getRowCount(); ++i) {
-            if (isIncluded(i)) {
-                return true;
-            }
-        }
-        return false;
+        return includedCount > 0;
     }
     
     /**
@@ -146,12 +416,7 @@ public class StatusesTableModel extends AbstractTableModel {
      * files are currently included.
      */
     public int chooseDefaultSelectedRow() {
-        for (int i = 0; i < getRowCount(); ++i) {
-            if (isIncluded(i)) {
-                return i;
-            }
-        }
-        return 0;
+        return Math.max(includedRows.nextSetBit(0), 0);
     }
     
     /**
@@ -159,7 +424,10 @@ public class StatusesTableModel extends AbstractTableModel {
      * in the check-in.
      */
     public boolean isIncluded(int row) {
-        return isIncluded[row].booleanValue();
+        if (mergedStatuses != null) {
+            return (row < mergedStatuses.size()) ? mergedIncludedRows.get(row) : includedRows.get(row - mergedStatuses.size() + unmergedRow);
+        }
+        return includedRows.get(row);
     }
     
     private int getRendererWidth(JTable table, TableCellRenderer renderer, int columnIndex, Object value) {
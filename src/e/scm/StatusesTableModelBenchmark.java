@@ -0,0 +1,116 @@
+package e.scm;
+
+import java.util.*;
+import javax.swing.event.*;
+
+/**
+ * Times filling a StatusesTableModel with the statuses of a big vendor drop
+ * the way CheckInWindow does, and merging in the statuses we get after it's
+ * been partly committed from the command line. Run it with
+ * "java e.scm.StatusesTableModelBenchmark" before and after changing
+ * StatusesTableModel.
+ */
+public class StatusesTableModelBenchmark {
+    // This many statuses, streamed in batches of this size (see CheckInWindow.STATUS_BATCH_SIZE).
+    private static final int STATUS_COUNT = 100000;
+    private static final int BATCH_SIZE = 256;
+    private static final int LOOKUP_COUNT = 1000000;
+
+    private StatusesTableModelBenchmark() {
+    }
+
+    public static void main(String[] arguments) {
+        // Run twice, so the second run's times don't include warming up the JIT.
+        for (int run = 1; run <= 2; ++run) {
+            System.out.println("Run " + run + ":");
+            benchmark(new Random(0));
+        }
+    }
+
+    private static void benchmark(Random random) {
+        ArrayList<FileStatus> statuses = makeStatuses(random);
+        StatusesTableModel model = new StatusesTableModel(Collections.<FileStatus>emptyList());
+        final int[] eventCount = new int[1];
+        model.addTableModelListener(new TableModelListener() {
+            public void tableChanged(TableModelEvent e) {
+                ++eventCount[0];
+            }
+        });
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < statuses.size(); i += BATCH_SIZE) {
+            List<FileStatus> batch = statuses.subList(i, Math.min(statuses.size(), i + BATCH_SIZE));
+            model.addStatuses(batch);
+            // CheckInWindow includes the added files in each batch as it arrives.
+            ArrayList<String> addedFilenames = new ArrayList<>();
+            for (FileStatus status : batch) {
+                if (status.getState() == FileStatus.ADDED) {
+                    addedFilenames.add(status.getName());
+                }
+            }
+            model.includeFilenames(addedFilenames);
+        }
+        report("stream " + STATUS_COUNT + " statuses in batches of " + BATCH_SIZE, startNanos, eventCount);
+        check(model.getRowCount() == STATUS_COUNT, "streamed " + model.getRowCount() + " statuses");
+
+        startNanos = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < LOOKUP_COUNT; ++i) {
+            if (model.getRow(statuses.get(random.nextInt(statuses.size())).getName()) != -1) {
+                ++found;
+            }
+        }
+        report(LOOKUP_COUNT + " lookups by name", startNanos, eventCount);
+        check(found == LOOKUP_COUNT, "found " + found + " of " + LOOKUP_COUNT);
+
+        // The user commits every other file from the command line, and the next full rescan finds the rest.
+        ArrayList<FileStatus> remaining = new ArrayList<>();
+        for (int i = 0; i < statuses.size(); i += 2) {
+            remaining.add(statuses.get(i));
+        }
+        Collections.sort(remaining);
+        startNanos = System.nanoTime();
+        model.mergeStatuses(remaining, null);
+        report("full rescan removing every other row", startNanos, eventCount);
+        check(model.getRowCount() == remaining.size(), "merged to " + model.getRowCount() + " rows rather than " + remaining.size());
+
+        // Then the watcher tells us about one directory's worth of changes.
+        String directory = remaining.get(remaining.size() / 2).getName();
+        directory = directory.substring(0, directory.indexOf('/'));
+        ArrayList<FileStatus> changed = new ArrayList<>();
+        for (FileStatus status : remaining) {
+            if (status.getName().startsWith(directory + "/")) {
+                changed.add(new FileStatus(FileStatus.MODIFIED, status.getName()));
+            }
+        }
+        startNanos = System.nanoTime();
+        model.mergeStatuses(changed, Collections.singleton(directory));
+        report("merge " + changed.size() + " changed statuses from one directory", startNanos, eventCount);
+        check(model.getRowCount() == remaining.size(), "merged to " + model.getRowCount() + " rows rather than " + remaining.size());
+    }
+
+    /**
+     * Makes the statuses of a vendor drop: a few thousand directories, in
+     * the order a back-end would list them, mostly added files.
+     */
+    private static ArrayList<FileStatus> makeStatuses(Random random) {
+        ArrayList<FileStatus> result = new ArrayList<>();
+        for (int i = 0; i < STATUS_COUNT; ++i) {
+            String name = String.format("vendor%02d/module%03d/File%06d.java", i % 10, (i / 10) % 500, i);
+            result.add(new FileStatus((random.nextInt(4) == 0) ? FileStatus.MODIFIED : FileStatus.ADDED, name));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (condition == false) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    private static void report(String what, long startNanos, int[] eventCount) {
+        System.out.println(String.format("  %-60s %8.1f ms %8d events", what, (System.nanoTime() - startNanos) / 1e6, eventCount[0]));
+        eventCount[0] = 0;
+    }
+}
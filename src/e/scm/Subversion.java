@@ -1,6 +1,9 @@
 package e.scm;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.regex.*;
 import e.util.*;
 
@@ -37,6 +40,12 @@ public class Subversion extends RevisionControlSystem {
         return result.toArray(new String[result.size()]);
     }
 
+    @Override
+    public String[] getFileContentsCommand(Revision revision, String filename) {
+        // svn diff doesn't expand keywords, so we mustn't either, or every $Id$ line would look changed.
+        return new String[] { "svn", "cat", "--ignore-keywords", "-r", revision.number, filename };
+    }
+
     public String[] getLogCommand(String filename) {
         return new String[] { "svn", "log", filename };
     }
@@ -52,49 +61,67 @@ public class Subversion extends RevisionControlSystem {
     //r74 | elliotth | 2004-04-24 12:29:26 +0100 (Sat, 24 Apr 2004) | 3 lines
     private static final Pattern LOG_PATTERN = Pattern.compile("^r(\\d+) \\| ([^|]+) \\| (\\d{4}-\\d{2}-\\d{2}) (\\d{2}:\\d{2}:\\d{2} [-+]\\d{4}) \\(.*\\) \\| (\\d+) lines?$");
 
-    public RevisionListModel parseLog(List<String> linesList) {
-        String[] lines = linesList.toArray(new String[linesList.size()]);
-
-        String separator = "------------------------------------------------------------------------";
-        
-        RevisionListModel result = new RevisionListModel();
-        for (int i = 0; i < lines.length; ++i) {
-            if (lines[i].equals(separator)) {
-                continue;
-            }
+    private static final String LOG_SEPARATOR = "------------------------------------------------------------------------";
+    
+    public LogParser createLogParser(Consumer<Revision> listener) {
+        return new LogParser(listener) {
+            private String number;
+            private String author;
+            private String date;
+            private String time;
+            // Non-null while we're reading a revision's blank line and comment.
+            private StringBuilder comment = null;
+            private boolean expectingBlankLine = false;
+            private int commentLineCount;
+            private boolean expectingSeparator = false;
             
-            Matcher matcher = LOG_PATTERN.matcher(lines[i++]);
-            if (matcher.matches()) {
-                String number = matcher.group(1);
-                String author = matcher.group(2);
-                String date = matcher.group(3);
-                String time = matcher.group(4);
-                
-                int commentLineCount = Integer.parseInt(matcher.group(5));
-                if (lines[i].equals("") == false) {
-                    Log.warn("expected blank line when parsing log");
-                }
-                ++i; // Skip blank line.
-                StringBuilder comment = new StringBuilder();
-                for (; commentLineCount > 0; --commentLineCount) {
-                    comment.append(lines[i++]);
+            public void processLine(String line) {
+                if (expectingBlankLine) {
+                    if (line.equals("") == false) {
+                        Log.warn("expected blank line when parsing log");
+                    }
+                    expectingBlankLine = false;
+                    finishRevisionIfComplete();
+                } else if (comment != null) {
+                    comment.append(line);
                     comment.append("\n");
+                    --commentLineCount;
+                    finishRevisionIfComplete();
+                } else if (expectingSeparator) {
+                    if (line.equals(LOG_SEPARATOR) == false) {
+                        Log.warn("expected separator line when parsing log");
+                    }
+                    expectingSeparator = false;
+                } else if (line.equals(LOG_SEPARATOR) == false) {
+                    Matcher matcher = LOG_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        number = matcher.group(1);
+                        author = matcher.group(2);
+                        date = matcher.group(3);
+                        time = matcher.group(4);
+                        commentLineCount = Integer.parseInt(matcher.group(5));
+                        comment = new StringBuilder();
+                        expectingBlankLine = true;
+                    }
                 }
-                if (lines[i].equals(separator) == false) {
-                    Log.warn("expected separator line when parsing log");
+            }
+            
+            private void finishRevisionIfComplete() {
+                if (commentLineCount > 0) {
+                    return;
                 }
-                Revision revision = new Revision(number, date, time, author, comment.toString());
-                result.add(revision);
+                addRevision(new Revision(number, date, time, author, comment.toString()));
+                comment = null;
+                expectingSeparator = true;
             }
-        }
-        return result;
+        };
     }
 
     public boolean isLocallyModified(String filename) {
         String[] command = new String[] { "svn", "status", filename };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuote(command, lines, errors);
         for (String line : lines) {
             if (line.charAt(0) == 'M' || line.charAt(1) == 'M') {
                 return true;
@@ -103,6 +130,18 @@ public class Subversion extends RevisionControlSystem {
         return false;
     }
 
+    /**
+     * Every command talks to the server, so don't run too many at once.
+     */
+    protected int getMaxConcurrentCommands() {
+        return 2;
+    }
+    
+    @Override
+    public boolean isHistoryLocal() {
+        return false;
+    }
+    
     public boolean supportsChangeSets() {
         return true;
     }
@@ -111,7 +150,7 @@ public class Subversion extends RevisionControlSystem {
         String[] command = new String[] { "svn", "log", "-v", "-r", revision.number };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
+        int status = backQuoteShared(command, lines, errors);
         if (status != 0) {
             throwError(status, command, lines, errors);
         }
@@ -155,46 +194,98 @@ public class Subversion extends RevisionControlSystem {
     }
 
     public List<FileStatus> getStatuses(StatusReporter statusReporter) {
-        String[] command = new String[] { "svn", "status" };
+        return runStatusCommand(new String[] { "svn", "status" });
+    }
+    
+    @Override
+    public void streamStatuses(StatusReporter statusReporter, StatusListener listener) {
+        runStatusCommand(new String[] { "svn", "status" }, listener);
+    }
+    
+    @Override
+    public Set<String> getIgnoredDirectories(String directory) {
+        String[] command = new String[] { "svn", "status", "--no-ignore", "--", directory.isEmpty() ? "." : (directory.contains("@") ? directory + "@" : directory) };
         ArrayList<String> lines = new ArrayList<>();
         ArrayList<String> errors = new ArrayList<>();
-        int status = ProcessUtilities.backQuote(getRoot(), command, lines, errors);
-        if (status != 0) {
-            throwError(status, command, lines, errors);
+        HashSet<String> result = new HashSet<>();
+        if (backQuote(command, lines, errors) != 0) {
+            Log.warn("Couldn't list ignored directories: " + errors);
+            return result;
         }
-        
-        ArrayList<FileStatus> statuses = new ArrayList<>();
-        Pattern pattern = Pattern.compile("^(.)(.)...\\s+(.+)$");
+        Pattern pattern = Pattern.compile("^I......\\s+(.+)$");
         for (String line : lines) {
             Matcher matcher = pattern.matcher(line);
-            if (matcher.find()) {
-                char fileState = matcher.group(1).charAt(0);
-                char propsState = matcher.group(2).charAt(0);
-                String name = matcher.group(3);
-                int canonicalState = FileStatus.NOT_RECOGNIZED_BY_BACK_END;
-                switch (fileState) {
-                    case ' ': canonicalState = FileStatus.CONTENTS_UNCHANGED; break;
-                    case 'A': canonicalState = FileStatus.ADDED; break;
-                    case 'C': canonicalState = FileStatus.CONTAINS_CONFLICTS; break;
-                    case 'D': canonicalState = FileStatus.REMOVED; break;
-                    case 'M': canonicalState = FileStatus.MODIFIED; break;
-                    case '?': canonicalState = FileStatus.NEW; break;
-                    case '!': canonicalState = FileStatus.MISSING; break;
-                    case '~': canonicalState = FileStatus.WRONG_KIND; break;
-                }
-                int propertiesState = SvnFileStatus.PROPERTIES_UNCHANGED;
-                switch (propsState) {
-                    case 'M': propertiesState = SvnFileStatus.PROPERTIES_MODIFIED; break;
-                    case 'C': propertiesState = SvnFileStatus.PROPERTIES_CONFLICT; break;
-                }
-                statuses.add(new SvnFileStatus(canonicalState, name, propertiesState));
-            } else {
-                Log.warn("Subversion back end didn't understand '" + line + "'.");
+            if (matcher.matches() && Files.isDirectory(getRoot().resolve(matcher.group(1)))) {
+                result.add(matcher.group(1).replace(File.separatorChar, '/'));
             }
         }
+        return result;
+    }
+    
+    @Override
+    public boolean canGetStatusesOfPaths() {
+        return true;
+    }
+    
+    @Override
+    public List<FileStatus> getStatuses(StatusReporter statusReporter, Set<String> filenames) {
+        ArrayList<String> command = new ArrayList<>(Arrays.asList("svn", "status", "--"));
+        for (String filename : filenames) {
+            // Subversion would take anything after an '@' as a peg revision, unless there's another '@' after it.
+            command.add(filename.contains("@") ? filename + "@" : filename);
+        }
+        return runStatusCommand(command.toArray(new String[command.size()]));
+    }
+    
+    private List<FileStatus> runStatusCommand(String[] command) {
+        ArrayList<FileStatus> statuses = new ArrayList<>();
+        runStatusCommand(command, new ArrayListStatusListener(statuses));
         return statuses;
     }
     
+    private void runStatusCommand(String[] command, final StatusListener listener) {
+        final ArrayList<String> lines = new ArrayList<>();
+        ArrayList<String> errors = new ArrayList<>();
+        final Pattern pattern = Pattern.compile("^(.)(.)...\\s+(.+)$");
+        int status = backQuote(command, "", new ProcessUtilities.LineListener() {
+            public void processLine(String line) {
+                lines.add(line);
+                parseStatusLine(pattern, line, listener);
+            }
+        }, new ProcessUtilities.ArrayListLineListener(errors));
+        if (status != 0) {
+            throwError(status, command, lines, errors);
+        }
+    }
+    
+    private static void parseStatusLine(Pattern pattern, String line, StatusListener listener) {
+        Matcher matcher = pattern.matcher(line);
+        if (matcher.find()) {
+            char fileState = matcher.group(1).charAt(0);
+            char propsState = matcher.group(2).charAt(0);
+            String name = matcher.group(3);
+            int canonicalState = FileStatus.NOT_RECOGNIZED_BY_BACK_END;
+            switch (fileState) {
+                case ' ': canonicalState = FileStatus.CONTENTS_UNCHANGED; break;
+                case 'A': canonicalState = FileStatus.ADDED; break;
+                case 'C': canonicalState = FileStatus.CONTAINS_CONFLICTS; break;
+                case 'D': canonicalState = FileStatus.REMOVED; break;
+                case 'M': canonicalState = FileStatus.MODIFIED; break;
+                case '?': canonicalState = FileStatus.NEW; break;
+                case '!': canonicalState = FileStatus.MISSING; break;
+                case '~': canonicalState = FileStatus.WRONG_KIND; break;
+            }
+            int propertiesState = SvnFileStatus.PROPERTIES_UNCHANGED;
+            switch (propsState) {
+                case 'M': propertiesState = SvnFileStatus.PROPERTIES_MODIFIED; break;
+                case 'C': propertiesState = SvnFileStatus.PROPERTIES_CONFLICT; break;
+            }
+            listener.statusFound(new SvnFileStatus(canonicalState, name, propertiesState));
+        } else {
+            Log.warn("Subversion back end didn't understand '" + line + "'.");
+        }
+    }
+    
     /**
      * Extends FileStatus to also record the state of the file's properties.
      */
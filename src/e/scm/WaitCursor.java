@@ -36,6 +36,17 @@ public class WaitCursor {
         glassPane.setVisible(false);
     }
     
+    /**
+     * Lets the user back at the window while the task carries on, for work
+     * whose results are usable before it's finished. The status line still
+     * shows the task until stop is invoked.
+     */
+    public void unblock() {
+        glassPane.setCursor(DEFAULT_CURSOR);
+        glassPane.removeMouseListener(MOUSE_EVENT_SWALLOWER);
+        glassPane.setVisible(false);
+    }
+    
     private Component findGlassPane(Object component) {
         RootPaneContainer container = null;
         if (component instanceof RootPaneContainer) {
@@ -0,0 +1,209 @@
+package e.scm;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import e.util.*;
+
+/**
+ * Watches a working copy for changes, so that CheckInWindow can ask the
+ * back-end about just the files that changed rather than have it rescan
+ * the whole tree (which, for CVS, means a round trip to the server).
+ *
+ * Changes are collected until things have been quiet for a moment, so an
+ * editor saving via a temporary file, or a build touching hundreds of
+ * files, is reported as one batch. If we lose track (the operating system
+ * dropped events, or there were too many changes to be worth listing), we
+ * report that everything should be rescanned instead, though not more
+ * often than every MIN_RESCAN_INTERVAL_MS.
+ *
+ * We don't watch directories the back-end ignores: builds write to those
+ * all the time, and nothing in them would ever appear in the table.
+ */
+public class WorkingCopyWatcher {
+    public interface Listener {
+        /**
+         * Invoked on the watcher's thread with the changed files' names,
+         * relative to the root and with '/' as the separator; or with null
+         * if everything should be rescanned.
+         */
+        public void filesChanged(Set<String> filenames);
+    }
+
+    // How long things have to be quiet before we report what's changed.
+    private static final long SETTLE_MS = 300;
+    // ...unless they never are, in which case we report this often.
+    private static final long MAX_DELAY_MS = 3000;
+    // Past this many, it's cheaper to rescan everything than to ask about each file.
+    private static final int MAX_CHANGED_FILES = 200;
+    // A tree that keeps overflowing mustn't mean rescanning everything continually.
+    private static final long MIN_RESCAN_INTERVAL_MS = 30 * 1000;
+
+    // The back-ends' own directories change all the time, and never hold anything we'd show.
+    private static final Set<String> IGNORED_NAMES = new HashSet<>(Arrays.asList(".bzr", ".git", ".hg", ".svn", "CVS", "SCCS", ".bk"));
+
+    private final RevisionControlSystem backEnd;
+    private final Path root;
+    private final Listener listener;
+    private final HashMap<WatchKey, Path> directories = new HashMap<>();
+    // The directories the back-end ignores, relative to the root. Only touched on the watcher's thread.
+    private final HashSet<String> ignoredDirectories = new HashSet<>();
+    private WatchService watchService;
+    private volatile boolean isStopped = false;
+
+    public WorkingCopyWatcher(RevisionControlSystem backEnd, Listener listener) {
+        this.backEnd = backEnd;
+        this.root = backEnd.getRoot();
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching, on a thread of our own. Registering a big tree takes
+     * a while, so that's done on the thread too.
+     */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "WorkingCopyWatcher for " + root);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        isStopped = true;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                Log.warn("Failed to stop watching \"" + root + "\"", ex);
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            synchronized (this) {
+                if (isStopped) {
+                    return;
+                }
+                watchService = root.getFileSystem().newWatchService();
+            }
+            ignoredDirectories.addAll(backEnd.getIgnoredDirectories(""));
+            registerTree(root);
+        } catch (IOException | ClosedWatchServiceException ex) {
+            if (isStopped == false) {
+                Log.warn("Couldn't watch \"" + root + "\"; changes will only be noticed by rescanning", ex);
+            }
+            return;
+        }
+
+        HashSet<String> changedFiles = new HashSet<>();
+        boolean hasLostTrack = false;
+        long firstChangeTime = 0;
+        long lastRescanTime = 0;
+        try {
+            while (isStopped == false) {
+                boolean isAnythingPending = hasLostTrack || changedFiles.isEmpty() == false;
+                WatchKey key = isAnythingPending ? watchService.poll(SETTLE_MS, TimeUnit.MILLISECONDS) : watchService.take();
+                if (key != null) {
+                    if (isAnythingPending == false) {
+                        firstChangeTime = System.currentTimeMillis();
+                    }
+                    hasLostTrack |= collectChanges(key, changedFiles);
+                    if (changedFiles.size() > MAX_CHANGED_FILES) {
+                        hasLostTrack = true;
+                    }
+                    if (hasLostTrack) {
+                        // The rescan will cover these.
+                        changedFiles.clear();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                boolean isTimeToReport = (key == null) || (now - firstChangeTime > MAX_DELAY_MS);
+                if (hasLostTrack && now - lastRescanTime < MIN_RESCAN_INTERVAL_MS) {
+                    isTimeToReport = false;
+                }
+                if (isTimeToReport && (hasLostTrack || changedFiles.isEmpty() == false)) {
+                    if (hasLostTrack) {
+                        lastRescanTime = now;
+                    }
+                    listener.filesChanged(hasLostTrack ? null : changedFiles);
+                    changedFiles = new HashSet<>();
+                    hasLostTrack = false;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // We've been stopped.
+        }
+    }
+
+    /**
+     * Adds the files the given key has seen change to 'changedFiles',
+     * returning true if we've lost track of what's changed.
+     */
+    private boolean collectChanges(WatchKey key, Set<String> changedFiles) {
+        boolean hasLostTrack = false;
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                hasLostTrack = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+            if (IGNORED_NAMES.contains(path.getFileName().toString()) || ignoredDirectories.contains(name)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Its own watch key will tell us which of its files changed.
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // A build's output directory, say, appearing for the first time.
+                ignoredDirectories.addAll(backEnd.getIgnoredDirectories(name));
+                if (ignoredDirectories.contains(name)) {
+                    continue;
+                }
+                // Anything created in the new directory before we got to it won't be reported, but we'll be asking about the whole directory.
+                try {
+                    registerTree(path);
+                } catch (IOException ex) {
+                    hasLostTrack = true;
+                }
+            }
+            changedFiles.add(name);
+        }
+        if (key.reset() == false) {
+            // The directory's gone. Its parent will have told us.
+            directories.remove(key);
+        }
+        return hasLostTrack;
+    }
+
+    private void registerTree(Path top) throws IOException {
+        Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                if (directory.equals(root) == false) {
+                    String name = root.relativize(directory).toString().replace(File.separatorChar, '/');
+                    if (IGNORED_NAMES.contains(directory.getFileName().toString()) || ignoredDirectories.contains(name)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                // Something we can't read can't be something the user's changed.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}